@@ -0,0 +1,25 @@
+package emulator;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with the
+ * bytes allocated per operation. Any JMH command line options can be given,
+ * e.g. a regex of the benchmarks to run or -p level=CHIPS.DAT/134. Run from
+ * the repository root so that testData can be found.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                       .parent(new CommandLineOptions(args))
+                       .addProfiler(GCProfiler.class)
+                       .build()).run();
+    }
+
+}
@@ -0,0 +1,68 @@
+package emulator;
+
+import game.Level;
+import org.openjdk.jmh.annotations.*;
+import util.ByteList;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The engine on its own: playing a whole solution with {@link Level#tick},
+ * and writing, loading and compressing the savestate from halfway through
+ * it.
+ * <p>
+ * A tickSolution operation plays every move of the level's solution, so
+ * divide by the level's ticks for the time per tick.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LevelBenchmark {
+
+    @Param({"CHIPS.DAT/1", "CHIPS.DAT/134", "CCLP3.dat/144", "CCLP3.dat/147"})
+    public String level;
+
+    private TestLevel input;
+    private Level state;
+    private byte[] start;
+    private byte[] midway;
+    private final ByteList list = new ByteList();
+
+    @Setup
+    public void setup() throws IOException {
+        input = new TestLevel(level);
+        state = input.parse();
+        start = state.save();
+        input.play(state, input.solution.halfMoves.length / 2);
+        midway = state.save();
+    }
+
+    @Benchmark
+    public Level tickSolution() {
+        state.load(start);
+        input.play(state, Integer.MAX_VALUE);
+        return state;
+    }
+
+    @Benchmark
+    public byte[] save() {
+        return state.save();
+    }
+
+    @Benchmark
+    public Level load() {
+        state.load(midway);
+        return state;
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return SavestateManager.compress(midway, list);
+    }
+
+}
@@ -0,0 +1,48 @@
+package emulator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Solution#load(SuperCC, TickFlags)} on an emulator without a window,
+ * with and without writing a savestate for every move.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SolutionBenchmark {
+
+    @Param({"CHIPS.DAT/1", "CHIPS.DAT/134", "CCLP3.dat/144", "CCLP3.dat/147"})
+    public String level;
+
+    private SuperCC emulator;
+    private Solution solution;
+
+    @Setup
+    public void setup() throws IOException {
+        TestLevel input = new TestLevel(level);
+        solution = input.solution;
+        emulator = new SuperCC(false);
+        emulator.openLevelset(new File(TestLevel.SETS + input.levelset));
+        emulator.loadLevel(input.levelNumber);
+    }
+
+    @Benchmark
+    public SuperCC loadLight() {
+        solution.load(emulator, TickFlags.LIGHT);
+        return emulator;
+    }
+
+    @Benchmark
+    public SuperCC loadWithSavestates() {
+        solution.load(emulator, TickFlags.PRELOADING);
+        return emulator;
+    }
+
+}
@@ -0,0 +1,67 @@
+package tools.tsp;
+
+import emulator.SuperCC;
+import org.openjdk.jmh.annotations.*;
+import tools.TSPGUI;
+
+import javax.swing.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TSP solver on the levels of TSPSolverTest.dat, with every chip and
+ * exit as a node: the breadth first searches for the distances between the
+ * nodes, and simulated annealing over those distances with the default
+ * parameters of the TSP window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TSPBenchmark {
+
+    @Param({"1", "8"})
+    public int level;
+
+    private SuperCC emulator;
+    private TSPGUI gui;
+    private ArrayList<TSPGUI.ListNode> inputNodes;
+    private ArrayList<TSPGUI.ListNode> exitNodes;
+    private final ArrayList<TSPGUI.RestrictionNode> restrictionNodes = new ArrayList<>();
+    private final SimulatedAnnealingParameters simulatedAnnealingParameters = new SimulatedAnnealingParameters(100, 0.1, 0.995, 20000);
+    private final ActingWallParameters actingWallParameters = new ActingWallParameters(false, false, false, false, false);
+    private final JTextPane output = new JTextPane();
+    private int[][] distances;
+
+    @Setup
+    public void setup() {
+        emulator = new SuperCC(false);
+        gui = new TSPGUI(emulator, false);
+        emulator.openLevelset(new File("testData/sets/TSPSolverTest.dat"));
+        emulator.loadLevel(level);
+        inputNodes = gui.getAllChips();
+        exitNodes = gui.getAllExits();
+        distances = searchBFS().getDistances();
+    }
+
+    @Benchmark
+    public TSPSolver searchBFS() {
+        TSPSolver solver = new TSPSolver(emulator, gui, inputNodes, exitNodes, restrictionNodes,
+                simulatedAnnealingParameters, actingWallParameters, output);
+        solver.gatherNormal();
+        return solver;
+    }
+
+    @Benchmark
+    public int[] simulatedAnnealing() {
+        int nodes = distances.length;
+        SimulatedAnnealing sa = new SimulatedAnnealing(gui, emulator.getLevel().getStartTime(), simulatedAnnealingParameters,
+                distances, distances, new boolean[nodes][nodes], new boolean[nodes][nodes], inputNodes.size(),
+                exitNodes.size(), restrictionNodes, output);
+        return sa.start();
+    }
+
+}
@@ -0,0 +1,52 @@
+package tools.variation;
+
+import emulator.SuperCC;
+import org.openjdk.jmh.annotations.*;
+import tools.VariationTesting;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variation scripts from InterpreterTest on variationScriptTest.dat, from
+ * parsing the script to the last variation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InterpreterBenchmark {
+
+    private static final String[] SCRIPTS = {
+        "all; [4r, u, d](){}",
+        "all; [10ud, 5w](4, 15){}" +
+            "for(var i = 0; i < 10; i += 1) {" +
+            "if(getForegroundTile(3, 3) == GLIDER_LEFT) { move(7r, 2u); } move(w); }"
+    };
+    private static final int[] LEVELS = {3, 4};
+
+    @Param({"0", "1"})
+    public int script;
+
+    private SuperCC emulator;
+    private VariationTesting variationTesting;
+
+    @Setup
+    public void setup() {
+        emulator = new SuperCC(false);
+        variationTesting = new VariationTesting(emulator, false);
+        emulator.openLevelset(new File("testData/sets/variationScriptTest.dat"));
+        emulator.loadLevel(LEVELS[script]);
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        variationTesting.clearConsole();
+        Interpreter interpreter = new Interpreter(emulator, variationTesting, variationTesting.getConsole(), SCRIPTS[script]);
+        interpreter.interpret();
+        return interpreter;
+    }
+
+}
@@ -0,0 +1,203 @@
+package emulator;
+
+import game.Level;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import util.ByteList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A solution together with keyframes that split it into segments which can
+ * be verified independently, and so in parallel.
+ * <p>
+ * Each segment starts with a keyframe: the half move it starts at and the
+ * compressed savestate before that move. It ends with a hash of the state
+ * after its last move, which has to be the state of the next segment's
+ * keyframe. A segment is verified by loading its keyframe, checking that it
+ * hashes to the previous segment's end hash and simulating it up to the next
+ * keyframe. The first keyframe has to be the level's starting state and the
+ * last segment has to complete the level.
+ * </p>
+ * <p>
+ * The JSON form is the solution's JSON with an extra Keyframes array, so
+ * {@link Solution#fromJSON(String)} reads it as a plain solution.
+ * </p>
+ */
+public class KeyframedSolution {
+
+    public static final String KEYFRAMES = "Keyframes", MOVE = "Move", STATE = "State", HASH = "Hash";
+    public static final int DEFAULT_INTERVAL = 1000;               // Moves per segment
+
+    public final Solution solution;
+    private final int[] starts;                                     // The half move each segment starts at
+    private final byte[][] keyframes;                               // The compressed state before that move
+    private final long[] endHashes;                                 // The hash of the state after the segment
+
+    /**
+     * Simulate a solution of a level of the emulator's levelset and keyframe
+     * it. Doesn't touch the emulator's current level, so it can be called
+     * off the event dispatch thread.
+     * @param interval the number of moves in each segment
+     */
+    public static KeyframedSolution create(SuperCC emulator, int levelNumber, Solution solution, int interval) throws IOException {
+        Level level = emulator.parseLevel(levelNumber, solution.rngSeed, solution.step);
+        List<Integer> starts = new ArrayList<>();
+        List<byte[]> keyframes = new ArrayList<>();
+        List<Long> endHashes = new ArrayList<>();
+        ByteList list = new ByteList();
+        int moves = 0;
+        for (int move = 0; move < solution.halfMoves.length && !level.getChip().isDead(); moves++) {
+            if (moves % interval == 0) {
+                byte[] savestate = level.save();
+                if (moves > 0) endHashes.add(hash(savestate));
+                starts.add(move);
+                keyframes.add(SavestateManager.compress(savestate, list));
+            }
+            move = solution.tickDetached(level, move);
+        }
+        if (starts.isEmpty()) {
+            starts.add(0);
+            keyframes.add(SavestateManager.compress(level.save(), list));
+        }
+        endHashes.add(hash(level.save()));
+        int[] startArray = new int[starts.size()];
+        long[] hashArray = new long[endHashes.size()];
+        for (int i = 0; i < startArray.length; i++) {
+            startArray[i] = starts.get(i);
+            hashArray[i] = endHashes.get(i);
+        }
+        return new KeyframedSolution(solution, startArray, keyframes.toArray(new byte[0][]), hashArray);
+    }
+
+    /**
+     * Verify every segment on a pool of threads. Like {@link #create}, it
+     * doesn't touch the emulator's current level.
+     * @param levelNumber the level of the emulator's levelset the solution is for
+     * @param threads the number of threads to use
+     * @return the index of the first segment that does not check out,
+     * {@link #segments()} if every segment checks out but the level is not
+     * completed, or -1 if the solution is valid
+     */
+    public int verify(SuperCC emulator, int levelNumber, int threads) throws IOException, InterruptedException {
+        byte[] startingState = emulator.parseLevel(levelNumber, solution.rngSeed, solution.step).save();
+        threads = Math.max(1, Math.min(threads, segments()));
+        List<Level> levels = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) levels.add(emulator.parseLevel(levelNumber, solution.rngSeed, solution.step));
+
+        boolean[] valid = new boolean[segments()];
+        boolean[] completed = new boolean[1];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (Level level : levels) {
+            futures.add(pool.submit(() -> {
+                int segment;
+                while ((segment = next.getAndIncrement()) < segments()) {
+                    valid[segment] = verifySegment(level, segment, startingState);
+                    if (segment == segments() - 1) {
+                        Solution.waitForEnd(level, Solution.GRACE_TICKS, null);
+                        completed[0] = Solution.isCompleted(level);
+                    }
+                }
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Future<?> future : futures) future.get();
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        for (int i = 0; i < valid.length; i++) {
+            if (!valid[i]) return i;
+        }
+        return completed[0] ? -1 : segments();
+    }
+
+    private boolean verifySegment(Level level, int segment, byte[] startingState) {
+        level.load(keyframes[segment]);
+        byte[] savestate = level.save();
+        if (segment == 0 && !Arrays.equals(savestate, startingState)) return false;
+        if (segment > 0 && hash(savestate) != endHashes[segment - 1]) return false;
+        int end = segment + 1 < segments() ? starts[segment + 1] : solution.halfMoves.length;
+        int move = starts[segment];
+        while (move < end && !level.getChip().isDead()) move = solution.tickDetached(level, move);
+        if (segment + 1 < segments() && move != end) return false;
+        return hash(level.save()) == endHashes[segment];
+    }
+
+    /**
+     * 64 bit FNV-1a hash of an uncompressed savestate.
+     */
+    static long hash(byte[] savestate) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : savestate) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public int segments() {
+        return starts.length;
+    }
+
+    @SuppressWarnings("unchecked")                                  // JSONObject and JSONArray are raw maps and lists
+    public JSONObject toJSON() {
+        JSONObject json = solution.toJSON();
+        JSONArray array = new JSONArray();
+        Base64.Encoder encoder = Base64.getEncoder();
+        for (int i = 0; i < segments(); i++) {
+            JSONObject keyframe = new JSONObject();
+            keyframe.put(MOVE, Integer.toString(starts[i]));
+            keyframe.put(STATE, encoder.encodeToString(keyframes[i]));
+            keyframe.put(HASH, Long.toHexString(endHashes[i]));
+            array.add(keyframe);
+        }
+        json.put(KEYFRAMES, array);
+        return json;
+    }
+
+    public static KeyframedSolution fromJSON(String s) {
+        try {
+            JSONObject json = (JSONObject) new JSONParser().parse(s);
+            JSONArray array = (JSONArray) json.get(KEYFRAMES);
+            int[] starts = new int[array.size()];
+            byte[][] keyframes = new byte[array.size()][];
+            long[] endHashes = new long[array.size()];
+            Base64.Decoder decoder = Base64.getDecoder();
+            for (int i = 0; i < starts.length; i++) {
+                JSONObject keyframe = (JSONObject) array.get(i);
+                starts[i] = Integer.parseInt((String) keyframe.get(MOVE));
+                keyframes[i] = decoder.decode((String) keyframe.get(STATE));
+                endHashes[i] = Long.parseUnsignedLong((String) keyframe.get(HASH), 16);
+            }
+            return new KeyframedSolution(Solution.fromJSON(s), starts, keyframes, endHashes);
+        }
+        catch (Exception e) {
+            throw new IllegalArgumentException("Invalid keyframed solution file");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toJSON().toJSONString();
+    }
+
+    private KeyframedSolution(Solution solution, int[] starts, byte[][] keyframes, long[] endHashes) {
+        if (starts.length == 0) throw new IllegalArgumentException("A keyframed solution needs at least one keyframe");
+        this.solution = solution;
+        this.starts = starts;
+        this.keyframes = keyframes;
+        this.endHashes = endHashes;
+    }
+
+}
@@ -0,0 +1,442 @@
+package emulator;
+
+import util.TreeNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap storage for the compressed savestates of one SavestateManager.
+ * Savestates are bump allocated in large direct buffers (slabs), so the
+ * garbage collector only sees the small StateNodes that point into them.
+ * <p>
+ * Nothing is freed one savestate at a time. Instead, whenever a new slab has
+ * been started, the manager calls {@link #sweep(Collection, Set)} with every
+ * node it can still reach. Slabs without a reachable savestate are freed, and
+ * the few savestates left in a mostly empty slab are moved out so it can be
+ * freed too. A freed slab gets a new generation, so a node that was not
+ * reachable any more reads null instead of another savestate. Generations
+ * are never reused: a slab index that has run through all of them is retired
+ * instead of wrapping around.
+ * </p>
+ * <p>
+ * If a spill directory is set and the reachable savestates in the slabs
+ * grow past the spill threshold, a sweep also moves the cold savestates of
+ * the oldest slabs to a memory-mapped {@link SavestateSpill} file. The hot
+ * nodes the manager passes in are never spilled. Spilled nodes can be read
+ * directly from the file, or brought back into a slab ahead of time by
+ * {@link #prefetch(List)}. Once most of a large spill file is dead, a sweep
+ * copies the savestates that are only in the file to a new one and deletes
+ * the old file. Spill offsets carry the generation of their file like slab
+ * addresses do.
+ * </p>
+ */
+class SavestateArena {
+
+    private static final int SLAB_SIZE = 1 << 22;                   // 4 MB
+    private static final int MAX_SPARE_SLABS = 2;
+    private static final int MAX_GENERATION = 0x7FFF;               // Addresses stay positive
+    private static final long MIN_COMPACTED_SPILL = 1 << 26;        // 64 MB
+    private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Savestate prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();       // null for freed slabs
+    private final List<Integer> used = new ArrayList<>();           // bytes allocated in each slab
+    private final List<Integer> generations = new ArrayList<>();
+    private final List<Long> ages = new ArrayList<>();              // when each slab was started
+    private final List<ByteBuffer> spareSlabs = new ArrayList<>();
+    private int current = -1;
+    private long slabsStarted;
+    private boolean sweepDue;
+    private File spillDirectory;
+    private long spillThreshold = Long.MAX_VALUE;
+    private SavestateSpill spill;
+    private int spillGeneration;
+    private volatile boolean prefetching;
+    private boolean cleared;
+    private final AtomicLong heapBytes = new AtomicLong();          // Of the manager's savestates not compressed yet
+    private volatile long memoryBytes, spilledBytes;                // Of the live savestates here, as of the last sweep
+
+    private static long address(int generation, int slab, int offset) {
+        return ((long) generation << 48) | ((long) slab << 32) | offset;
+    }
+    private static int generation(long address) {
+        return (int) (address >>> 48);
+    }
+    private static int slab(long address) {
+        return (int) (address >>> 32) & 0xFFFF;
+    }
+    private static int offset(long address) {
+        return (int) address;
+    }
+    private static long spillPosition(long spillOffset) {
+        return spillOffset & 0xFFFFFFFFFFFFL;
+    }
+
+    /**
+     * @return where the current spill file has the node's savestate, or -1
+     * if it has none
+     */
+    private long spillPosition(StateNode node) {
+        if (node.spillOffset < 0 || spill == null || generation(node.spillOffset) != spillGeneration) return -1;
+        return spillPosition(node.spillOffset);
+    }
+
+    /**
+     * @return the slab an address points to, or null if it was freed since
+     */
+    private ByteBuffer slabFor(long address) {
+        if (address < 0) return null;
+        int slab = slab(address);
+        if (generations.get(slab) != generation(address)) return null;
+        return slabs.get(slab);
+    }
+
+    /**
+     * Spill cold savestates to a new file in a directory once the savestates
+     * in memory use more than a threshold.
+     * @param directory the directory to create the spill file in
+     * @param threshold the number of bytes to keep in memory
+     */
+    synchronized void setSpill(File directory, long threshold) {
+        spillDirectory = directory;
+        spillThreshold = threshold;
+    }
+
+    synchronized void store(StateNode node, byte[] savestate) {
+        if (cleared) throw new IllegalStateException("The savestates were discarded");
+        node.spillOffset = -1;
+        put(node, savestate);
+    }
+
+    /**
+     * Copy a savestate into a slab, keeping any copy in the spill file.
+     */
+    private void put(StateNode node, byte[] savestate) {
+        long address = allocate(savestate.length);
+        ByteBuffer slab = slabs.get(slab(address));
+        slab.position(offset(address));
+        slab.put(savestate);
+        node.address = address;
+        node.length = savestate.length;
+        memoryBytes += savestate.length;
+    }
+
+    /**
+     * Count a change in the bytes of uncompressed savestates kept on the
+     * heap by the manager's nodes.
+     */
+    void addHeapBytes(long bytes) {
+        heapBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return the bytes of uncompressed savestates on the heap
+     */
+    long getHeapBytes() {
+        return heapBytes.get();
+    }
+
+    /**
+     * @return the bytes of compressed savestates in slabs. Savestates that
+     * can not be reached any more are counted until the next sweep.
+     */
+    long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return the bytes of savestates only in the spill file, as of the last
+     * sweep
+     */
+    long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return a copy of the node's savestate, or null if it has none
+     */
+    synchronized byte[] load(StateNode node) {
+        ByteBuffer slab = slabFor(node.address);
+        if (slab == null) return readSpilled(node);
+        byte[] savestate = new byte[node.length];
+        slab.position(offset(node.address));
+        slab.get(savestate);
+        return savestate;
+    }
+
+    synchronized byte get(StateNode node, int index) {
+        ByteBuffer slab = slabFor(node.address);
+        if (slab != null) return slab.get(offset(node.address) + index);
+        long position = spillPosition(node);
+        if (position < 0) throw new IllegalStateException("The savestate was discarded");
+        try {
+            return spill.get(position + index);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Compare the node's savestate with another without copying it out of
+     * its slab.
+     */
+    synchronized boolean equals(StateNode node, byte[] savestate) {
+        if (savestate == null || node.length != savestate.length) return false;
+        ByteBuffer slab = slabFor(node.address);
+        if (slab == null) return Arrays.equals(readSpilled(node), savestate);
+        int offset = offset(node.address);
+        for (int i = 0; i < savestate.length; i++) {
+            if (slab.get(offset + i) != savestate[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the node's savestate is only in the spill file
+     */
+    synchronized boolean isSpilled(StateNode node) {
+        return spillPosition(node) >= 0 && slabFor(node.address) == null;
+    }
+
+    private byte[] readSpilled(StateNode node) {
+        long position = spillPosition(node);
+        if (position < 0) return null;
+        try {
+            return spill.read(position, node.length);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Bring spilled savestates back into a slab on a background thread, so
+     * they can be loaded without touching the spill file. Nothing happens
+     * while an earlier prefetch is still running.
+     * @param nodes the nodes that will be needed soon, in the order they
+     *              will be needed
+     */
+    void prefetch(List<StateNode> nodes) {
+        if (prefetching) return;
+        prefetching = true;
+        PREFETCHER.execute(() -> {
+            try {
+                for (StateNode node : nodes) {
+                    synchronized (this) {
+                        if (spill == null) return;
+                        if (isSpilled(node)) {
+                            put(node, readSpilled(node));
+                            spilledBytes -= node.length;
+                        }
+                    }
+                }
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            finally {
+                prefetching = false;
+            }
+        });
+    }
+
+    private long allocate(int length) {
+        if (current < 0 || used.get(current) + length > slabs.get(current).capacity()) {
+            current = newSlab(Math.max(SLAB_SIZE, length));
+            sweepDue = true;
+        }
+        int offset = used.get(current);
+        used.set(current, offset + length);
+        return address(generations.get(current), current, offset);
+    }
+
+    private int newSlab(int capacity) {
+        ByteBuffer slab = null;
+        if (capacity == SLAB_SIZE && !spareSlabs.isEmpty()) slab = spareSlabs.remove(spareSlabs.size() - 1);
+        if (slab == null) slab = ByteBuffer.allocateDirect(capacity);
+        int index = 0;
+        while (index < slabs.size() && (slabs.get(index) != null || generations.get(index) > MAX_GENERATION)) index++;
+        if (index == slabs.size()) {
+            index = slabs.size();
+            slabs.add(slab);
+            used.add(0);
+            generations.add(0);
+            ages.add(0L);
+        }
+        else slabs.set(index, slab);
+        ages.set(index, slabsStarted++);
+        return index;
+    }
+
+    private void freeSlab(int index) {
+        ByteBuffer slab = slabs.get(index);
+        slabs.set(index, null);
+        used.set(index, 0);
+        generations.set(index, generations.get(index) + 1);        // Past MAX_GENERATION the index is retired
+        if (slab.capacity() == SLAB_SIZE && spareSlabs.size() < MAX_SPARE_SLABS) {
+            slab.clear();
+            spareSlabs.add(slab);
+        }
+    }
+
+    /**
+     * @return true if a slab was started since the last sweep
+     */
+    synchronized boolean isSweepDue() {
+        return sweepDue;
+    }
+
+    /**
+     * Free every slab that none of the given nodes use, and move the
+     * savestates out of slabs that are less than a quarter used. If the
+     * savestates left in memory use more than the spill threshold, the cold
+     * savestates of the oldest slabs are spilled and those slabs freed too.
+     * @param liveNodes every node that can still be used
+     * @param hotNodes the live nodes that must stay in memory
+     */
+    synchronized void sweep(Collection<TreeNode<byte[]>> liveNodes, Set<TreeNode<byte[]>> hotNodes) {
+        sweepDue = false;
+        int[] live = new int[slabs.size()];
+        long totalLive = 0;
+        for (TreeNode<byte[]> node : liveNodes) {
+            if (node instanceof StateNode && slabFor(((StateNode) node).address) != null) {
+                live[slab(((StateNode) node).address)] += ((StateNode) node).length;
+                totalLive += ((StateNode) node).length;
+            }
+        }
+        boolean[] free = new boolean[slabs.size()];
+        boolean[] spilled = new boolean[slabs.size()];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = i != current && slabs.get(i) != null && live[i] * 4 < used.get(i);
+        }
+        if (totalLive > spillThreshold && spillDirectory != null) {
+            Integer[] oldest = new Integer[slabs.size()];
+            for (int i = 0; i < oldest.length; i++) oldest[i] = i;
+            Arrays.sort(oldest, Comparator.comparing(ages::get));
+            for (int i : oldest) {
+                if (totalLive <= spillThreshold / 4 * 3) break;         // Leave some room before spilling again
+                if (i == current || slabs.get(i) == null || free[i]) continue;
+                spilled[i] = true;
+                totalLive -= live[i];
+            }
+        }
+        for (TreeNode<byte[]> node : liveNodes) {
+            if (!(node instanceof StateNode)) continue;
+            StateNode stateNode = (StateNode) node;
+            if (slabFor(stateNode.address) == null) continue;
+            int slab = slab(stateNode.address);
+            if (spilled[slab] && !hotNodes.contains(node) && spill(stateNode)) continue;
+            if (free[slab] || spilled[slab]) put(stateNode, load(stateNode));
+        }
+        for (int i = 0; i < free.length; i++) {
+            if (free[i] || spilled[i]) freeSlab(i);
+        }
+        long memory = 0, spilledTotal = 0;
+        for (TreeNode<byte[]> node : liveNodes) {
+            if (!(node instanceof StateNode)) continue;
+            StateNode stateNode = (StateNode) node;
+            if (slabFor(stateNode.address) != null) memory += stateNode.length;
+            else if (spillPosition(stateNode) >= 0) spilledTotal += stateNode.length;
+        }
+        memoryBytes = memory;
+        spilledBytes = spilledTotal;
+        if (spill != null && spillDirectory != null && spill.size() >= MIN_COMPACTED_SPILL
+            && spilledTotal * 4 < spill.size()) compactSpill(liveNodes);
+    }
+
+    /**
+     * Copy the savestates that are only in the spill file to a new file and
+     * delete the old one. Nodes that are in a slab lose their copy in the
+     * file, and are written again if they are spilled again. The old file is
+     * kept if the new one can't be written.
+     * <p>
+     *     The generation of the file wraps around after 32768 compactions,
+     *     each of which needs 48 MB of dead savestates, so a stale node could
+     *     only read another savestate after more than a terabyte of spilling.
+     * </p>
+     */
+    private void compactSpill(Collection<TreeNode<byte[]>> liveNodes) {
+        List<StateNode> spilledNodes = new ArrayList<>();
+        for (TreeNode<byte[]> node : liveNodes) {
+            if (node instanceof StateNode && isSpilled((StateNode) node)) spilledNodes.add((StateNode) node);
+        }
+        SavestateSpill compacted = null;
+        long[] positions = new long[spilledNodes.size()];
+        try {
+            compacted = new SavestateSpill(spillDirectory);
+            for (int i = 0; i < positions.length; i++) positions[i] = compacted.write(readSpilled(spilledNodes.get(i)));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            if (compacted != null) compacted.close();
+            return;
+        }
+        spill.close();
+        spill = compacted;
+        spillGeneration = (spillGeneration + 1) & MAX_GENERATION;
+        for (TreeNode<byte[]> node : liveNodes) {
+            if (node instanceof StateNode) ((StateNode) node).spillOffset = -1;
+        }
+        for (int i = 0; i < positions.length; i++) {
+            spilledNodes.get(i).spillOffset = ((long) spillGeneration << 48) | positions[i];
+        }
+    }
+
+    /**
+     * Move a savestate to the spill file. The savestate is only written if
+     * the file does not have it yet.
+     * @return false if the spill file could not be written
+     */
+    private boolean spill(StateNode node) {
+        try {
+            if (spill == null) spill = new SavestateSpill(spillDirectory);
+            if (spillPosition(node) < 0) node.spillOffset = ((long) spillGeneration << 48) | spill.write(load(node));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            spillDirectory = null;                                  // Keep everything in memory from now on
+            return false;
+        }
+        node.address = -1;
+        return true;
+    }
+
+    /**
+     * @return the number of bytes allocated in slabs, including savestates
+     * that can not be reached any more
+     */
+    synchronized long size() {
+        long size = 0;
+        for (int i = 0; i < slabs.size(); i++) if (slabs.get(i) != null) size += used.get(i);
+        return size;
+    }
+
+    /**
+     * Free every slab and delete the spill file. Only used when the manager
+     * is discarded, after everything that stores savestates has stopped.
+     * Savestates read afterwards are null, and reading a single byte throws
+     * an IllegalStateException.
+     */
+    synchronized void clear() {
+        cleared = true;
+        for (int i = 0; i < slabs.size(); i++) if (slabs.get(i) != null) freeSlab(i);
+        spareSlabs.clear();
+        current = -1;
+        if (spill != null) spill.close();
+        spill = null;
+        memoryBytes = 0;
+        spilledBytes = 0;
+    }
+
+}
@@ -6,32 +6,47 @@ import game.SaveState;
 import graphics.Gui;
 import graphics.SmallGamePanel;
 import util.ByteList;
+import util.Metrics;
+import util.MoveLog;
 import util.TreeNode;
 
+import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 import static game.SaveState.*;
 
 public class SavestateManager implements Serializable {
 
     private HashMap<Integer, TreeNode<byte[]>> savestates = new HashMap<>();
-    private HashMap<Integer, ByteList> savestateMoves = new HashMap<>();
+    private HashMap<Integer, MoveLog> savestateMoves = new HashMap<>();
     private TreeNode<byte[]> currentNode;
-    private ByteList moves;
+    private MoveLog moves;
     private transient SavestateCompressor compressor;
+    private transient SavestateArena arena = new SavestateArena();
+    private transient SessionJournal journal;
+    private transient Materializer materializer;
+    private transient TreeNode<byte[]> heldBranch;
     private transient List<TreeNode<byte[]>> playbackNodes = new ArrayList<>();
     private transient int playbackIndex = 0;
     private ArrayList<TreeNode<byte[]>> undesirableSavestates = new ArrayList<>();
-    private ByteList[] checkpoints = new ByteList[10];
+    private MoveLog[] checkpoints = new MoveLog[10];
     private boolean[] recordingCheckpoints = new boolean[10];
     private int[] checkpointStartIndex = new int[10];
 
-    private transient boolean pause = true;
+    private transient volatile boolean pause = true;
+    private transient Thread playbackThread;
+    private transient volatile int nodeCount;                       // Reachable nodes as of the last sweep, plus any added since
+    private transient long plainCompressedBytes, plainUncompressedBytes;    // Of deserialized nodes, see countPlainNodes
     private static final int STANDARD_WAIT_TIME = 100;              // 100 ms means 10 half-ticks per second.
+    private static final int AS_FAST_AS_POSSIBLE = 0;
     private transient int playbackWaitTime = STANDARD_WAIT_TIME;
     private static final int[] waitTimes = new int[]{
         STANDARD_WAIT_TIME * 8,
@@ -40,9 +55,28 @@ public class SavestateManager implements Serializable {
         STANDARD_WAIT_TIME,
         STANDARD_WAIT_TIME / 2,
         STANDARD_WAIT_TIME / 4,
-        STANDARD_WAIT_TIME / 8
+        STANDARD_WAIT_TIME / 8,
+        AS_FAST_AS_POSSIBLE
     };
     public static final int NUM_SPEEDS = waitTimes.length;
+    private static final int DEFAULT_REFRESH_RATE = 60;
+    private static final int NODE_OVERHEAD = 48;                    // TreeNode and array headers, roughly
+    private static final int HOT_RANGE = 2048;                      // Nodes this close to the current one are never spilled
+    private static final int PREFETCH_DISTANCE = 1024;
+    private static final long NANOS_PER_MILLI = 1_000_000;
+    private static final long NANOS_PER_SECOND = 1_000_000_000;
+    private static final long SPIN_THRESHOLD = NANOS_PER_MILLI;    // Sleeping is only accurate to about a millisecond
+    private transient long nextHalfTick, lastFrame;
+    private transient boolean framesDrawn;
+    private static final Metrics.Counter FRAMES = Metrics.counter("playback.frames");
+    private static final Metrics.Histogram FRAME_INTERVAL = Metrics.histogram("playback.frameIntervalNanos");
+    private static final Metrics.Histogram COMPRESS_TIME = Metrics.histogram("savestates.compressNanos");
+    private static final Metrics.Gauge NODES = Metrics.gauge("savestates.nodes");
+    private static final Metrics.Gauge COMPRESSED_BYTES = Metrics.gauge("savestates.compressedBytes");
+    private static final Metrics.Gauge UNCOMPRESSED_BYTES = Metrics.gauge("savestates.uncompressedBytes");
+    private static final Metrics.Gauge SPILLED_BYTES = Metrics.gauge("savestates.spilledBytes");
+    private static final Metrics.Gauge COMPRESSOR_BACKLOG = Metrics.gauge("savestates.compressorBacklog");
+    private transient volatile double playbackTicksPerSecond;
     
     public void setPlaybackSpeed(int i) {
         playbackWaitTime = waitTimes[i];
@@ -52,9 +86,53 @@ public class SavestateManager implements Serializable {
         currentNode = node;
     }
     
+    /**
+     * Let savestates far from the current position be spilled to disk once
+     * the savestates in memory use more than a threshold.
+     * @param directory the directory to create the spill file in
+     * @param megabytes the memory the savestates may use before spilling
+     */
+    public void setSpill(File directory, int megabytes) {
+        arena.setSpill(directory, megabytes * 1024L * 1024L);
+    }
+    
+    public void setJournal(SessionJournal journal) {
+        this.journal = journal;
+    }
+    
+    public SessionJournal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Close this session's journal, if it has one.
+     * @param discard if true the journal file is deleted as well
+     */
+    public void closeJournal(boolean discard) {
+        if (journal == null) return;
+        if (discard) journal.discard();
+        else journal.close();
+        journal = null;
+    }
+    
+    /**
+     * Journal the moves up to the current position, for a session that
+     * already existed when its journal was opened.
+     */
+    void journalMoves() {
+        if (journal == null) return;
+        for (int i = 0; i < playbackIndex; i++) journal.move(moves.get(i));
+    }
+    
+    private void writeObject(java.io.ObjectOutputStream out) throws IOException {
+        if (materializer != null) materializer.finish();
+        out.defaultWriteObject();
+    }
+    
     private void readObject(java.io.ObjectInputStream in)
         throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        arena = new SavestateArena();
         compressor = new SavestateCompressor();
         pause = false;
         playbackWaitTime = STANDARD_WAIT_TIME;
@@ -62,19 +140,99 @@ public class SavestateManager implements Serializable {
         playbackNodes = new ArrayList<>(playbackIndex*2);
         playbackNodes.addAll(currentNode.getHistory());
         System.out.println(currentNode.depth());
+        Set<TreeNode<byte[]>> nodes = getAllNodes();
+        nodeCount = nodes.size();
+        countPlainNodes(nodes);
     }
 
     public void addRewindState(Level level, byte b){
+        addRewindState(level.save(), b);
+    }
+    
+    /**
+     * Append states that were simulated earlier to the current branch, as if
+     * each of them had been added by {@link #addRewindState(Level, byte)}.
+     * The level itself is not changed.
+     * @param states the savestates, compressed or not
+     * @param moves the move that led to each savestate
+     */
+    public void addRewindStates(List<byte[]> states, byte[] moves){
+        for (int i = 0; i < states.size(); i++) addRewindState(states.get(i), moves[i]);
+    }
+    
+    /**
+     * Append moves to the current branch without having all of their
+     * savestates. The missing savestates are simulated again on a background
+     * thread, starting with the stretch closest to the end, since that is
+     * where the user is. Anything that needs a missing savestate before then
+     * waits for it, and the background thread simulates that one first.
+     * @param level a level with the same level number, seed and step as the
+     *              emulator's, only used by the background thread
+     * @param moves the moves to append, as stored in the move list
+     * @param states the savestate after each move, or null if it should be
+     *               simulated in the background. The last one must not be
+     *               null.
+     * @param onFinished called on the background thread once every savestate
+     *                   exists, with the branch's nodes from the root and its
+     *                   moves as they were when this was called. May be null.
+     */
+    public void addRewindStatesLater(Level level, byte[] moves, byte[][] states,
+                                     BiConsumer<List<TreeNode<byte[]>>, MoveLog> onFinished){
+        if (materializer != null) materializer.finish();
+        List<TreeNode<byte[]>> nodes = new ArrayList<>(moves.length + 1);
+        nodes.add(currentNode);
+        for (int i = 0; i < moves.length; i++) {
+            addRewindState(states[i], moves[i]);
+            nodes.add(currentNode);
+        }
+        List<TreeNode<byte[]>> branch = new ArrayList<>(playbackNodes);
+        MoveLog branchMoves = this.moves;
+        Runnable finished = onFinished == null ? null : () -> onFinished.accept(branch, branchMoves);
+        materializer = new Materializer(level, nodes, moves, finished);
+    }
+    
+    /**
+     * Append the savestates of another branch to the current one, e.g. the
+     * part of the old branch that a changed solution converged back to.
+     * Savestates are copied, not simulated.
+     * @param nodes the other branch's nodes, starting with the root
+     * @param moves the other branch's moves
+     * @param from the node of the other branch that has the same savestate
+     *             as the current one
+     * @param to the last node to append
+     */
+    void addRewindStates(List<TreeNode<byte[]>> nodes, MoveLog moves, int from, int to){
+        for (int i = from; i < to; i++) addRewindState(getData(nodes.get(i + 1)), moves.get(i));
+    }
+    
+    /**
+     * Keep every savestate of the current branch, including the ones after
+     * the current position, until {@link #releaseBranch()} is called, even
+     * if new moves replace them in the meantime.
+     * @return the branch's nodes, starting with the root
+     */
+    List<TreeNode<byte[]>> holdBranch(){
+        heldBranch = playbackNodes.get(playbackNodes.size() - 1);
+        return new ArrayList<>(playbackNodes);
+    }
+    
+    void releaseBranch(){
+        heldBranch = null;
+    }
+    
+    private void addRewindState(byte[] savestate, byte b){
         pause = true;
         while (playbackNodes.get(playbackNodes.size()-1) != currentNode) {
             playbackNodes.remove(playbackNodes.size()-1);
-            moves.removeLast();
         }
-        currentNode = new TreeNode<>(level.save(), currentNode);
-        compressor.add(currentNode);
+        moves = moves.truncate(playbackNodes.size()-1).add(b);
+        if (arena.isSweepDue()) sweep();
+        currentNode = new StateNode(arena, savestate, currentNode);
+        nodeCount++;
+        if (savestate != null && !isCompressed(savestate)) compressor.add(currentNode);
         playbackNodes.add(currentNode);
-        moves.add(b);
         playbackIndex = playbackNodes.size() - 1;
+        if (journal != null) journal.move(b);
     }
     
     public void restart() {
@@ -82,26 +240,53 @@ public class SavestateManager implements Serializable {
             currentNode = currentNode.getParent();
             playbackIndex--;
         }
+        prefetch(1);
+        if (journal != null) journal.restart();
     }
     
     public void rewind(){
         if (currentNode.hasParent()) {
             currentNode = currentNode.getParent();
             playbackIndex--;
+            prefetch(-1);
+            if (journal != null) journal.rewind();
         }
     }
     
     public void playbackRewind(int index){
+        int direction = index < playbackIndex ? -1 : 1;
         currentNode = playbackNodes.get(index);
         playbackIndex = index;
+        prefetch(direction);
+        if (journal != null) journal.playbackRewind(index);
     }
     
     public void replay(){
         if (playbackIndex + 1 < playbackNodes.size()) {
             currentNode = playbackNodes.get(++playbackIndex);
+            prefetch(1);
+            if (journal != null) journal.replay();
         }
     }
     
+    /**
+     * If the branch has spilled savestates ahead of the current position,
+     * bring them back into memory in the background.
+     * @param direction 1 when moving forward, -1 when rewinding
+     */
+    private void prefetch(int direction){
+        int ahead = playbackIndex + direction * PREFETCH_DISTANCE / 2;
+        if (ahead < 0 || ahead >= playbackNodes.size()) ahead = direction > 0 ? playbackNodes.size() - 1 : 0;
+        TreeNode<byte[]> node = playbackNodes.get(ahead);
+        if (!(node instanceof StateNode) || !((StateNode) node).isSpilled()) return;
+        List<StateNode> nodes = new ArrayList<>(PREFETCH_DISTANCE);
+        for (int i = playbackIndex; i >= 0 && i < playbackNodes.size() && nodes.size() < PREFETCH_DISTANCE; i += direction) {
+            node = playbackNodes.get(i);
+            if (node instanceof StateNode) nodes.add((StateNode) node);
+        }
+        arena.prefetch(nodes);
+    }
+    
     public void togglePause() {
         pause = !pause;
     }
@@ -110,25 +295,66 @@ public class SavestateManager implements Serializable {
         return pause;
     }
     
+    /**
+     * @return the number of half ticks per second the last playback achieved.
+     */
+    public double getPlaybackTicksPerSecond() {
+        return playbackTicksPerSecond;
+    }
+    
+    /**
+     * Start playing back the solution on a dedicated thread.
+     */
+    public void startPlayback(SuperCC emulator) {
+        Thread thread = new Thread(() -> play(emulator), "Playback");
+        thread.setPriority(Thread.NORM_PRIORITY + 1);
+        playbackThread = thread;
+        thread.start();
+    }
+    
+    /**
+     * Play back the solution from the current position until it ends or is
+     * paused.
+     * <p>
+     *     Half ticks are scheduled against System.nanoTime deadlines, so time
+     *     spent simulating and drawing does not slow playback down. The level
+     *     is simulated continuously instead of loading every savestate; it is
+     *     only reloaded if the current node was changed from outside. At the
+     *     fastest speed the simulation is uncapped and frames are only drawn
+     *     at the display refresh rate, skipping the ones in between.
+     * </p>
+     */
     public void play(SuperCC emulator) {
-        final TickFlags replayNoSave = new TickFlags(true, false, false);
+        final TickFlags replayNoSave = new TickFlags(false, false, false);
         pause = false;
-        int levelNumber = emulator.getLevel().getLevelNumber();
-        try {
-            while (emulator.getLevel().getLevelNumber() == levelNumber && !pause && playbackIndex + 1 < playbackNodes.size()) {
-                emulator.getLevel().load(currentNode.getData());
-                byte b = SuperCC.lowerCase(moves.get(playbackIndex))[0];
-                boolean tickTwice = emulator.tick(b, replayNoSave);
-                Thread.sleep(playbackWaitTime);
-                if (tickTwice) {
-                    emulator.tick((byte) '-', replayNoSave);
-                    Thread.sleep(playbackWaitTime);
-                }
-                replay();
+        Level level = emulator.getLevel();
+        long frameInterval = NANOS_PER_SECOND / refreshRate();
+        long reportStart = System.nanoTime();
+        int halfTicks = 0;
+        nextHalfTick = reportStart;
+        lastFrame = reportStart - frameInterval;
+        framesDrawn = false;
+        TreeNode<byte[]> simulatedNode = null;
+        while (emulator.getLevel() == level && !pause && playbackIndex + 1 < playbackNodes.size()) {
+            if (currentNode != simulatedNode) level.load(getData(currentNode));
+            byte b = SuperCC.lowerCase(moves.get(playbackIndex))[0];
+            boolean tickTwice = emulator.tick(b, replayNoSave);
+            halfTicks++;
+            waitForNextHalfTick(emulator, frameInterval);
+            if (tickTwice) {
+                emulator.tickSecondHalf(b, replayNoSave);
+                halfTicks++;
+                waitForNextHalfTick(emulator, frameInterval);
+            }
+            replay();
+            simulatedNode = currentNode;
+            long elapsed = System.nanoTime() - reportStart;
+            if (elapsed >= NANOS_PER_SECOND) {
+                playbackTicksPerSecond = (double) halfTicks * NANOS_PER_SECOND / elapsed;
+                if (emulator.hasGui) emulator.showAction(String.format("Playing solution (%.0f half-ticks/s)", playbackTicksPerSecond));
+                reportStart += elapsed;
+                halfTicks = 0;
             }
-        }
-        catch (InterruptedException e) {
-            e.printStackTrace();
         }
         if (!pause) {
             emulator.getMainWindow().getPlayButton().doClick();
@@ -137,6 +363,48 @@ public class SavestateManager implements Serializable {
         emulator.repaint(false);
     }
     
+    private void waitForNextHalfTick(SuperCC emulator, long frameInterval) {
+        long now = System.nanoTime();
+        if (playbackWaitTime == AS_FAST_AS_POSSIBLE) {
+            if (now - lastFrame >= frameInterval) {
+                emulator.repaint(false);
+                countFrame(now);
+            }
+            nextHalfTick = now;
+            return;
+        }
+        emulator.repaint(false);
+        countFrame(now);
+        nextHalfTick += playbackWaitTime * NANOS_PER_MILLI;
+        now = System.nanoTime();
+        if (nextHalfTick - now < 0) {
+            nextHalfTick = now;                                     // Fell behind, don't try to catch up in a burst
+            return;
+        }
+        long remaining;
+        while (!pause && (remaining = nextHalfTick - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD) LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+            else Thread.yield();
+        }
+    }
+    
+    private void countFrame(long now) {
+        FRAMES.increment();
+        if (framesDrawn) FRAME_INTERVAL.record(now - lastFrame);   // The first frame of a playback has no interval
+        framesDrawn = true;
+        lastFrame = now;
+    }
+    
+    private static int refreshRate() {
+        try {
+            int refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDisplayMode().getRefreshRate();
+            if (refreshRate != DisplayMode.REFRESH_RATE_UNKNOWN) return refreshRate;
+        }
+        catch (HeadlessException e) { }
+        return DEFAULT_REFRESH_RATE;
+    }
+    
     public List<BufferedImage> play(SuperCC emulator, int numHalfTicks) {
         ArrayList<BufferedImage> images = new ArrayList<>();
         Gui window = emulator.getMainWindow();
@@ -170,14 +438,17 @@ public class SavestateManager implements Serializable {
     
     public void addSavestate(int key){
         savestates.put(key, currentNode);
-        savestateMoves.put(key, moves.clone());
+        savestateMoves.put(key, moves);
+        if (journal != null) journal.savestate(key);
     }
 
     void addUndesirableSavestate(){
         undesirableSavestates.add(currentNode); //Marks a level state as undesired so it can be checked for and alerted
+        if (journal != null) journal.undesirable();
     }
 
     boolean checkpointRecorder(int key) {
+        if (journal != null) journal.checkpoint(key);
         if (!recordingCheckpoints[key]) {
             checkpointStartIndex[key] = playbackIndex; //Store the current position in the move array so we can come back to it later
             recordingCheckpoints[key] = true;
@@ -194,15 +465,16 @@ public class SavestateManager implements Serializable {
         TreeNode<byte[]> loadedNode = savestates.get(key);
         if (loadedNode == null) return false;
         currentNode = loadedNode;
-        level.load(currentNode.getData());
+        level.load(getData(currentNode));
         if (!playbackNodes.contains(currentNode)) {
-            playbackNodes = currentNode.getHistory();
+            playbackNodes = new ArrayList<>(currentNode.getHistory());
             playbackIndex = playbackNodes.size() - 1;
-            moves = savestateMoves.get(key).clone();
+            moves = savestateMoves.get(key);
         }
         else {
             playbackIndex = playbackNodes.indexOf(currentNode);
         }
+        if (journal != null) journal.load(key);
         return true;
     }
     
@@ -215,13 +487,39 @@ public class SavestateManager implements Serializable {
     }
     
     public byte[] getSavestate(){
-        return currentNode.getData();
+        return getData(currentNode);
+    }
+    
+    /**
+     * @return a node's savestate, waiting for it if it is still being
+     * simulated in the background
+     */
+    byte[] getSavestate(TreeNode<byte[]> node){
+        return getData(node);
+    }
+    
+    /**
+     * Get a node's savestate, waiting for it if it has not been simulated
+     * yet.
+     */
+    private byte[] getData(TreeNode<byte[]> node){
+        byte[] data = node.getData();
+        if (data == null && materializer != null) data = materializer.await(node);
+        return data;
     }
 
+    /**
+     * Called on every tick, so savestates in the arena are compared where
+     * they are instead of being copied out.
+     */
     boolean isUndesirableSaveState() {
+        if (undesirableSavestates.isEmpty()) return false;
+        byte[] currentState = getData(currentNode);
         for (TreeNode<byte[]> node : undesirableSavestates) {
-            byte[] savedState = node.getData();
-            if (Arrays.equals(savedState, currentNode.getData())) return true;
+            if (node instanceof StateNode && ((StateNode) node).getDataLength() > 0) {
+                if (((StateNode) node).dataEquals(currentState)) return true;
+            }
+            else if (Arrays.equals(getData(node), currentState)) return true;
         }
         return false;
     }
@@ -232,7 +530,19 @@ public class SavestateManager implements Serializable {
         return state.getData();
     }
     
+    /**
+     * @return a copy of the moves of the current branch, including the ones
+     * after the current position
+     */
     public ByteList getMoveList(){
+        return moves.toByteList();
+    }
+    
+    /**
+     * @return the moves of the current branch, including the ones after the
+     * current position. This does not copy anything.
+     */
+    public MoveLog getMoveLog(){
         return moves;
     }
     
@@ -242,7 +552,7 @@ public class SavestateManager implements Serializable {
         return moves;
     }
 
-    public ByteList getCheckpoint(int key) {
+    public MoveLog getCheckpoint(int key) {
         return checkpoints[key];
     }
     
@@ -255,28 +565,242 @@ public class SavestateManager implements Serializable {
     }
     
     public SavestateManager(Level level){
-        currentNode = new TreeNode<>(level.save(), null);
+        currentNode = new StateNode(arena, level.save(), null);
+        nodeCount = 1;
         playbackNodes.add(currentNode);
-        moves = new ByteList();
+        moves = MoveLog.EMPTY;
         compressor = new SavestateCompressor();
     }
     
+    /**
+     * Put this session aside: wait for any savestates still being simulated,
+     * compress every savestate right away and stop the compressor thread.
+     * {@link #activate()} has to be called before the session is used again.
+     */
+    void deactivate(){
+        if (materializer != null) materializer.finish();
+        compressor.stop();
+        ByteList list = new ByteList();
+        Set<TreeNode<byte[]>> nodes = getAllNodes();
+        for (TreeNode<byte[]> node : nodes) {
+            if (node instanceof StateNode && ((StateNode) node).isOffHeap()) continue;
+            byte[] data = node.getData();
+            if (data != null && !isCompressed(data)) node.setData(compress(data, list));
+        }
+        nodeCount = nodes.size();
+        countPlainNodes(nodes);
+        arena.sweep(nodes, getHotNodes());
+    }
+    
+    /**
+     * Start using a session put aside by {@link #deactivate()} again.
+     */
+    void activate(){
+        compressor = new SavestateCompressor();
+    }
+    
+    /**
+     * Free the savestates of a session that will not be used again. Playback
+     * is stopped and any savestates still being simulated are waited for
+     * first, so that nothing reads or writes them after they are freed. The
+     * compressor thread is stopped, since it would otherwise keep every
+     * savestate of the session in memory, and the spill file is deleted.
+     */
+    void dispose(){
+        pause = true;
+        Thread playback = playbackThread;
+        if (playback != null && playback != Thread.currentThread()) {
+            try {
+                playback.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (materializer != null) materializer.finish();
+        compressor.stop();
+        arena.clear();
+    }
+    
+    /**
+     * @return an estimate of the memory used by the savestates and moves of
+     * every branch that can still be reached. Spilled savestates are not
+     * counted.
+     */
+    long estimateSize(){
+        long size = moves.size();                                   // Other branches mostly share their moves with this one
+        for (TreeNode<byte[]> node : getAllNodes()) {
+            size += NODE_OVERHEAD;
+            if (node instanceof StateNode) {
+                StateNode stateNode = (StateNode) node;
+                if (!stateNode.isSpilled()) size += stateNode.getDataLength();
+            }
+            else if (node.getData() != null) size += node.getData().length;
+        }
+        return size;
+    }
+    
+    /**
+     * Set the savestate gauges of {@link Metrics}: the number of nodes that
+     * can still be reached, the bytes of their compressed savestates, in
+     * memory and spilled, and of the ones still waiting to be compressed,
+     * and the number of savestates the compressor has yet to compress.
+     * Only reads the running counts kept as nodes are added, compressed,
+     * spilled and swept, so it can be called from any thread. Nodes dropped
+     * since the last sweep are still counted.
+     */
+    void sampleMetrics(){
+        NODES.set(nodeCount);
+        COMPRESSED_BYTES.set(arena.getMemoryBytes() + plainCompressedBytes);
+        UNCOMPRESSED_BYTES.set(arena.getHeapBytes() + plainUncompressedBytes);
+        SPILLED_BYTES.set(arena.getSpilledBytes());
+        COMPRESSOR_BACKLOG.set(compressor == null ? 0 : compressor.uncompressedSavestates.size());
+    }
+    
+    private void sweep(){
+        Set<TreeNode<byte[]>> nodes = getAllNodes();
+        nodeCount = nodes.size();
+        arena.sweep(nodes, getHotNodes());
+    }
+    
+    /**
+     * Count the savestates of nodes that are not StateNodes, which only come
+     * from deserializing a session and are not counted by the arena.
+     */
+    private void countPlainNodes(Set<TreeNode<byte[]>> nodes){
+        long compressed = 0, uncompressed = 0;
+        for (TreeNode<byte[]> node : nodes) {
+            if (node instanceof StateNode || node.getData() == null) continue;
+            if (isCompressed(node.getData())) compressed += node.getData().length;
+            else uncompressed += node.getData().length;
+        }
+        plainCompressedBytes = compressed;
+        plainUncompressedBytes = uncompressed;
+    }
+    
+    /**
+     * @return every node on a branch that can still be reached: the current
+     * branch, numbered savestates, undesirable states, the nodes still being
+     * simulated in the background and any branch being held.
+     */
+    private Set<TreeNode<byte[]>> getAllNodes(){
+        Set<TreeNode<byte[]>> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<TreeNode<byte[]>> leaves = new ArrayList<>(playbackNodes);
+        leaves.add(currentNode);
+        leaves.addAll(savestates.values());
+        leaves.addAll(undesirableSavestates);
+        if (materializer != null && !materializer.isFinished()) leaves.addAll(materializer.nodes);
+        if (heldBranch != null) leaves.add(heldBranch);
+        for (TreeNode<byte[]> node : leaves) {
+            while (node != null && nodes.add(node)) node = node.getParent();
+        }
+        return nodes;
+    }
+    
+    /**
+     * @return the nodes whose savestates should stay in memory: the ones
+     * close to the current position on the current branch, numbered
+     * savestates and undesirable states.
+     */
+    private Set<TreeNode<byte[]>> getHotNodes(){
+        Set<TreeNode<byte[]>> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        int from = Math.max(0, playbackIndex - HOT_RANGE);
+        int to = Math.min(playbackNodes.size(), playbackIndex + HOT_RANGE + 1);
+        if (from < to) nodes.addAll(playbackNodes.subList(from, to));
+        nodes.add(currentNode);
+        nodes.addAll(savestates.values());
+        nodes.addAll(undesirableSavestates);
+        return nodes;
+    }
+    
+    /**
+     * @return chip's position in every savestate up to the current one.
+     * Savestates that are still being simulated in the background are
+     * skipped instead of waited for.
+     */
     public LinkedList<Position> getChipHistory(){
         LinkedList<Position> chipHistory = new LinkedList<>();
-        for (TreeNode<byte[]> node : currentNode.getHistory()) chipHistory.add(SaveState.getChip(node.getData()).getPosition());
+        byte[] chip = new byte[3];
+        for (TreeNode<byte[]> node : currentNode.getHistory()) {
+            if (node instanceof StateNode) {
+                StateNode stateNode = (StateNode) node;
+                if (stateNode.getDataLength() == 0) continue;
+                chip[1] = stateNode.getByte(1);
+                chip[2] = stateNode.getByte(2);
+                chipHistory.add(SaveState.getChip(chip).getPosition());
+            }
+            else if (node.getData() != null) chipHistory.add(SaveState.getChip(node.getData()).getPosition());
+        }
         return chipHistory;
     }
     
+    private static final int LAYER_BG_LOCATION = 3,
+        LAYER_FG_LOCATION = LAYER_BG_LOCATION + 32 * 32,
+        LAYER_FG_END = LAYER_FG_LOCATION + 32 * 32;
+    
+    private static void rleCompress(byte[] uncompressed, ByteList out, int startIndex, int length){
+        int lastOrdinal = uncompressed[startIndex];
+        int ordinal;
+        int copyCount = -1;
+        for (int i = startIndex; i < startIndex + length; i++) {
+            ordinal = uncompressed[i];
+            if (ordinal == lastOrdinal){
+                if (copyCount == 255){
+                    out.add(RLE_MULTIPLE);
+                    out.add(copyCount);
+                    copyCount = 0;
+                    out.add(ordinal);
+                }
+                else copyCount++;
+            }
+            else {
+                if (copyCount != 0){
+                    out.add(RLE_MULTIPLE);
+                    out.add(copyCount);
+                }
+                out.add(lastOrdinal);
+                copyCount = 0;
+                lastOrdinal = ordinal;
+            }
+        }
+        if (copyCount != 0){
+            out.add(RLE_MULTIPLE);
+            out.add(copyCount);
+        }
+        out.add(lastOrdinal);
+        out.add(RLE_END);
+    }
+    
+    /**
+     * RLE compress both layers of an uncompressed savestate.
+     * @param uncompressedState a savestate written by {@link Level#save()}
+     * @param list a scratch list, cleared before use
+     * @return the compressed savestate
+     */
+    static byte[] compress(byte[] uncompressedState, ByteList list){
+        list.clear();
+        rleCompress(uncompressedState, list, LAYER_BG_LOCATION, 32*32);
+        rleCompress(uncompressedState, list, LAYER_FG_LOCATION, 32*32);
+        byte[] out = new byte[uncompressedState.length - 2 * 32 * 32 + list.size()];
+        out[0] = COMPRESSED_V2;
+        out[1] = uncompressedState[1];
+        out[2] = uncompressedState[2];
+        list.copy(out, 3);
+        System.arraycopy(uncompressedState, LAYER_FG_END, out, 3+list.size(), uncompressedState.length - 2 * 32 * 32 - 3);
+        return out;
+    }
+    
+    static boolean isCompressed(byte[] savestate){
+        return savestate[0] == COMPRESSED_V2 || savestate[0] == COMPRESSED_V1;
+    }
+    
     private class SavestateCompressor implements Runnable{
         
-        private static final int LAYER_BG_LOCATION = 3,
-            LAYER_FG_LOCATION = LAYER_BG_LOCATION + 32 * 32,
-            LAYER_FG_END = LAYER_FG_LOCATION + 32 * 32;
-        
         private final Stack<TreeNode<byte[]>> uncompressedSavestates;
         private final ByteList list;
         
         private final Thread thread;
+        private volatile boolean stopped;
         
         void add(TreeNode<byte[]> n){
             uncompressedSavestates.add(n);
@@ -285,17 +809,37 @@ public class SavestateManager implements Serializable {
             }
         }
         
+        /**
+         * Stop the thread and wait for it to finish the savestate it is
+         * compressing. Savestates still waiting are left uncompressed.
+         */
+        void stop(){
+            stopped = true;
+            synchronized(thread) {
+                thread.notify();
+            }
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
         @Override
         public void run(){
-            while (true) {
+            while (!stopped) {
                 try {
                     if (uncompressedSavestates.isEmpty()) {
                         synchronized (thread) {
-                            thread.wait();
+                            if (!stopped && uncompressedSavestates.isEmpty()) thread.wait();
                         }
                     }
                     else {
-                        compress(uncompressedSavestates.pop());
+                        TreeNode<byte[]> n = uncompressedSavestates.pop();
+                        long start = System.nanoTime();
+                        n.setData(compress(n.getData(), list));
+                        COMPRESS_TIME.record(System.nanoTime() - start);
                     }
                 }
                 catch (Exception e) {
@@ -304,58 +848,130 @@ public class SavestateManager implements Serializable {
             }
         }
         
-        private void rleCompress(byte[] uncompressed, ByteList out, int startIndex, int length){
-            int lastOrdinal = uncompressed[startIndex];
-            int ordinal;
-            int copyCount = -1;
-            for (int i = startIndex; i < startIndex + length; i++) {
-                ordinal = uncompressed[i];
-                if (ordinal == lastOrdinal){
-                    if (copyCount == 255){
-                        out.add(RLE_MULTIPLE);
-                        out.add(copyCount);
-                        copyCount = 0;
-                        out.add(ordinal);
-                    }
-                    else copyCount++;
+        SavestateCompressor(){
+            uncompressedSavestates = new Stack<>();
+            list = new ByteList();
+            thread = new Thread(() -> run());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        
+    }
+    
+    /**
+     * Simulates the savestates left out by
+     * {@link #addRewindStatesLater(Level, byte[], byte[][], BiConsumer)}.
+     */
+    private class Materializer implements Runnable{
+        
+        private final Level level;
+        private final List<TreeNode<byte[]>> nodes;                 // nodes.get(0) always has its savestate
+        private final byte[] moves;                                 // moves[i] leads from node i to node i+1
+        private final int firstDepth;
+        private final Runnable onFinished;
+        private final Thread thread;
+        private int requested = -1;
+        private boolean finished;
+        
+        /**
+         * Wait until a node of this materializer has its savestate,
+         * simulating it before anything else.
+         */
+        synchronized byte[] await(TreeNode<byte[]> node){
+            int index = node.depth() - firstDepth;
+            if (index < 0 || index >= nodes.size() || nodes.get(index) != node) return node.getData();
+            while (node.getData() == null && !finished) {
+                requested = index;
+                try {
+                    wait();
                 }
-                else {
-                    if (copyCount != 0){
-                        out.add(RLE_MULTIPLE);
-                        out.add(copyCount);
-                    }
-                    out.add(lastOrdinal);
-                    copyCount = 0;
-                    lastOrdinal = ordinal;
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return node.getData();
+        }
+        
+        synchronized boolean isFinished(){
+            return finished;
+        }
+        
+        /**
+         * Wait until every savestate has been simulated.
+         */
+        synchronized void finish(){
+            while (!finished) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
-            if (copyCount != 0){
-                out.add(RLE_MULTIPLE);
-                out.add(copyCount);
+        }
+        
+        /**
+         * @return the next node to simulate: the requested one if there is
+         * one, otherwise the last one without a savestate, or -1 if there is
+         * none left.
+         */
+        private synchronized int nextMissing(){
+            if (requested >= 0 && nodes.get(requested).getData() == null) return requested;
+            requested = -1;
+            for (int i = nodes.size() - 1; i > 0; i--) {
+                if (nodes.get(i).getData() == null) return i;
             }
-            out.add(lastOrdinal);
-            out.add(RLE_END);
+            return -1;
         }
         
-        private void compress(TreeNode<byte[]> n){
-            list.clear();
-            byte[] uncompressedState = n.getData();
-            rleCompress(uncompressedState, list, LAYER_BG_LOCATION, 32*32);
-            rleCompress(uncompressedState, list, LAYER_FG_LOCATION, 32*32);
-            byte[] out = new byte[uncompressedState.length - 2 * 32 * 32 + list.size()];
-            out[0] = COMPRESSED_V2;
-            out[1] = uncompressedState[1];
-            out[2] = uncompressedState[2];
-            list.copy(out, 3);
-            System.arraycopy(uncompressedState, LAYER_FG_END, out, 3+list.size(), uncompressedState.length - 2 * 32 * 32 - 3);
-            n.setData(out);
+        private synchronized boolean requestedElsewhere(int start, int end){
+            return requested >= 0 && (requested <= start || requested >= end);
         }
         
-        SavestateCompressor(){
-            uncompressedSavestates = new Stack<>();
-            list = new ByteList();
-            thread = new Thread(() -> run());
-            thread.setPriority(Thread.MIN_PRIORITY);
+        @Override
+        public void run(){
+            try {
+                int missing;
+                while ((missing = nextMissing()) >= 0) {
+                    int start = missing - 1;
+                    while (nodes.get(start).getData() == null) start--;
+                    int end = missing + 1;
+                    while (end < nodes.size() && nodes.get(end).getData() == null) end++;
+                    level.load(nodes.get(start).getData());
+                    for (int i = start + 1; i < end; i++) {
+                        SuperCC.tickDetached(level, moves[i - 1]);
+                        byte[] savestate = level.save();
+                        synchronized (this) {
+                            nodes.get(i).setData(savestate);
+                            notifyAll();
+                        }
+                        compressor.add(nodes.get(i));
+                        if (requestedElsewhere(start, end)) break;
+                    }
+                }
+                if (onFinished != null) onFinished.run();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            finally {
+                synchronized (this) {
+                    finished = true;
+                    notifyAll();
+                }
+            }
+        }
+        
+        Materializer(Level level, List<TreeNode<byte[]>> nodes, byte[] moves, Runnable onFinished){
+            this.level = level;
+            this.nodes = nodes;
+            this.moves = moves;
+            this.onFinished = onFinished;
+            firstDepth = nodes.get(0).depth();
+            thread = new Thread(this, "Savestate materializer");
+            thread.setDaemon(true);
             thread.start();
         }
         
@@ -0,0 +1,147 @@
+package emulator;
+
+import game.Level;
+import game.Position;
+import game.Tile;
+import util.TreeNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Finds the first or last savestate on the current branch of the emulator's
+ * {@link SavestateManager} that satisfies a condition, as an alternative to
+ * stepping through it with the time slider.
+ * <p>
+ * The branch is split into chunks that are loaded into scratch levels and
+ * tested on a pool of threads. Chunks are handed out in the order of the
+ * search, so once a chunk has a match every chunk after it is skipped.
+ * Savestates are read the same way whether or not they have been compressed
+ * yet.
+ * </p>
+ */
+public class SavestateSearch {
+
+    static final int CHUNK_SIZE = 512;
+
+    /**
+     * @return the index in {@link SavestateManager#getPlaybackNodes()} of the
+     * first savestate satisfying the predicate, or -1 if there is none
+     */
+    public static int first(SuperCC emulator, Predicate<Level> predicate, int threads) throws IOException, InterruptedException {
+        return search(emulator.getSavestates(), scratchLevels(emulator, threads), predicate, false);
+    }
+
+    /**
+     * @return the index in {@link SavestateManager#getPlaybackNodes()} of the
+     * last savestate satisfying the predicate, or -1 if there is none
+     */
+    public static int last(SuperCC emulator, Predicate<Level> predicate, int threads) throws IOException, InterruptedException {
+        return search(emulator.getSavestates(), scratchLevels(emulator, threads), predicate, true);
+    }
+
+    /**
+     * Move the emulator to a savestate on the current branch, as the time
+     * slider does.
+     */
+    public static void rewind(SuperCC emulator, int index) {
+        SavestateManager savestates = emulator.getSavestates();
+        savestates.playbackRewind(index);
+        emulator.getLevel().load(savestates.getSavestate());
+    }
+
+    public static Predicate<Level> chipAt(Position position) {
+        return level -> level.getChip().getPosition().equals(position);
+    }
+
+    /**
+     * @return a predicate for chip standing on a tile, e.g. ice or a button
+     */
+    public static Predicate<Level> chipOn(Tile tile) {
+        return level -> level.getLayerBG().get(level.getChip().getPosition()) == tile;
+    }
+
+    public static Predicate<Level> monsterCount(int count) {
+        return level -> level.getMonsterList().size() == count;
+    }
+
+    /**
+     * @param key 0 to 3 for blue, red, green and yellow
+     */
+    public static Predicate<Level> keyCount(int key, int count) {
+        return level -> level.getKeys()[key] == count;
+    }
+
+    public static Predicate<Level> chipsLeft(int count) {
+        return level -> level.getChipsLeft() == count;
+    }
+
+    private static List<Level> scratchLevels(SuperCC emulator, int threads) throws IOException {
+        Level level = emulator.getLevel();
+        int chunks = (emulator.getSavestates().getPlaybackNodes().size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        threads = Math.max(1, Math.min(threads, chunks));
+        List<Level> levels = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Level scratch = emulator.parseLevel(level.getLevelNumber(), level.getRngSeed(), level.getStep());
+            scratch.setEventLog(null);
+            levels.add(scratch);
+        }
+        return levels;
+    }
+
+    /**
+     * Search the current branch with one thread per scratch level. Must not
+     * run while the branch is being changed.
+     * @param levels levels with the same level number, seed and step as the
+     *               savestates, which are overwritten
+     * @param last true to find the last match instead of the first
+     * @return the index of the match, or -1 if there is none
+     */
+    static int search(SavestateManager savestates, List<Level> levels, Predicate<Level> predicate, boolean last)
+        throws InterruptedException {
+        List<TreeNode<byte[]>> nodes = new ArrayList<>(savestates.getPlaybackNodes());
+        int chunks = (nodes.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger found = new AtomicInteger(last ? -1 : nodes.size());
+        ExecutorService pool = Executors.newFixedThreadPool(levels.size());
+        List<Future<?>> futures = new ArrayList<>(levels.size());
+        for (Level level : levels) {
+            futures.add(pool.submit(() -> {
+                int n;
+                while ((n = next.getAndIncrement()) < chunks) {
+                    int chunk = last ? chunks - 1 - n : n;
+                    int start = chunk * CHUNK_SIZE;
+                    int end = Math.min(nodes.size(), start + CHUNK_SIZE);
+                    if (last ? end <= found.get() : start >= found.get()) return;   // So is every chunk after it
+                    for (int i = last ? end - 1 : start; last ? i >= start : i < end; i += last ? -1 : 1) {
+                        byte[] savestate = savestates.getSavestate(nodes.get(i));
+                        if (savestate == null) continue;
+                        level.load(savestate);
+                        if (predicate.test(level)) {
+                            if (last) found.accumulateAndGet(i, Math::max);
+                            else found.accumulateAndGet(i, Math::min);
+                            break;
+                        }
+                    }
+                }
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Future<?> future : futures) future.get();
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        int index = found.get();
+        return index == nodes.size() ? -1 : index;
+    }
+
+}
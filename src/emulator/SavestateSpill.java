@@ -0,0 +1,99 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only, memory-mapped file that a SavestateArena moves cold
+ * savestates to. The file is mapped in 64 MB regions and no savestate
+ * crosses a region boundary. Savestates are never overwritten, so a
+ * savestate that is spilled, read back and spilled again keeps its offset.
+ * The arena replaces the file with a compacted copy once most of it is dead.
+ * <p>
+ * Not thread safe: the arena only uses it under its own lock.
+ * </p>
+ */
+class SavestateSpill {
+
+    private static final int REGION_SIZE = 1 << 26;                 // 64 MB
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private long end;
+
+    private ByteBuffer region(long offset) throws IOException {
+        int region = (int) (offset / REGION_SIZE);
+        while (regions.size() <= region) {
+            regions.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * REGION_SIZE, REGION_SIZE));
+        }
+        return regions.get(region);
+    }
+
+    /**
+     * @return the offset the savestate was written to
+     */
+    long write(byte[] savestate) throws IOException {
+        if (end % REGION_SIZE + savestate.length > REGION_SIZE) end = (end / REGION_SIZE + 1) * REGION_SIZE;
+        long offset = end;
+        ByteBuffer region = region(offset);
+        region.position((int) (offset % REGION_SIZE));
+        region.put(savestate);
+        end += savestate.length;
+        return offset;
+    }
+
+    byte[] read(long offset, int length) throws IOException {
+        byte[] savestate = new byte[length];
+        ByteBuffer region = region(offset);
+        region.position((int) (offset % REGION_SIZE));
+        region.get(savestate);
+        return savestate;
+    }
+
+    byte get(long offset) throws IOException {
+        return region(offset).get((int) (offset % REGION_SIZE));
+    }
+
+    /**
+     * @return the number of bytes written to the file
+     */
+    long size() {
+        return end;
+    }
+
+    /**
+     * Close and delete the file. If the regions are still mapped the file is
+     * deleted when the JVM exits instead.
+     */
+    void close() {
+        regions.clear();
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!file.delete()) file.deleteOnExit();
+    }
+
+    /**
+     * Create a new, empty spill file.
+     * @param directory the directory to create it in
+     */
+    SavestateSpill(File directory) throws IOException {
+        directory.mkdirs();
+        file = File.createTempFile("session", ".spill", directory);
+        file.deleteOnExit();
+        channel = FileChannel.open(file.toPath(), READ, WRITE);
+    }
+
+}
@@ -0,0 +1,91 @@
+package emulator;
+
+import game.Level;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the sessions of recently played levels of the current levelset in
+ * memory, so switching back to a level restores its level, rewind tree and
+ * solution instead of starting over.
+ * <p>
+ * Sessions that are put aside have every savestate compressed and their
+ * compressor thread stopped. The least recently used sessions are dropped
+ * once all of them together use more than the memory ceiling.
+ * </p>
+ */
+class SessionCache {
+    
+    private final LinkedHashMap<Integer, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private final long ceiling;
+    private long size;
+    
+    static class Session {
+        final Level level;
+        final SavestateManager savestates;
+        final Solution solution;
+        private long size;
+        
+        Session(Level level, SavestateManager savestates, Solution solution) {
+            this.level = level;
+            this.savestates = savestates;
+            this.solution = solution;
+        }
+    }
+    
+    /**
+     * Put a session aside. Any older session of the same level is dropped.
+     */
+    void put(Level level, SavestateManager savestates, Solution solution) {
+        Session session = new Session(level, savestates, solution);
+        savestates.deactivate();
+        session.size = savestates.estimateSize();
+        remove(sessions.get(level.getLevelNumber()));
+        sessions.put(level.getLevelNumber(), session);
+        size += session.size;
+        Iterator<Session> eldest = sessions.values().iterator();
+        while (size > ceiling && eldest.hasNext()) {
+            Session evicted = eldest.next();
+            eldest.remove();
+            size -= evicted.size;
+            evicted.savestates.dispose();
+        }
+    }
+    
+    /**
+     * Take a level's session out of the cache.
+     * @return the session, ready to be used again, or null if there is none
+     */
+    Session take(int levelNumber) {
+        Session session = sessions.remove(levelNumber);
+        if (session == null) return null;
+        size -= session.size;
+        session.savestates.activate();
+        return session;
+    }
+    
+    private void remove(Session session) {
+        if (session == null) return;
+        sessions.remove(session.level.getLevelNumber());
+        size -= session.size;
+        session.savestates.dispose();
+    }
+    
+    /**
+     * Drop every session, e.g. because another levelset was opened.
+     */
+    void clear() {
+        for (Session session : sessions.values()) session.savestates.dispose();
+        sessions.clear();
+        size = 0;
+    }
+    
+    /**
+     * @param megabytes the memory all sessions together may use
+     */
+    SessionCache(int megabytes) {
+        ceiling = megabytes * 1024L * 1024L;
+    }
+    
+}
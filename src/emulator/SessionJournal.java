@@ -0,0 +1,290 @@
+package emulator;
+
+import game.Level;
+import game.Step;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only write-ahead log of everything that changes a
+ * SavestateManager: every move, numbered savestate, checkpoint, rewind and
+ * branch. Replaying the journal from the start of the level reproduces the
+ * session, so a crash only loses the last commit interval.
+ * <p>
+ * Records are appended to an in-memory buffer and written out by a
+ * background thread, which forces the file to disk once per commit interval
+ * no matter how many records arrived in between (group commit).
+ * </p>
+ * Cheats are not journaled, so a session that used them will recover
+ * without them.
+ */
+public class SessionJournal {
+
+    private static final int SIGNATURE = 0x53434A31;            // "SCJ1"
+    static final int HEADER_LENGTH = 4 + 4 + 4 + 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int COMMIT_INTERVAL = 250;              // ms
+
+    static final byte MOVE = 1,
+        SAVESTATE = 2,
+        LOAD = 3,
+        CHECKPOINT = 4,
+        UNDESIRABLE = 5,
+        REWIND = 6,
+        REPLAY = 7,
+        RESTART = 8,
+        PLAYBACK_REWIND = 9;
+
+    private final File file;
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer flushBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Thread committer;
+    private volatile boolean closed;
+
+    public File getFile() {
+        return file;
+    }
+
+    void move(byte b) {
+        append(MOVE, b, 0);
+    }
+    void savestate(int key) {
+        append(SAVESTATE, 0, key);
+    }
+    void load(int key) {
+        append(LOAD, 0, key);
+    }
+    void checkpoint(int key) {
+        append(CHECKPOINT, 0, key);
+    }
+    void undesirable() {
+        append(UNDESIRABLE, 0, 0);
+    }
+    void rewind() {
+        append(REWIND, 0, 0);
+    }
+    void replay() {
+        append(REPLAY, 0, 0);
+    }
+    void restart() {
+        append(RESTART, 0, 0);
+    }
+    void playbackRewind(int index) {
+        append(PLAYBACK_REWIND, 0, index);
+    }
+
+    private synchronized void append(byte type, int b, int n) {
+        if (closed) return;
+        if (buffer.remaining() < 5) {
+            try {
+                swapAndWrite();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        buffer.put(type);
+        if (type == MOVE) buffer.put((byte) b);
+        else if (type == SAVESTATE || type == LOAD || type == CHECKPOINT || type == PLAYBACK_REWIND) buffer.putInt(n);
+    }
+
+    /**
+     * Hands the filled buffer over to the channel and continues appending into
+     * the other one. Must be called while holding the lock.
+     */
+    private void swapAndWrite() throws IOException {
+        ByteBuffer full = buffer;
+        buffer = flushBuffer;
+        flushBuffer = full;
+        full.flip();
+        while (full.hasRemaining()) channel.write(full);
+        full.clear();
+    }
+
+    /**
+     * Writes out everything appended so far and forces it to disk.
+     */
+    public void commit() throws IOException {
+        synchronized (this) {
+            if (closed || buffer.position() == 0) return;
+            swapAndWrite();
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Commits any pending records and closes the journal. The file is kept so
+     * that the session can be recovered later.
+     */
+    public void close() {
+        try {
+            commit();
+            synchronized (this) {
+                closed = true;
+                channel.close();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        committer.interrupt();
+    }
+
+    /**
+     * Closes the journal and deletes the file. Used when the session is
+     * deliberately abandoned, e.g. by switching to another level.
+     */
+    public void discard() {
+        close();
+        file.delete();
+    }
+
+    /**
+     * @param file the journal file
+     * @return true if the file holds a journal with at least one record
+     */
+    public static boolean hasEvents(File file) {
+        return file.isFile() && file.length() > HEADER_LENGTH;
+    }
+
+    /**
+     * Read a journal file completely into memory.
+     * @param file the journal file
+     * @return the recorded session
+     */
+    public static Session read(File file) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (in.remaining() < HEADER_LENGTH || in.getInt() != SIGNATURE) throw new IOException("Invalid journal");
+        Session session = new Session(in.getInt(), in.getInt(), Step.values()[in.get()]);
+        while (in.hasRemaining()) {
+            byte type = in.get();
+            int n = 0;
+            if (type == MOVE) {
+                if (!in.hasRemaining()) break;                      // torn record at the end of the file
+                n = in.get();
+            }
+            else if (type == SAVESTATE || type == LOAD || type == CHECKPOINT || type == PLAYBACK_REWIND) {
+                if (in.remaining() < 4) break;
+                n = in.getInt();
+            }
+            else if (type < MOVE || type > PLAYBACK_REWIND) break;
+            session.types.add(type);
+            session.values.add(n);
+        }
+        return session;
+    }
+
+    /**
+     * A session read back from a journal.
+     */
+    public static class Session {
+
+        public final int levelNumber;
+        public final int rngSeed;
+        public final Step step;
+        private final List<Byte> types = new ArrayList<>();
+        private final List<Integer> values = new ArrayList<>();
+
+        public int size() {
+            return types.size();
+        }
+
+        /**
+         * Replay the session into the emulator. The emulator must already have
+         * this session's level loaded with the same seed and step, and the
+         * replayed events are journaled again by the emulator's own journal.
+         */
+        public void replay(SuperCC emulator) {
+            SavestateManager savestates = emulator.getSavestates();
+            Level level = emulator.getLevel();
+            for (int i = 0; i < types.size(); i++) {
+                int n = values.get(i);
+                switch (types.get(i)) {
+                    case MOVE:
+                        emulator.tick(SuperCC.lowerCase((byte) n)[0], TickFlags.PRELOADING);
+                        break;
+                    case SAVESTATE:
+                        savestates.addSavestate(n);
+                        break;
+                    case LOAD:
+                        savestates.load(n, level);
+                        break;
+                    case CHECKPOINT:
+                        savestates.checkpointRecorder(n);
+                        break;
+                    case UNDESIRABLE:
+                        savestates.addUndesirableSavestate();
+                        break;
+                    case REWIND:
+                        savestates.rewind();
+                        level.load(savestates.getSavestate());
+                        break;
+                    case REPLAY:
+                        savestates.replay();
+                        level.load(savestates.getSavestate());
+                        break;
+                    case RESTART:
+                        savestates.restart();
+                        level.load(savestates.getSavestate());
+                        break;
+                    case PLAYBACK_REWIND:
+                        if (n < savestates.getPlaybackNodes().size()) {
+                            savestates.playbackRewind(n);
+                            level.load(savestates.getSavestate());
+                        }
+                        break;
+                }
+            }
+        }
+
+        Session(int levelNumber, int rngSeed, Step step) {
+            this.levelNumber = levelNumber;
+            this.rngSeed = rngSeed;
+            this.step = step;
+        }
+    }
+
+    /**
+     * Start a new journal for a freshly loaded level, truncating any previous
+     * journal in the same file.
+     * @param file the journal file
+     * @param level the level in its starting state
+     */
+    public SessionJournal(File file, Level level) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(SIGNATURE);
+        buffer.putInt(level.getLevelNumber());
+        buffer.putInt(level.getRngSeed());
+        buffer.put((byte) level.getStep().ordinal());
+        commit();
+        committer = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(COMMIT_INTERVAL);
+                    commit();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                catch (IOException e) {
+                    if (!closed) e.printStackTrace();
+                }
+            }
+        });
+        committer.setDaemon(true);
+        committer.setPriority(Thread.MIN_PRIORITY);
+        committer.start();
+    }
+
+}
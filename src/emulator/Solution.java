@@ -1,16 +1,23 @@
 package emulator;
 
+import game.Direction;
 import game.Level;
 import game.Position;
 import game.Step;
+import game.Tile;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import util.ByteList;
+import util.MoveLog;
+import util.TreeNode;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static emulator.SuperCC.*;
 
@@ -21,6 +28,9 @@ public class Solution{
     public static final int QUARTER_MOVES = 0,
                             HALF_MOVES = 1,
                             SUCC_MOVES = 2;
+    
+    public static final int GRACE_TICKS = 100;                     // Ticks a level gets to end after the last move
+    private static final int KEYFRAME_INTERVAL = 64;               // Moves between savestates kept by loadInstantly
 
     public byte[] halfMoves;
     public int rngSeed;
@@ -43,55 +53,275 @@ public class Solution{
     public void load(SuperCC emulator, TickFlags tickFlags){
         emulator.loadLevel(emulator.getLevel().getLevelNumber(), rngSeed, step, false);
         Level level = emulator.getLevel();
+        StateCache cache = tickFlags.save ? emulator.getStateCache() : null;
+        int[] nodeEnds = new int[halfMoves.length + 1];                 // Half moves consumed up to each savestate
+        int nodes = 0;
+        if (cache != null) nodes = cache.restore(emulator, this, nodeEnds);
+        int restored = nodes;
         try{
-            for (int move = 0; move < halfMoves.length; move++){
-                byte b = halfMoves[move];
-                if (b == CHIP_RELATIVE_CLICK){
-                    int x = halfMoves[++move] - 9;
-                    int y = halfMoves[++move] - 9;
-                    if (x == 0 && y == 0){                      // idk about this but it fixes thief street
-                        b = '-';
-                    }
-                    else {
-                        Position chipPosition = level.getChip().getPosition();
-                        Position clickPosition = chipPosition.add(x, y);
-                        level.setClick(clickPosition.getIndex());
-                        b = clickPosition.clickByte(chipPosition);
-                    }
+            for (int move = nodeEnds[nodes]; move < halfMoves.length; move++){
+                if (level.getChip().isDead()) {
+                    break;
                 }
+                byte b = readMove(level, move);
+                move = moveEnd(move);
                 boolean tickedTwice = emulator.tick(b, tickFlags);
                 if (tickedTwice) move++;
+                nodeEnds[++nodes] = move + 1;
+            }
+        }
+        catch (Exception e){
+            emulator.throwError("Something went wrong:\n"+e.getMessage());
+        }
+        if (cache != null && nodes > restored) cache.store(emulator, this, nodeEnds, nodes);
+        if(emulator.hasGui) {
+            emulator.getMainWindow().repaint(true);
+        }
+    }
+    
+    /**
+     * Load the solution without waiting for all of its savestates. The moves
+     * are simulated without saving and the final state is shown at once.
+     * Only every KEYFRAME_INTERVAL-th savestate is kept, the ones in between
+     * are simulated again on a background thread by
+     * {@link SavestateManager#addRewindStatesLater(Level, byte[], byte[][], BiConsumer)}.
+     */
+    public void loadInstantly(SuperCC emulator){
+        emulator.loadLevel(emulator.getLevel().getLevelNumber(), rngSeed, step, false);
+        Level level = emulator.getLevel();
+        SavestateManager savestates = emulator.getSavestates();
+        StateCache cache = emulator.getStateCache();
+        int[] nodeEnds = new int[halfMoves.length + 1];
+        int nodes = 0;
+        if (cache != null) nodes = cache.restore(emulator, this, nodeEnds);
+        ByteList moves = new ByteList();
+        List<byte[]> states = new ArrayList<>();
+        try{
+            for (int move = nodeEnds[nodes]; move < halfMoves.length; move++){
                 if (level.getChip().isDead()) {
                     break;
                 }
+                byte b = readMove(level, move);
+                move = moveEnd(move);
+                boolean tickedTwice = emulator.tick(b, TickFlags.LIGHT);
+                if (tickedTwice) {
+                    move++;
+                    if (b != '-') b = capital(b);
+                }
+                moves.add(b);
+                states.add(moves.size() % KEYFRAME_INTERVAL == 0 ? level.save() : null);
+                nodeEnds[++nodes] = move + 1;
             }
         }
         catch (Exception e){
             emulator.throwError("Something went wrong:\n"+e.getMessage());
         }
+        if (!states.isEmpty()) {
+            states.set(states.size() - 1, level.save());
+            BiConsumer<List<TreeNode<byte[]>>, MoveLog> store = null;
+            if (cache != null) store = cache.storeLater(emulator, this, nodeEnds, nodes);
+            try {
+                Level backgroundLevel = emulator.parseLevel(level.getLevelNumber(), rngSeed, step);
+                savestates.addRewindStatesLater(backgroundLevel, moves.toArray(), states.toArray(new byte[0][]), store);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                emulator.throwError("Could not load level: "+e.getMessage());
+            }
+        }
+        if(emulator.hasGui) {
+            emulator.getMainWindow().repaint(true);
+        }
+    }
+    
+    /**
+     * Load the solution over the current branch, keeping the savestates the
+     * two have in common. The moves both start with are not simulated again.
+     * The moves after that are simulated until the level is in the same
+     * state as the old branch was at the same point of the moves both end
+     * with. From there on the old branch's savestates are spliced back in
+     * instead of being simulated again, so changing a few moves in the middle
+     * of a long solution only costs a few ticks.
+     * <p>
+     * If the current level has a different seed or step the solution is
+     * loaded with {@link #loadInstantly(SuperCC)} instead.
+     * </p>
+     * @return the number of moves that were simulated
+     */
+    public int loadSpliced(SuperCC emulator){
+        Level level = emulator.getLevel();
+        if (level.getRngSeed() != rngSeed || level.getStep() != step) {
+            loadInstantly(emulator);
+            return halfMoves.length;
+        }
+        SavestateManager savestates = emulator.getSavestates();
+        List<TreeNode<byte[]>> oldNodes = savestates.holdBranch();
+        MoveLog oldMoves = savestates.getMoveLog();
+        int oldCount = Math.min(oldNodes.size() - 1, oldMoves.size());
+        byte[] oldHalfMoves = new Solution(oldMoves.truncate(oldCount).toByteList(), rngSeed, step).halfMoves;
+        int[] oldEnds = new int[oldCount + 1];                          // Half moves consumed up to each old savestate
+        for (int i = 0; i < oldCount; i++) oldEnds[i + 1] = oldEnds[i] + lowerCase(oldMoves.get(i)).length;
+        
+        int length = Math.min(halfMoves.length, oldHalfMoves.length);
+        int prefix = 0;
+        while (prefix < length && halfMoves[prefix] == oldHalfMoves[prefix]) prefix++;
+        int suffix = 0;
+        while (suffix < length - prefix
+               && halfMoves[halfMoves.length - 1 - suffix] == oldHalfMoves[oldHalfMoves.length - 1 - suffix]) suffix++;
+        int shift = halfMoves.length - oldHalfMoves.length;
+        
+        int start = 0;
+        while (start < oldCount && oldEnds[start + 1] <= prefix) start++;
+        savestates.playbackRewind(start);
+        level.load(savestates.getSavestate());
+        int simulated = 0;
+        int oldNode = start;
+        ByteList list = new ByteList();
+        try{
+            for (int move = oldEnds[start]; move < halfMoves.length; move++){
+                if (level.getChip().isDead()) {
+                    break;
+                }
+                byte b = readMove(level, move);
+                move = moveEnd(move);
+                boolean tickedTwice = emulator.tick(b, TickFlags.PRELOADING);
+                if (tickedTwice) move++;
+                simulated++;
+                
+                int end = move + 1;
+                if (halfMoves.length - end > suffix) continue;          // The rest of the moves differ from the old ones
+                while (oldNode < oldCount && oldEnds[oldNode] < end - shift) oldNode++;
+                if (oldEnds[oldNode] != end - shift) continue;
+                if (sameState(level.save(), savestates.getSavestate(oldNodes.get(oldNode)), list)) {
+                    savestates.addRewindStates(oldNodes, oldMoves, oldNode, oldCount);
+                    level.load(savestates.getSavestate());
+                    break;
+                }
+            }
+        }
+        catch (Exception e){
+            emulator.throwError("Something went wrong:\n"+e.getMessage());
+        }
+        finally {
+            savestates.releaseBranch();
+        }
         if(emulator.hasGui) {
             emulator.getMainWindow().repaint(true);
         }
+        return simulated;
+    }
+    
+    /**
+     * Tick a level other than the emulator's own with one move of the
+     * solution, the same way {@link #load(SuperCC)} does.
+     * @param move the index of the half move to tick
+     * @return the index of the half move after it
+     */
+    int tickDetached(Level level, int move){
+        return tickDetached(level, move, null);
+    }
+    
+    /**
+     * @param afterTick called after each tick, or null
+     */
+    int tickDetached(Level level, int move, Consumer<Level> afterTick){
+        byte b = readMove(level, move);
+        move = moveEnd(move);
+        if (SuperCC.tickDetached(level, b, afterTick)) move++;
+        return move + 1;
+    }
+    
+    /**
+     * Play the solution on a level other than the emulator's own, until it
+     * runs out of moves, chip dies or the level is completed, then wait for
+     * the level to end the way {@link SuperCC} does when testing a tws file.
+     * @param graceTicks the most ticks to wait after the last move
+     * @param afterTick called after each tick, or null
+     * @return true if the level was completed
+     */
+    public boolean playDetached(Level level, int graceTicks, Consumer<Level> afterTick){
+        for (int move = 0; move < halfMoves.length && !level.getChip().isDead() && !isCompleted(level); ) {
+            move = tickDetached(level, move, afterTick);
+        }
+        waitForEnd(level, graceTicks, afterTick);
+        return isCompleted(level);
+    }
+    
+    public boolean playDetached(Level level, int graceTicks){
+        return playDetached(level, graceTicks, null);
+    }
+    
+    /**
+     * Wait until chip dies or the level is completed.
+     * @param graceTicks the most ticks to wait
+     * @param afterTick called after each tick, or null
+     * @return the number of ticks waited
+     */
+    static int waitForEnd(Level level, int graceTicks, Consumer<Level> afterTick){
+        int waits = 0;
+        for (; waits < graceTicks && !level.getChip().isDead() && !isCompleted(level); waits++) {
+            level.tick(WAIT, new Direction[] {});
+            if (afterTick != null) afterTick.accept(level);
+        }
+        return waits;
+    }
+    
+    /**
+     * @return true if chip has left the level through an exit
+     */
+    public static boolean isCompleted(Level level){
+        return level.getLayerFG().get(level.getChip().getPosition()) == Tile.EXITED_CHIP || level.isCompleted();
+    }
+    
+    /**
+     * Read the move at a half move index. A mouse move sets the level's
+     * click target and is read as the move towards it.
+     * @return the move to tick
+     */
+    private byte readMove(Level level, int move){
+        byte b = halfMoves[move];
+        if (b == CHIP_RELATIVE_CLICK){
+            int x = halfMoves[move + 1] - 9;
+            int y = halfMoves[move + 2] - 9;
+            if (x == 0 && y == 0){                      // idk about this but it fixes thief street
+                b = '-';
+            }
+            else {
+                Position chipPosition = level.getChip().getPosition();
+                Position clickPosition = chipPosition.add(x, y);
+                level.setClick(clickPosition.getIndex());
+                b = clickPosition.clickByte(chipPosition);
+            }
+        }
+        return b;
+    }
+    
+    /**
+     * @return the index of the last byte of the move at a half move index,
+     * as mouse moves take three
+     */
+    private int moveEnd(int move){
+        return halfMoves[move] == CHIP_RELATIVE_CLICK ? move + 2 : move;
+    }
+    
+    /**
+     * @param savestate an uncompressed savestate
+     * @param oldSavestate a savestate that may be compressed
+     * @param list a scratch list for compressing
+     */
+    private static boolean sameState(byte[] savestate, byte[] oldSavestate, ByteList list){
+        if (oldSavestate == null) return false;
+        if (savestate[1] != oldSavestate[1] || savestate[2] != oldSavestate[2]) return false;   // Chip's position
+        if (SavestateManager.isCompressed(oldSavestate)) savestate = SavestateManager.compress(savestate, list);
+        return Arrays.equals(savestate, oldSavestate);
     }
     
     public void loadMoves(SuperCC emulator, TickFlags tickFlags, boolean repaint){
         Level level = emulator.getLevel();
         try{
             for (int move = 0; move < halfMoves.length; move++){
-                byte b = halfMoves[move];
-                if (b == CHIP_RELATIVE_CLICK){
-                    int x = halfMoves[++move] - 9;
-                    int y = halfMoves[++move] - 9;
-                    if (x == 0 && y == 0){                      // idk about this but it fixes thief street
-                        b = '-';
-                    }
-                    else {
-                        Position chipPosition = level.getChip().getPosition();
-                        Position clickPosition = chipPosition.add(x, y);
-                        level.setClick(clickPosition.getIndex());
-                        b = clickPosition.clickByte(chipPosition);
-                    }
-                }
+                byte b = readMove(level, move);
+                move = moveEnd(move);
                 boolean tickedTwice = emulator.tick(b, tickFlags);
                 if (tickedTwice) move++;
                 if (level.getChip().isDead()) {
@@ -105,62 +335,45 @@ public class Solution{
         if (repaint) emulator.getMainWindow().repaint(true);
     }
     
+    private static boolean isCapital(byte b){
+        return b == 'U' || b == 'L' || b == 'D' || b == 'R';
+    }
+    private static boolean isCardinal(byte b){
+        return b == UP || b == LEFT || b == DOWN || b == RIGHT;
+    }
     private static byte[] succToHalfMoves(byte[] succMoves){
-        ByteArrayOutputStream writer = new ByteArrayOutputStream();
+        int capitals = 0;
+        for (byte b : succMoves) if (isCapital(b)) capitals++;
+        byte[] halfMoves = new byte[succMoves.length + capitals];
+        int i = 0;
         for (byte b : succMoves){
-            if (b == 'U'){
-                writer.write('u');
-                writer.write('-');
-            }
-            else if (b == 'L'){
-                writer.write('l');
-                writer.write('-');
-            }
-            else if (b == 'D'){
-                writer.write('d');
-                writer.write('-');
+            if (isCapital(b)){
+                halfMoves[i++] = (byte) (b - 'A' + 'a');
+                halfMoves[i++] = '-';
             }
-            else if (b == 'R'){
-                writer.write('r');
-                writer.write('-');
-            }
-            else writer.write(b);
+            else halfMoves[i++] = b;
         }
-        return writer.toByteArray();
+        return halfMoves;
     }
     private static byte[] succToHalfMoves(ByteList succMoves){
-        ByteArrayOutputStream writer = new ByteArrayOutputStream();
-        for (byte b : succMoves){
-            if (b == 'U'){
-                writer.write('u');
-                writer.write('-');
+        int capitals = 0;
+        for (int i = 0; i < succMoves.size(); i++) if (isCapital(succMoves.get(i))) capitals++;
+        byte[] halfMoves = new byte[succMoves.size() + capitals];
+        int j = 0;
+        for (int i = 0; i < succMoves.size(); i++){
+            byte b = succMoves.get(i);
+            if (isCapital(b)){
+                halfMoves[j++] = (byte) (b - 'A' + 'a');
+                halfMoves[j++] = '-';
             }
-            else if (b == 'L'){
-                writer.write('l');
-                writer.write('-');
-            }
-            else if (b == 'D'){
-                writer.write('d');
-                writer.write('-');
-            }
-            else if (b == 'R'){
-                writer.write('r');
-                writer.write('-');
-            }
-            else writer.write(b);
+            else halfMoves[j++] = b;
         }
-        return writer.toByteArray();
+        return halfMoves;
     }
 
     private static byte[] quarterToHalfMoves(byte[] quarterMoves) {
-        ByteArrayOutputStream writer = new ByteArrayOutputStream();
-        //System.out.println(Arrays.toString(quarterMoves));
-
-        Set<Byte> cardinals = new HashSet<>(); //Makes it so that i don't have to write out 8 equality checks
-        cardinals.add(UP);
-        cardinals.add(DOWN);
-        cardinals.add(LEFT);
-        cardinals.add(RIGHT);
+        byte[] writer = new byte[quarterMoves.length];             // Never more half moves than quarter moves
+        int w = 0;
 
         for (int i = 0; i < quarterMoves.length; i += 2) {
             byte a = quarterMoves[i];
@@ -171,39 +384,40 @@ public class Solution{
             if (j < quarterMoves.length) b = quarterMoves[j];
 
             if (a == '~' && b == '~') { //It should only write a half wait if BOTH values read are quarter waits
-                writer.write('-');
+                writer[w++] = '-';
             }
             else { //Input priority things
-                if (cardinals.contains(a)) {
-                    writer.write(a);
+                if (isCardinal(a)) {
+                    writer[w++] = a;
                     continue;
                 }
-                if (cardinals.contains(b) || b == CHIP_RELATIVE_CLICK) {
-                    writer.write(b);
-                    if (cardinals.contains(b)) { //Keyboard input check
+                if (isCardinal(b) || b == CHIP_RELATIVE_CLICK) {
+                    writer[w++] = b;
+                    if (isCardinal(b)) { //Keyboard input check
                         continue;
                     }
                     else if (b == CHIP_RELATIVE_CLICK) {
                         i = j;
-                        writer.write(quarterMoves[++j]);
-                        writer.write(quarterMoves[++j]);
+                        writer[w++] = quarterMoves[++j];
+                        writer[w++] = quarterMoves[++j];
                         ++i; //Puts the reader right into the first direction so that the i += 2 at the start jumps to the next pair of quarter moves
                         continue;
                     }
                 }
                 if (a == CHIP_RELATIVE_CLICK) {
-                    writer.write(a);
-                    writer.write(quarterMoves[++i]);
-                    writer.write(quarterMoves[++i]); //Puts the reader right into the second direction so that the i += 2 at the start jumps to the next pair of quarter moves
+                    writer[w++] = a;
+                    writer[w++] = quarterMoves[++i];
+                    writer[w++] = quarterMoves[++i]; //Puts the reader right into the second direction so that the i += 2 at the start jumps to the next pair of quarter moves
                     continue;
                 }
             }
         }
-        //System.out.println(Arrays.toString(writer.toByteArray()));
-        return writer.toByteArray();
+        return Arrays.copyOf(writer, w);
     }
     
     public static Solution fromJSON(String s){
+        Solution solution = SolutionCodec.fromJSON(s);
+        if (solution != null) return solution;
         try {
             JSONParser parser = new JSONParser();
             JSONObject json = (JSONObject) parser.parse(s);
@@ -217,6 +431,26 @@ public class Solution{
         }
     }
     
+    /**
+     * @return the solution packed into a few bits per move, see
+     * {@link SolutionCodec}
+     */
+    public byte[] toBinary(){
+        return SolutionCodec.toBinary(this);
+    }
+    
+    public static Solution fromBinary(byte[] bytes){
+        return SolutionCodec.fromBinary(bytes);
+    }
+    
+    /**
+     * Read a solution file in either the binary or the JSON format.
+     */
+    public static Solution read(byte[] file){
+        if (SolutionCodec.isBinary(file)) return fromBinary(file);
+        return fromJSON(new String(file, StandardCharsets.ISO_8859_1));
+    }
+    
     @Override
     public String toString(){
         return toJSON().toJSONString();
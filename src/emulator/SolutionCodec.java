@@ -0,0 +1,321 @@
+package emulator;
+
+import game.Step;
+
+import java.util.Arrays;
+
+import static emulator.SuperCC.*;
+
+/**
+ * Reads and writes solutions without going through json-simple.
+ * <p>
+ * The binary form starts with "SCS", a version byte, the step, the rng seed
+ * and the number of half moves. The moves follow as 3 bit codes, high bits
+ * first: one code each for the four directions and a wait, one for a run
+ * of 3 to 258 waits followed by an 8 bit count, and one for any other half
+ * move followed by the move's byte, which is used for mouse moves.
+ * </p>
+ * <p>
+ * JSON is read in a single pass over the text. The moves string is measured
+ * first and then decoded straight into an array of the right size.
+ * </p>
+ */
+class SolutionCodec {
+
+    private static final byte[] SIGNATURE = {'S', 'C', 'S'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 13;
+    private static final byte[] CODES = {UP, LEFT, DOWN, RIGHT, WAIT};
+    private static final int WAIT_CODE = 4, WAIT_RUN = 5, ESCAPE = 6;
+    private static final int MIN_RUN = 3, MAX_RUN = MIN_RUN + 255;
+
+    static boolean isBinary(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == SIGNATURE[0] && bytes[1] == SIGNATURE[1]
+            && bytes[2] == SIGNATURE[2];
+    }
+
+    private static int code(byte b) {
+        switch (b) {
+            case UP: return 0;
+            case LEFT: return 1;
+            case DOWN: return 2;
+            case RIGHT: return 3;
+            case WAIT: return WAIT_CODE;
+            default: return -1;
+        }
+    }
+
+    static byte[] toBinary(Solution solution) {
+        byte[] moves = solution.halfMoves;
+        BitWriter writer = new BitWriter(HEADER_SIZE + moves.length / 2 + 16);
+        writer.bytes[0] = SIGNATURE[0];
+        writer.bytes[1] = SIGNATURE[1];
+        writer.bytes[2] = SIGNATURE[2];
+        writer.bytes[3] = VERSION;
+        writer.bytes[4] = (byte) solution.step.ordinal();
+        putInt(writer.bytes, 5, solution.rngSeed);
+        putInt(writer.bytes, 9, moves.length);
+        writer.bit = HEADER_SIZE * 8L;
+        for (int i = 0; i < moves.length; ) {
+            byte b = moves[i];
+            if (b == WAIT) {
+                int run = 1;
+                while (run < MAX_RUN && i + run < moves.length && moves[i + run] == WAIT) run++;
+                if (run >= MIN_RUN) {
+                    writer.write(WAIT_RUN, 3);
+                    writer.write(run - MIN_RUN, 8);
+                    i += run;
+                    continue;
+                }
+            }
+            int code = code(b);
+            if (code >= 0) writer.write(code, 3);
+            else {
+                writer.write(ESCAPE, 3);
+                writer.write(b & 0xFF, 8);
+            }
+            i++;
+        }
+        return Arrays.copyOf(writer.bytes, (int) ((writer.bit + 7) / 8));
+    }
+
+    static Solution fromBinary(byte[] bytes) {
+        if (!isBinary(bytes) || bytes[3] != VERSION) throw new IllegalArgumentException("Not a binary solution");
+        try {
+            Step step = Step.values()[bytes[4]];
+            int rngSeed = getInt(bytes, 5);
+            int length = getInt(bytes, 9);
+            if (length > (long) (bytes.length - HEADER_SIZE) * 8 * MAX_RUN / (3 + 8)) {  // More than even all wait runs fit
+                throw new IllegalArgumentException("Invalid binary solution");
+            }
+            byte[] moves = new byte[length];
+            long bit = HEADER_SIZE * 8L;
+            for (int i = 0; i < moves.length; ) {
+                int code = read(bytes, bit, 3);
+                bit += 3;
+                if (code < CODES.length) moves[i++] = CODES[code];
+                else if (code == WAIT_RUN) {
+                    int run = read(bytes, bit, 8) + MIN_RUN;
+                    bit += 8;
+                    Arrays.fill(moves, i, i + run, WAIT);
+                    i += run;
+                }
+                else if (code == ESCAPE) {
+                    moves[i++] = (byte) read(bytes, bit, 8);
+                    bit += 8;
+                }
+                else throw new IllegalArgumentException("Invalid move code");
+            }
+            return new Solution(moves, rngSeed, step, Solution.HALF_MOVES);
+        }
+        catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Invalid binary solution");
+        }
+    }
+
+    private static void putInt(byte[] bytes, int offset, int n) {
+        bytes[offset] = (byte) (n >>> 24);
+        bytes[offset + 1] = (byte) (n >>> 16);
+        bytes[offset + 2] = (byte) (n >>> 8);
+        bytes[offset + 3] = (byte) n;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+            | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+
+    /**
+     * Read up to 8 bits starting at a bit offset.
+     */
+    private static int read(byte[] bytes, long bit, int length) {
+        int index = (int) (bit >>> 3);
+        int word = (bytes[index] & 0xFF) << 8;
+        if (index + 1 < bytes.length) word |= bytes[index + 1] & 0xFF;
+        else if ((bit & 7) + length > 8) throw new IndexOutOfBoundsException();
+        return (word >>> (16 - (int) (bit & 7) - length)) & ((1 << length) - 1);
+    }
+
+    private static class BitWriter {
+        byte[] bytes;
+        long bit;
+
+        void write(int value, int length) {
+            int index = (int) (bit >>> 3);
+            if (index + 2 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            int shift = 16 - (int) (bit & 7) - length;
+            int word = value << shift;
+            bytes[index] |= word >>> 8;
+            bytes[index + 1] |= word;
+            bit += length;
+        }
+
+        BitWriter(int capacity) {
+            bytes = new byte[capacity];
+        }
+    }
+
+    /**
+     * Read a solution from JSON. Any keys other than the step, seed and moves
+     * are skipped.
+     * @return the solution, or null if the text isn't a JSON object with
+     * those keys
+     */
+    static Solution fromJSON(String s) {
+        JSONReader reader = new JSONReader(s);
+        Step step = null;
+        Integer rngSeed = null;
+        byte[] moves = null;
+        if (!reader.next('{')) return null;
+        if (reader.next('}')) return null;
+        do {
+            String key = reader.readString();
+            if (key == null || !reader.next(':')) return null;
+            if (key.equals(Solution.MOVES)) {
+                moves = reader.readBytes();
+                if (moves == null) return null;
+            }
+            else if (key.equals(Solution.STEP) || key.equals(Solution.SEED)) {
+                String value = reader.readScalar();
+                if (value == null) return null;
+                try {
+                    if (key.equals(Solution.STEP)) step = Step.valueOf(value);
+                    else rngSeed = Integer.parseInt(value);
+                }
+                catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+            else if (!reader.skipValue()) return null;
+        } while (reader.next(','));
+        if (!reader.next('}') || step == null || rngSeed == null || moves == null) return null;
+        return new Solution(moves, rngSeed, step, Solution.HALF_MOVES);
+    }
+
+    private static class JSONReader {
+        private static final int END_OF_STRING = -1, INVALID = -2;
+
+        private final String s;
+        private int i;
+
+        private void skipWhitespace() {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        }
+
+        /**
+         * Consume the next character if it is c.
+         */
+        boolean next(char c) {
+            skipWhitespace();
+            if (i < s.length() && s.charAt(i) == c) {
+                i++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Decode one character of a string, leaving i after it.
+         * @return the character, END_OF_STRING after the closing quote or
+         * INVALID if the string is cut short or badly escaped
+         */
+        private int readChar() {
+            if (i >= s.length()) return INVALID;
+            char c = s.charAt(i++);
+            if (c == '"') return END_OF_STRING;
+            if (c != '\\') return c;
+            if (i >= s.length()) return INVALID;
+            char e = s.charAt(i++);
+            switch (e) {
+                case 'b': return '\b';
+                case 'f': return '\f';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 't': return '\t';
+                case 'u':
+                    if (i + 4 > s.length()) return INVALID;
+                    try {
+                        int u = Integer.parseInt(s.substring(i, i + 4), 16);
+                        i += 4;
+                        return u;
+                    }
+                    catch (NumberFormatException ex) {
+                        return INVALID;
+                    }
+                default: return e;
+            }
+        }
+
+        String readString() {
+            if (!next('"')) return null;
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = readChar()) >= 0) sb.append((char) c);
+            return c == END_OF_STRING ? sb.toString() : null;
+        }
+
+        /**
+         * Read a string of ISO-8859-1 characters into an array of exactly
+         * its length.
+         */
+        byte[] readBytes() {
+            if (!next('"')) return null;
+            int start = i;
+            int length = 0;
+            int c;
+            while ((c = readChar()) >= 0) length++;
+            if (c != END_OF_STRING) return null;
+            i = start;
+            byte[] bytes = new byte[length];
+            for (int n = 0; n < length; n++) {
+                c = readChar();
+                if (c > 0xFF) return null;
+                bytes[n] = (byte) c;
+            }
+            i++;                                                    // The closing quote
+            return bytes;
+        }
+
+        /**
+         * Read a string or a bare number.
+         */
+        String readScalar() {
+            skipWhitespace();
+            if (i < s.length() && s.charAt(i) == '"') return readString();
+            int start = i;
+            while (i < s.length() && "+-.0123456789eE".indexOf(s.charAt(i)) >= 0) i++;
+            return i > start ? s.substring(start, i) : null;
+        }
+
+        boolean skipValue() {
+            skipWhitespace();
+            if (i >= s.length()) return false;
+            char c = s.charAt(i);
+            if (c == '"') return readString() != null;
+            if (c == '{' || c == '[') {
+                int depth = 0;
+                while (i < s.length()) {
+                    c = s.charAt(i);
+                    if (c == '"') {
+                        if (readString() == null) return false;
+                        continue;
+                    }
+                    i++;
+                    if (c == '{' || c == '[') depth++;
+                    else if (c == '}' || c == ']') {
+                        if (--depth == 0) return true;
+                    }
+                }
+                return false;
+            }
+            int start = i;
+            while (i < s.length() && ",}] \t\r\n".indexOf(s.charAt(i)) < 0) i++;
+            return i > start;
+        }
+
+        JSONReader(String s) {
+            this.s = s;
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+package emulator;
+
+import game.Level;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An append-only file of solutions, keyed by levelset hash and level number.
+ * <p>
+ * Each record holds the level, a SHA-1 hash of the solution's binary form,
+ * whether the solution completes the level, the number of ticks it takes
+ * and the solution itself in the binary form. A solution is only stored
+ * once per level. Opening the store reads the records' headers into an
+ * index, so finding a level's solutions or its fastest solution doesn't
+ * touch the file. A record cut short by a crash is dropped when the store
+ * is opened.
+ * </p>
+ */
+public class SolutionStore {
+
+    private static final int SIGNATURE = 0x53435354;                // "SCST"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final Pattern SOLUTION_FILE = Pattern.compile("(\\d+)_.*\\.(json|scs)");
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, List<Entry>> levels = new HashMap<>();
+    private final Map<String, Entry> fastest = new HashMap<>();
+    private final Map<String, Entry> byContent = new HashMap<>();
+
+    public static class Entry {
+        public final String levelsetHash;
+        public final int levelNumber;
+        public final String contentHash;
+        public final boolean completed;
+        public final int ticks;                                     // Until the level is completed, 0 if it isn't
+        private final long offset;                                  // Of the solution's bytes
+        private final int length;
+
+        Entry(String levelsetHash, int levelNumber, String contentHash, boolean completed, int ticks,
+              long offset, int length) {
+            this.levelsetHash = levelsetHash;
+            this.levelNumber = levelNumber;
+            this.contentHash = contentHash;
+            this.completed = completed;
+            this.ticks = ticks;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static String key(String levelsetHash, int levelNumber) {
+        return levelsetHash + "/" + levelNumber;
+    }
+
+    private void index(Entry entry) {
+        String key = key(entry.levelsetHash, entry.levelNumber);
+        levels.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+        byContent.put(key + "/" + entry.contentHash, entry);
+        Entry best = fastest.get(key);
+        if (entry.completed && (best == null || entry.ticks < best.ticks)) fastest.put(key, entry);
+    }
+
+    /**
+     * @return the level's completing solution that takes the fewest ticks,
+     * or null if there is none
+     */
+    public synchronized Entry getFastest(String levelsetHash, int levelNumber) {
+        return fastest.get(key(levelsetHash, levelNumber));
+    }
+
+    /**
+     * @return every solution stored for a level, in the order they were
+     * stored
+     */
+    public synchronized List<Entry> getAll(String levelsetHash, int levelNumber) {
+        List<Entry> entries = levels.get(key(levelsetHash, levelNumber));
+        return entries == null ? new ArrayList<>() : new ArrayList<>(entries);
+    }
+
+    public Solution read(Entry entry) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(entry.length);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, entry.offset + bytes.position()) < 0) throw new EOFException();
+        }
+        return Solution.fromBinary(bytes.array());
+    }
+
+    /**
+     * Store a solution unless the level already has it.
+     * @param ticks the number of ticks the solution takes, see {@link #play}
+     * @return the solution's entry, which is the existing one if it was
+     * stored before
+     */
+    public synchronized Entry add(String levelsetHash, int levelNumber, Solution solution, boolean completed, int ticks)
+            throws IOException {
+        byte[] bytes = solution.toBinary();
+        String contentHash = sha1(bytes);
+        Entry existing = byContent.get(key(levelsetHash, levelNumber) + "/" + contentHash);
+        if (existing != null) return existing;
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 64);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeUTF(levelsetHash);
+        out.writeShort(levelNumber);
+        out.writeUTF(contentHash);
+        out.writeBoolean(completed);
+        out.writeInt(ticks);
+        out.writeInt(bytes.length);
+        int headerLength = record.size();
+        out.write(bytes);
+
+        long start = file.length();
+        file.seek(start);
+        file.writeInt(record.size());
+        file.write(record.toByteArray());
+        Entry entry = new Entry(levelsetHash, levelNumber, contentHash, completed, ticks,
+                                start + 4 + headerLength, bytes.length);
+        index(entry);
+        return entry;
+    }
+
+    /**
+     * Play a solution on a new copy of its level, waiting up to 100 ticks
+     * after the last move for the level to end.
+     * @return the tick the level is completed on, or -1 if it isn't
+     */
+    static int play(SuperCC emulator, int levelNumber, Solution solution) throws IOException {
+        Level level = emulator.parseLevel(levelNumber, solution.rngSeed, solution.step);
+        return solution.playDetached(level, Solution.GRACE_TICKS) ? level.getTickNumber() : -1;
+    }
+
+    /**
+     * Play and store a solution of a level of the emulator's levelset.
+     */
+    public Entry add(SuperCC emulator, int levelNumber, Solution solution) throws IOException {
+        int ticks = play(emulator, levelNumber, solution);
+        return add(emulator.getLevelsetHash(), levelNumber, solution, ticks >= 0, Math.max(ticks, 0));
+    }
+
+    /**
+     * What {@link #importDirectory} did.
+     */
+    public static class ImportResult {
+        public int added;                                           // Solutions that weren't stored before
+        public final Map<String, String> failed = new TreeMap<>();  // Why, by file name
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Imported ").append(added).append(" new solutions");
+            if (!failed.isEmpty()) sb.append(", ").append(failed.size()).append(" could not be imported");
+            for (Map.Entry<String, String> file : failed.entrySet()) {
+                sb.append("\n").append(file.getKey()).append(": ").append(file.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Store every solution file in a directory of solutions of the
+     * emulator's levelset, named the way {@link SuperCC#getJSONPath} names
+     * them. The solutions are played on a pool of threads. A file that can't
+     * be read or played is recorded in the result and the rest are still
+     * imported.
+     */
+    public ImportResult importDirectory(SuperCC emulator, File directory, int threads)
+            throws IOException, InterruptedException {
+        File[] files = directory.listFiles();
+        if (files == null) throw new IOException("Could not list " + directory);
+        String levelsetHash = emulator.getLevelsetHash();
+        int lastLevel = emulator.lastLevelNumber();
+        int before = size();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        Map<File, Future<?>> futures = new LinkedHashMap<>();
+        for (File solutionFile : files) {
+            Matcher matcher = SOLUTION_FILE.matcher(solutionFile.getName());
+            if (!matcher.matches()) continue;
+            int levelNumber = Integer.parseInt(matcher.group(1));
+            if (levelNumber < 1 || levelNumber >= lastLevel) continue;
+            futures.put(solutionFile, pool.submit(() -> {
+                Solution solution;
+                try {
+                    solution = Solution.read(Files.readAllBytes(solutionFile.toPath()));
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IOException("Not a solution file");
+                }
+                int ticks = play(emulator, levelNumber, solution);
+                add(levelsetHash, levelNumber, solution, ticks >= 0, Math.max(ticks, 0));
+                return null;
+            }));
+        }
+        pool.shutdown();
+        ImportResult result = new ImportResult();
+        try {
+            for (Map.Entry<File, Future<?>> future : futures.entrySet()) {
+                try {
+                    future.getValue().get();
+                }
+                catch (ExecutionException e) {
+                    String error;
+                    if (e.getCause() instanceof IOException) error = e.getCause().getMessage();
+                    else {
+                        e.getCause().printStackTrace();
+                        error = "Could not play: " + e.getCause();
+                    }
+                    result.failed.put(future.getKey().getName(), error);
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        result.added = size() - before;
+        return result;
+    }
+
+    /**
+     * @return the number of solutions stored
+     */
+    public synchronized int size() {
+        return byContent.size();
+    }
+
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    private static String sha1(byte[] bytes) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes)) sb.append(String.format("%02x", b));
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Open a store, creating it if the file doesn't exist.
+     */
+    public SolutionStore(File storeFile) throws IOException {
+        storeFile.getAbsoluteFile().getParentFile().mkdirs();
+        file = new RandomAccessFile(storeFile, "rw");
+        channel = file.getChannel();
+        if (file.length() < HEADER_SIZE) {
+            file.setLength(0);
+            file.writeInt(SIGNATURE);
+            file.writeInt(VERSION);
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.getFD())));
+        if (in.readInt() != SIGNATURE || in.readInt() != VERSION) {
+            file.close();
+            throw new IOException(storeFile.getName() + " is not a solution store of this version");
+        }
+        long position = HEADER_SIZE;
+        long length = file.length();
+        while (position + 4 <= length) {
+            int recordLength = in.readInt();
+            if (recordLength <= 0 || position + 4 + recordLength > length) break;
+            String levelsetHash = in.readUTF();
+            int levelNumber = in.readUnsignedShort();
+            String contentHash = in.readUTF();
+            boolean completed = in.readBoolean();
+            int ticks = in.readInt();
+            int solutionLength = in.readInt();
+            long solutionOffset = position + 4 + recordLength - solutionLength;
+            index(new Entry(levelsetHash, levelNumber, contentHash, completed, ticks, solutionOffset, solutionLength));
+            in.skipBytes(solutionLength);
+            position += 4 + recordLength;
+        }
+        if (position < length) file.setLength(position);            // Drop a record cut short
+    }
+
+}
@@ -0,0 +1,280 @@
+package emulator;
+
+import util.ByteList;
+import util.MoveLog;
+import util.TreeNode;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An on-disk cache of the savestates simulated while loading a solution.
+ * Loading the same solution again, or one that starts with the same moves,
+ * restores the cached states and only simulates the moves after them.
+ * <p>
+ * Entries are keyed by levelset hash, level number, rng seed and step. Each
+ * entry holds the half moves it was simulated from, the compressed savestate
+ * after every move and the number of half moves consumed up to that state,
+ * so the longest common prefix of the two move lists tells how many states
+ * can be reused. Entries are only valid for the engine that wrote them:
+ * increase VERSION whenever a change to the engine alters how levels play.
+ * </p>
+ * <p>
+ * A key keeps up to ENTRIES_PER_KEY entries, one for each hash of the first
+ * PREFIX_MOVES half moves, so different routes through a level are cached
+ * side by side while a new version of a route replaces its old one. A
+ * solution is restored from the entry it shares the most moves with, and
+ * the least recently used entries are deleted.
+ * </p>
+ */
+public class StateCache {
+
+    private static final int SIGNATURE = 0x53435343;                // "SCSC"
+    private static final int VERSION = 1;
+    private static final int ENTRIES_PER_KEY = 8;
+    private static final int PREFIX_MOVES = 100;
+
+    private final File directory;
+
+    private static String key(SuperCC emulator, Solution solution) {
+        return emulator.getLevel().getLevelNumber() + "_" + solution.rngSeed + "_" + solution.step + "_";
+    }
+
+    private File entryFile(SuperCC emulator, Solution solution) throws IOException {
+        int prefix = Arrays.hashCode(Arrays.copyOf(solution.halfMoves, Math.min(PREFIX_MOVES, solution.halfMoves.length)));
+        return new File(new File(directory, emulator.getLevelsetHash()),
+                        key(emulator, solution) + Integer.toHexString(prefix) + ".states");
+    }
+
+    /**
+     * @return the entries of a key in a levelset's directory
+     */
+    private static File[] entryFiles(File directory, String key) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(key) && name.endsWith(".states"));
+        return files == null ? new File[0] : files;
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new InflaterInputStream(new BufferedInputStream(new FileInputStream(file))));
+    }
+
+    /**
+     * @return the half moves an entry was simulated from, or null if it was
+     * written by another version
+     */
+    private static byte[] readMoves(DataInputStream in) throws IOException {
+        if (in.readInt() != SIGNATURE || in.readInt() != VERSION) return null;
+        return readBytes(in);
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b) {
+        int common = 0;
+        int length = Math.min(a.length, b.length);
+        while (common < length && a[common] == b[common]) common++;
+        return common;
+    }
+
+    /**
+     * Restore the cached states that the solution shares with the solution
+     * loaded for this level, seed and step it has the most moves in common
+     * with. The emulator must have just loaded the level, and is left in the
+     * last restored state.
+     * @param nodeEnds filled in with the number of half moves consumed up to
+     *                 each restored state
+     * @return the number of restored states
+     */
+    int restore(SuperCC emulator, Solution solution, int[] nodeEnds) {
+        SavestateManager savestates = emulator.getSavestates();
+        List<byte[]> states = new ArrayList<>();
+        ByteList moves = new ByteList();
+        try {
+            File file = null;
+            int common = 0;
+            for (File entry : entryFiles(new File(directory, emulator.getLevelsetHash()), key(emulator, solution))) {
+                try (DataInputStream in = open(entry)) {
+                    byte[] cachedMoves = readMoves(in);
+                    int shared = cachedMoves == null ? 0 : commonPrefix(cachedMoves, solution.halfMoves);
+                    if (shared > common) {
+                        file = entry;
+                        common = shared;
+                    }
+                }
+                catch (IOException e) {                             // Pruned by a writer meanwhile, try the others
+                }
+            }
+            if (file == null) return 0;
+            file.setLastModified(System.currentTimeMillis());          // Keep it over less recently used entries
+            try (DataInputStream in = open(file)) {
+                readMoves(in);
+                int count = in.readInt();
+                if (!Arrays.equals(readBytes(in), savestates.getStartingState())) return 0;
+                for (int i = 1; i <= count; i++) {
+                    int end = in.readInt();
+                    if (end > common) break;
+                    moves.add(in.readByte());
+                    states.add(readBytes(in));
+                    nodeEnds[i] = end;
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        if (states.isEmpty()) return 0;
+        savestates.addRewindStates(states, moves.toArray());
+        emulator.getLevel().load(states.get(states.size() - 1));
+        return states.size();
+    }
+
+    /**
+     * A cache entry about to be written. Everything that depends on the
+     * emulator is read when it is made, so the states can be collected and
+     * written from any thread.
+     */
+    private static class Entry {
+        private final File file;
+        private final byte[] halfMoves;
+        private final int[] ends;
+        private final int count;
+        private byte[][] states;
+        private byte[] moves;
+
+        /**
+         * Take the states and moves from a branch.
+         * @return false if the branch does not have one state per move
+         */
+        boolean take(List<TreeNode<byte[]>> nodes, MoveLog moveLog) {
+            if (nodes.size() != count + 1 || moveLog.size() < count) return false;
+            states = new byte[count + 1][];
+            for (int i = 0; i <= count; i++) states[i] = nodes.get(i).getData();
+            moves = new byte[count];
+            moveLog.copy(0, moves, 0, count);
+            return true;
+        }
+
+        void write() {
+            try {
+                StateCache.write(file, halfMoves, states, moves, ends);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Entry(File file, Solution solution, int[] nodeEnds, int count) {
+            this.file = file;
+            this.halfMoves = solution.halfMoves.clone();
+            this.ends = Arrays.copyOf(nodeEnds, count + 1);
+            this.count = count;
+        }
+    }
+
+    private Entry entry(SuperCC emulator, Solution solution, int[] nodeEnds, int count) {
+        try {
+            return new Entry(entryFile(emulator, solution), solution, nodeEnds, count);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Write the states of a freshly loaded solution to the cache, replacing
+     * the entry of its level, seed and step that starts with the same moves.
+     * The states are compressed and written on a background thread.
+     * @param nodeEnds the number of half moves consumed up to each state
+     * @param count the number of moves that were ticked
+     */
+    void store(SuperCC emulator, Solution solution, int[] nodeEnds, int count) {
+        SavestateManager savestates = emulator.getSavestates();
+        Entry entry = entry(emulator, solution, nodeEnds, count);
+        if (entry == null || !entry.take(savestates.getPlaybackNodes(), savestates.getMoveLog())) return;
+        Thread writer = new Thread(entry::write, "State cache writer");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Like {@link #store(SuperCC, Solution, int[], int)}, for a solution
+     * whose states are still being simulated. Call this on the thread that
+     * loads the solution, and hand the result to
+     * {@link SavestateManager#addRewindStatesLater}, which calls it with its
+     * branch once every state exists.
+     * @return the callback, or null if the entry cannot be written
+     */
+    BiConsumer<List<TreeNode<byte[]>>, MoveLog> storeLater(SuperCC emulator, Solution solution, int[] nodeEnds, int count) {
+        Entry entry = entry(emulator, solution, nodeEnds, count);
+        if (entry == null) return null;
+        return (nodes, moveLog) -> {
+            if (entry.take(nodes, moveLog)) entry.write();
+        };
+    }
+
+    private static void write(File file, byte[] halfMoves, byte[][] states, byte[] moves, int[] ends) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        ByteList buffer = new ByteList();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(SIGNATURE);
+            out.writeInt(VERSION);
+            writeBytes(out, halfMoves);
+            out.writeInt(moves.length);
+            writeBytes(out, states[0]);
+            for (int i = 1; i < states.length; i++) {
+                out.writeInt(ends[i]);
+                out.writeByte(moves[i - 1]);
+                byte[] state = states[i];
+                writeBytes(out, SavestateManager.isCompressed(state) ? state : SavestateManager.compress(state, buffer));
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        prune(file);
+    }
+
+    /**
+     * Delete the least recently used entries of a file's key beyond
+     * ENTRIES_PER_KEY.
+     */
+    private static void prune(File file) {
+        String name = file.getName();
+        File[] entries = entryFiles(file.getParentFile(), name.substring(0, name.lastIndexOf('_') + 1));
+        if (entries.length <= ENTRIES_PER_KEY) return;
+        Map<File, Long> used = new HashMap<>();
+        for (File entry : entries) used.put(entry, entry.lastModified());
+        Arrays.sort(entries, (a, b) -> Long.compare(used.get(b), used.get(a)));
+        for (int i = ENTRIES_PER_KEY; i < entries.length; i++) entries[i].delete();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+
+    /**
+     * @param directory the directory the cache is kept in, one subdirectory
+     *                  per levelset
+     */
+    public StateCache(File directory) {
+        this.directory = directory;
+    }
+
+}
@@ -0,0 +1,98 @@
+package emulator;
+
+import util.TreeNode;
+
+import java.util.Arrays;
+
+/**
+ * A node of a SavestateManager's tree. A savestate is kept on the heap until
+ * it is compressed, after which it is moved to the manager's
+ * SavestateArena and the node only keeps its address. Cold savestates may be
+ * spilled from the arena to disk, see {@link SavestateSpill}.
+ */
+class StateNode extends TreeNode<byte[]> {
+
+    private final transient SavestateArena arena;
+    private transient volatile byte[] data;
+    transient long address = -1;                                    // Only used by the arena, under its lock
+    transient long spillOffset = -1;                                // Where the spill file has a copy, if it does
+    transient int length;
+
+    @Override
+    public byte[] getData() {
+        byte[] data = this.data;
+        if (data != null) return data;
+        return arena.load(this);
+    }
+
+    @Override
+    public void setData(byte[] savestate) {
+        byte[] old = data;
+        long heapBytes = old == null ? 0 : -old.length;
+        if (savestate != null && SavestateManager.isCompressed(savestate)) {
+            arena.store(this, savestate);
+            data = null;
+        }
+        else {
+            data = savestate;
+            if (savestate != null) heapBytes += savestate.length;
+        }
+        if (heapBytes != 0) arena.addHeapBytes(heapBytes);
+    }
+
+    /**
+     * @return true if the savestate is in the arena or the spill file
+     */
+    boolean isOffHeap() {
+        return data == null && (address >= 0 || spillOffset >= 0);
+    }
+
+    /**
+     * @return true if the savestate is only on disk
+     */
+    boolean isSpilled() {
+        return data == null && arena.isSpilled(this);
+    }
+
+    /**
+     * Read one byte of the savestate without copying it.
+     */
+    byte getByte(int index) {
+        byte[] data = this.data;
+        if (data != null) return data[index];
+        return arena.get(this, index);
+    }
+
+    /**
+     * Compare the savestate with another without copying it off the heap.
+     */
+    boolean dataEquals(byte[] savestate) {
+        byte[] data = this.data;
+        if (data != null) return Arrays.equals(data, savestate);
+        return arena.equals(this, savestate);
+    }
+
+    /**
+     * @return the length of the savestate, 0 if it has none yet
+     */
+    int getDataLength() {
+        byte[] data = this.data;
+        if (data != null) return data.length;
+        return address >= 0 || spillOffset >= 0 ? length : 0;
+    }
+
+    /**
+     * Nodes are serialized as plain TreeNodes with their savestates on the
+     * heap.
+     */
+    private Object writeReplace() {
+        return new TreeNode<>(getData(), getParent());
+    }
+
+    StateNode(SavestateArena arena, byte[] savestate, TreeNode<byte[]> parent) {
+        super(null, parent);
+        this.arena = arena;
+        setData(savestate);
+    }
+
+}
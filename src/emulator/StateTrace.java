@@ -0,0 +1,220 @@
+package emulator;
+
+import game.Level;
+import io.DatParser;
+import io.LevelsetIndex;
+import io.TWSReader;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Golden traces of the state of every level while its tws solution is
+ * played, for checking that a change to the engine changes nothing else.
+ * <p>
+ * A trace holds the {@link game.SaveState#hash() hash} of a level's state
+ * before the first move and after every tick, including the first tick of
+ * moves that take two, and after each wait while the level ends. Comparing
+ * a replay with a trace finds the first tick the state differs on, without
+ * storing or comparing savestates.
+ * </p>
+ * <p>
+ * A trace file covers one levelset, with a header of "SCTR" and a version,
+ * then for every level its number, the number of hashes and the hashes.
+ * Run from the command line with a directory for the traces and pairs of
+ * levelset and tws files:
+ * <pre>StateTrace record|compare [--threads n] traceDirectory levelset tws [levelset tws ...]</pre>
+ * compare exits with status 1 if any level differs.
+ * </p>
+ */
+public class StateTrace {
+
+    private static final int SIGNATURE = 0x53435452;                // "SCTR"
+    private static final int VERSION = 2;                          // 1 only hashed after every move
+
+    /**
+     * The hashes of a level's states, and the tick number and number of
+     * half moves played of each state.
+     */
+    static class Trace {
+        final int levelNumber;
+        final long[] hashes;
+        final int[] ticks;                                          // Not stored, only known when replaying
+        final int[] moves;                                          // Counting waits after the solution
+
+        Trace(int levelNumber, long[] hashes, int[] ticks, int[] moves) {
+            this.levelNumber = levelNumber;
+            this.hashes = hashes;
+            this.ticks = ticks;
+            this.moves = moves;
+        }
+    }
+
+    /**
+     * Play a level's solution, hashing the state after every tick.
+     * @return the trace, with no hashes if the tws file has no solution for
+     * the level
+     */
+    static Trace trace(DatParser dat, TWSReader twsReader, LevelsetIndex.Entry entry) throws IOException {
+        Solution solution;
+        try {
+            solution = twsReader.readSolution(entry.levelNumber, entry.password);
+        }
+        catch (IOException e) {                                     // No solution recorded
+            return new Trace(entry.levelNumber, new long[0], new int[0], new int[0]);
+        }
+        Level level = dat.parseLevel(entry.levelNumber, solution.rngSeed, solution.step);
+        long[] hashes = new long[solution.halfMoves.length + Solution.GRACE_TICKS + 1];    // A tick takes at least one half move
+        int[] ticks = new int[hashes.length];
+        int[] moves = new int[hashes.length];
+        int[] n = {1};
+        hashes[0] = level.hash();
+        ticks[0] = level.getTickNumber();
+        solution.playDetached(level, Solution.GRACE_TICKS, tick -> {
+            hashes[n[0]] = tick.hash();
+            ticks[n[0]] = tick.getTickNumber();
+            moves[n[0]] = n[0]++;                                   // Counting a mouse move as one half move
+        });
+        return new Trace(entry.levelNumber, Arrays.copyOf(hashes, n[0]), Arrays.copyOf(ticks, n[0]),
+                         Arrays.copyOf(moves, n[0]));
+    }
+
+    /**
+     * Trace every level of a levelset.
+     * @return the traces in level order, as they finish
+     */
+    static List<Future<Trace>> trace(File levelset, File tws, ExecutorService pool) throws IOException {
+        DatParser dat = new DatParser(levelset);
+        TWSReader twsReader = new TWSReader(tws);
+        LevelsetIndex index = dat.getIndex();
+        List<Future<Trace>> traces = new ArrayList<>(index.size());
+        for (int i = 1; i <= index.size(); i++) {
+            LevelsetIndex.Entry entry = index.get(i);
+            traces.add(pool.submit(() -> trace(dat, twsReader, entry)));
+        }
+        return traces;
+    }
+
+    static void write(List<Trace> traces, File traceFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(traceFile)))) {
+            out.writeInt(SIGNATURE);
+            out.writeInt(VERSION);
+            out.writeInt(traces.size());
+            for (Trace trace : traces) {
+                out.writeShort(trace.levelNumber);
+                out.writeInt(trace.hashes.length);
+                for (long hash : trace.hashes) out.writeLong(hash);
+            }
+        }
+    }
+
+    /**
+     * @return the stored traces by level number, without tick numbers
+     */
+    static Map<Integer, long[]> read(File traceFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile)))) {
+            if (in.readInt() != SIGNATURE || in.readInt() != VERSION) {
+                throw new IOException(traceFile.getName() + " is not a trace of this version");
+            }
+            int levels = in.readInt();
+            Map<Integer, long[]> traces = new HashMap<>(levels * 2);
+            for (int i = 0; i < levels; i++) {
+                int levelNumber = in.readUnsignedShort();
+                long[] hashes = new long[in.readInt()];
+                for (int j = 0; j < hashes.length; j++) hashes[j] = in.readLong();
+                traces.put(levelNumber, hashes);
+            }
+            return traces;
+        }
+    }
+
+    /**
+     * Compare a replay with a stored trace.
+     * @return where they first differ, or null if they are the same
+     */
+    static String compare(long[] golden, Trace replay) {
+        if (golden == null) return "not in the trace file";
+        int length = Math.min(golden.length, replay.hashes.length);
+        for (int i = 0; i < length; i++) {
+            if (golden[i] != replay.hashes[i]) {
+                return "differs on tick " + replay.ticks[i] + ", after " + replay.moves[i] + " half moves"
+                    + (i == 0 ? "" : " (last matched on tick " + replay.ticks[i - 1] + ")");
+            }
+        }
+        if (golden.length == replay.hashes.length) return null;
+        String end = length == 0 ? "before the first tick"
+            : "on tick " + replay.ticks[length - 1] + ", after " + replay.moves[length - 1] + " half moves";
+        return golden.length > replay.hashes.length
+            ? "replay ends " + end + ", the trace goes on for " + (golden.length - length) + " more ticks"
+            : "replay goes on after the trace ends " + end;
+    }
+
+    private static Trace get(Future<Trace> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+            else files.add(args[i]);
+        }
+        boolean record = !files.isEmpty() && files.get(0).equals("record");
+        if (files.size() < 4 || files.size() % 2 != 0 || !record && !files.get(0).equals("compare")) {
+            System.err.println("StateTrace record|compare [--threads n] traceDirectory levelset tws [levelset tws ...]");
+            System.exit(2);
+        }
+        File directory = new File(files.get(1));
+        if (record) directory.mkdirs();
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<File> levelsets = new ArrayList<>();
+        List<List<Future<Trace>>> traces = new ArrayList<>();
+        try {
+            for (int i = 2; i < files.size(); i += 2) {
+                File levelset = new File(files.get(i));
+                levelsets.add(levelset);
+                traces.add(trace(levelset, new File(files.get(i + 1)), pool));
+            }
+            pool.shutdown();
+
+            int differing = 0;
+            for (int i = 0; i < levelsets.size(); i++) {
+                String name = levelsets.get(i).getName();
+                File traceFile = new File(directory, name + ".trace");
+                List<Trace> levels = new ArrayList<>();
+                Map<Integer, long[]> golden = record ? null : read(traceFile);
+                for (Future<Trace> future : traces.get(i)) {
+                    Trace trace = get(future);
+                    levels.add(trace);
+                    if (record) continue;
+                    String difference = compare(golden.get(trace.levelNumber), trace);
+                    if (difference != null) {
+                        System.out.println(name + " level " + trace.levelNumber + ": " + difference);
+                        differing++;
+                    }
+                }
+                if (record) {
+                    write(levels, traceFile);
+                    System.out.println("Wrote " + traceFile);
+                }
+            }
+            System.out.printf("%s %d levelsets in %.2fs%n", record ? "Traced" : "Compared", levelsets.size(),
+                              (System.nanoTime() - start) / 1e9);
+            if (differing > 0) System.exit(1);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
@@ -5,16 +5,24 @@ import graphics.Gui;
 import graphics.SmallGamePanel;
 import graphics.TileSheet;
 import io.DatParser;
+import io.LevelsetIndex;
 import io.SuccPaths;
 import io.TWSReader;
 import tools.SeedSearch;
 import tools.TSPGUI;
 import tools.VariationTesting;
+import util.Metrics;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SuperCC {
 
@@ -32,6 +40,10 @@ public class SuperCC {
     public TWSReader twsReader;
     private SuccPaths paths;
     private EmulatorKeyListener controls;
+    private StateCache stateCache;
+    private SessionCache sessions;
+    private SolutionStore solutionStore;
+    private TickHistory tickHistory;
     public boolean hasGui = true;
 
     public void setControls(EmulatorKeyListener l) {
@@ -45,16 +57,73 @@ public class SuperCC {
         return paths;
     }
     
+    public StateCache getStateCache() {
+        return stateCache;
+    }
+    
+    /**
+     * @return the solution store in the SuCC directory, opened the first
+     * time it is needed
+     */
+    public synchronized SolutionStore getSolutionStore() throws IOException {
+        if (solutionStore == null) solutionStore = new SolutionStore(new File(paths.getSuccPath(), "solutions.store"));
+        return solutionStore;
+    }
+    
+    /**
+     * @return the history of the ticks simulated on the current level, or
+     * null if it is not being recorded
+     */
+    public TickHistory getTickHistory() {
+        return tickHistory;
+    }
+    
+    /**
+     * Start or stop recording every tick the emulator simulates, including
+     * replays, in a {@link TickHistory} in the SuCC directory.
+     */
+    public void setRecordingHistory(boolean record) {
+        if (record == (tickHistory != null)) return;
+        if (!record) {
+            tickHistory.close();
+            tickHistory = null;
+            return;
+        }
+        try {
+            tickHistory = new TickHistory(new File(paths.getSuccPath(), "history"));
+            if (level != null) tickHistory.record(level);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            throwError("Could not record the tick history: " + e.getMessage());
+        }
+    }
+    
+    public String getLevelsetHash() throws IOException {
+        return dat.getLevelsetHash();
+    }
+    
     public String getJSONPath() {
-        String levelName = new String(level.getTitle()).replaceAll("[^a-zA-Z0-9 ]",""); //Delete everything except letters, numbers, and spaces so you won't get issues with illegal filenames
+        return getJSONPath(level.getLevelNumber(), level.getTitle());
+    }
+    
+    /**
+     * @return where the solution of a level of the current levelset is saved
+     */
+    public String getJSONPath(int levelNumber, byte[] title) {
+        String levelName = new String(title).replaceAll("[^a-zA-Z0-9 ]",""); //Delete everything except letters, numbers, and spaces so you won't get issues with illegal filenames
         //levelName = levelName.substring(0, levelName.length()-1).replaceAll("\\s","_"); //No longer needed as the previous line now takes care of this but kept commented in case its needed in future
-        return paths.getJSONPath(dat.getLevelsetName(), level.getLevelNumber(), levelName);
+        return paths.getJSONPath(dat.getLevelsetName(), levelNumber, levelName);
     }
     
     public String getSerPath() {
         return getJSONPath().replace(".json", ".ser");
     }
     
+    public String getJournalPath() {
+        return getJSONPath().replace(".json", ".journal");
+    }
+    
     public void repaint(boolean fromScratch) {
         window.repaint(fromScratch);
     }
@@ -63,7 +132,7 @@ public class SuperCC {
         return b == 'U' || b == 'L' || b == 'D' || b == 'R' || b == '_';
     }
     
-    private static byte capital(byte b){
+    static byte capital(byte b){
         if (b == '-') return '_';
         return (byte) Character.toUpperCase((char) b);
     }
@@ -87,6 +156,14 @@ public class SuperCC {
     public int lastLevelNumber() {
         return dat.lastLevel();
     }
+    
+    /**
+     * @return the title, password and other metadata of every level of the
+     * current levelset, without parsing the levels
+     */
+    public LevelsetIndex getLevelsetIndex() throws IOException {
+        return dat.getIndex();
+    }
 
     public void setTWSFile(File twsFile){
         try{
@@ -108,7 +185,16 @@ public class SuperCC {
         return savestates;
     }
     public void setSavestates(SavestateManager sm) {
+        if (savestates != null) {
+            savestates.closeJournal(true); //The loaded states replace the journaled session
+            savestates.dispose();
+        }
         this.savestates = sm;
+        setSpill(sm);
+        if (hasGui && level != null) startJournal(true);
+    }
+    private void setSpill(SavestateManager savestates) {
+        if (paths != null) savestates.setSpill(new File(paths.getSuccPath(), "spill"), paths.getSpillThreshold());
     }
     public Gui getMainWindow(){
         return window;
@@ -130,6 +216,12 @@ public class SuperCC {
                 ex.printStackTrace();
             }
         }
+        stateCache = new StateCache(new File(paths.getSuccPath(), "cache"));
+        sessions = new SessionCache(paths.getSessionCacheSize());
+        Metrics.onSample(() -> {
+            SavestateManager savestates = this.savestates;
+            if (savestates != null) savestates.sampleMetrics();
+        });
         window = new Gui(this);
     }
 
@@ -141,6 +233,8 @@ public class SuperCC {
     public void openLevelset(File levelset){
         try{
             dat = new DatParser(levelset);
+            if (paths != null) dat.setIndexDirectory(new File(paths.getSuccPath(), "index"));
+            if (sessions != null) sessions.clear();
         }
         catch (IOException e){
             throwError("Could not read file:\n"+e.getLocalizedMessage());
@@ -157,10 +251,30 @@ public class SuperCC {
                 solution.load(this);
             }
             else {
-                level = dat.parseLevel(levelNumber, rngSeed, step);
-                savestates = new SavestateManager(level);
-                solution = new Solution(new byte[] {}, 0, Step.EVEN, Solution.HALF_MOVES);
+                SavestateManager previousSavestates = savestates;
+                SessionCache.Session session = null;
+                if (sessions != null && level != null && levelNumber != level.getLevelNumber()) {
+                    sessions.put(level, savestates, solution);
+                    if (keepMoves) session = sessions.take(levelNumber);
+                }
+                else if (previousSavestates != null) previousSavestates.dispose();
+                if (session != null) {
+                    level = session.level;
+                    savestates = session.savestates;
+                    solution = session.solution;
+                }
+                else {
+                    level = dat.parseLevel(levelNumber, rngSeed, step);
+                    savestates = new SavestateManager(level);
+                    setSpill(savestates);
+                    solution = new Solution(new byte[] {}, 0, Step.EVEN, Solution.HALF_MOVES);
+                }
+                if (tickHistory != null) {
+                    tickHistory.clear();
+                    tickHistory.record(level);
+                }
                 if(hasGui) {
+                    openJournal(previousSavestates, session != null);
                     window.repaint(true);
                     window.setTitle("SuperCC - " + new String(level.getTitle()));
                 }
@@ -172,6 +286,78 @@ public class SuperCC {
         }
     }
 
+    /**
+     * Start journaling the freshly loaded level. The previous session's
+     * journal is deleted if it belonged to another level. If this level has a
+     * journal left over from a crash, the user is offered to recover it.
+     * @param previousSavestates the SavestateManager that was just replaced
+     * @param restored true if the level's session was restored from memory,
+     *                 in which case the journal starts with its moves
+     */
+    private void openJournal(SavestateManager previousSavestates, boolean restored) {
+        File journalFile = new File(getJournalPath());
+        boolean reloaded = false;
+        if (previousSavestates != null && previousSavestates.getJournal() != null) {
+            reloaded = previousSavestates.getJournal().getFile().equals(journalFile);
+            previousSavestates.closeJournal(!reloaded);
+        }
+        SessionJournal.Session recovered = null;
+        if (!reloaded && !restored && SessionJournal.hasEvents(journalFile) && JOptionPane.showConfirmDialog(window,
+                "An unsaved session was found for this level. Recover it?", "SuCC Message",
+                JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+            try {
+                recovered = SessionJournal.read(journalFile);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                throwError("Could not read journal:\n"+e.getLocalizedMessage());
+            }
+        }
+        startJournal(restored);
+        if (recovered != null) {
+            if (recovered.rngSeed != level.getRngSeed() || recovered.step != level.getStep()) {
+                loadLevel(level.getLevelNumber(), recovered.rngSeed, recovered.step, false);
+            }
+            recovered.replay(this);
+            showAction("Recovered "+recovered.size()+" journaled actions");
+        }
+    }
+
+    /**
+     * Give the current SavestateManager a fresh journal for the current
+     * level, replacing any journal file left for it.
+     * @param withMoves true to start the journal with the moves up to the
+     *                  current position, for a session that already exists
+     */
+    private void startJournal(boolean withMoves) {
+        try {
+            savestates.setJournal(new SessionJournal(new File(getJournalPath()), level));
+            if (withMoves) savestates.journalMoves();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called when the main window is closed. A session that is exited
+     * normally needs no recovering, so its journal is deleted. The solution
+     * store is closed too.
+     */
+    public void close() {
+        if (savestates != null) savestates.closeJournal(true);
+        synchronized (this) {
+            if (solutionStore == null) return;
+            try {
+                solutionStore.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            solutionStore = null;
+        }
+    }
+
     public synchronized void loadLevel(int levelNumber){
         SeedSearch.kill();
         loadLevel(levelNumber, 0, Step.EVEN, true);
@@ -180,14 +366,23 @@ public class SuperCC {
     public boolean tick(byte b, Direction[] directions, TickFlags flags){
         if (level == null) return false;
         boolean tickTwice = level.tick(b, directions);
+        if (tickHistory != null) tickHistory.record(level);
         if (flags.doubleTick && tickTwice) {
             if (b != '-') b = capital(b); //Avoids a really weird situation where a mouse goal set in prior moves off a sliding tile can cause the wait to become capitalized due to the mouse move becoming a TSG move (note that even though the move panel will only display 1 '-' it actually takes 2 half moves)
             level.tick(b, DIRECTIONS[4]);
+            if (tickHistory != null) tickHistory.record(level);
         }
+        TickProfiler.Recorder profiler = TickProfiler.recorder();
+        if (profiler != null) profiler.startEmulatorTick();
         if (flags.save) {
             savestates.addRewindState(level, b);
         }
+        if (profiler != null) profiler.lap(TickProfiler.Phase.SAVESTATE);
         if (flags.repaint) window.repaint(false);
+        if (profiler != null) {
+            profiler.lap(TickProfiler.Phase.REPAINT);
+            profiler.endEmulatorTick();
+        }
 
         if (savestates.isUndesirableSaveState()) { //As far as I'm aware the way the actual method is setup its only possible to encounter this during gameplay, which is what we want
             throwMessage("Undesirable State Reached"); //Just a little pop up window that tells the user that they reached a prior marked undesirable state
@@ -196,99 +391,108 @@ public class SuperCC {
         return tickTwice;
     }
     
+    /**
+     * Tick the second half of a move for which {@link #tick(byte, TickFlags)}
+     * returned true, the same way it is ticked when the move is recorded.
+     * @param b the move that was ticked first
+     */
+    public void tickSecondHalf(byte b, TickFlags flags){
+        if (level == null) return;
+        if (b != '-') b = capital(b);
+        level.tick(b, DIRECTIONS[4]);
+        if (tickHistory != null) tickHistory.record(level);
+        if (flags.repaint) window.repaint(false);
+    }
+    
     public static boolean isClick(byte b){
         return b <= 0;
     }
     
     public boolean tick(byte b, TickFlags flags){
         if (level == null) return false;
-        Direction[] directions;
+        Direction[] directions = getDirections(level, b);
+        if (directions == null) return false;
+        return tick(b, directions, flags);
+    }
+    
+    /**
+     * Get the directions chip tries to move in for a move. For mouse moves
+     * this also sets the level's click position.
+     * @return the directions, or null if b is not a move
+     */
+    private static Direction[] getDirections(Level level, byte b){
         if (isClick(b)){
             Position screenPosition = Position.screenPosition(level.getChip().getPosition());
             Position clickedPosition = Position.clickPosition(screenPosition, b);
-            directions = level.getChip().getPosition().seek(clickedPosition);
             level.setClick(clickedPosition.getIndex());
-            return tick(b, directions, flags);
+            return level.getChip().getPosition().seek(clickedPosition);
         }
-        else{
-            for (int i = 0; i < BYTE_MOVEMENT_KEYS.length; i++) {
-                if (BYTE_MOVEMENT_KEYS[i] == b) {
-                    directions = DIRECTIONS[i];
-                    return tick(b, directions, flags);
-                }
-            }
+        for (int i = 0; i < BYTE_MOVEMENT_KEYS.length; i++) {
+            if (BYTE_MOVEMENT_KEYS[i] == b) return DIRECTIONS[i];
+        }
+        return null;
+    }
+    
+    /**
+     * Tick a level other than the emulator's own, e.g. one used to simulate
+     * savestates in the background, with a move from the move list. The
+     * level ends up in the same state as after {@link #tick(byte, TickFlags)}
+     * with double ticks enabled.
+     * @param b a move as it is stored in the move list
+     * @return true if the move was ticked twice
+     */
+    static boolean tickDetached(Level level, byte b){
+        return tickDetached(level, b, null);
+    }
+    
+    /**
+     * @param afterTick called after each tick, or null
+     */
+    static boolean tickDetached(Level level, byte b, Consumer<Level> afterTick){
+        b = lowerCase(b)[0];
+        Direction[] directions = getDirections(level, b);
+        if (directions == null) return false;
+        boolean tickTwice = level.tick(b, directions);
+        if (afterTick != null) afterTick.accept(level);
+        if (tickTwice) {
+            if (b != '-') b = capital(b);
+            level.tick(b, DIRECTIONS[4]);
+            if (afterTick != null) afterTick.accept(level);
+            return true;
         }
         return false;
     }
     
+    /**
+     * Parse a new copy of a level of the current levelset, independent of
+     * the one the emulator is showing.
+     */
+    Level parseLevel(int levelNumber, int rngSeed, Step step) throws IOException {
+        return dat.parseLevel(levelNumber, rngSeed, step);
+    }
+    
     public void showAction(String s){
         getMainWindow().getLastActionPanel().update(s);
         getMainWindow().getLastActionPanel().repaint();
     }
 
     private void testTWS(String levelset, String tws) {
-
-        openLevelset(new File(levelset));
-        setTWSFile(new File(tws));
         System.out.println(new File(levelset).getName());
-
-        for (int j = 1; j <= level.getLevelsetLength(); j++) {
-            loadLevel(j);
-            try {
-                Solution s = twsReader.readSolution(level);
-                // System.out.println(s.efficiency);
-                s.load(this);
-                for (int waits = 0; waits < 100 & !level.getChip().isDead(); waits++) {
-                    level.tick(WAIT, new Direction[] {});
-                }
-                if (level.getLayerFG().get(level.getChip().getPosition()) != Tile.EXITED_CHIP && !level.isCompleted()) {
-                    System.out.println("failed level "+level.getLevelNumber()+" "+new String(level.getTitle()));
-                }
-            }
-            catch (Exception exc) {
-                System.out.println("Error loading "+level.getLevelNumber()+" "+new String(level.getTitle()));
-                exc.printStackTrace();
-            }
-        }
-    }
-    
-    private void runBenchmark(int levelNumber, int runs){
-        loadLevel(levelNumber);
-        Solution s;
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         try {
-            s = twsReader.readSolution(level);
-            System.out.println("Running test without writing.");
-            long startTime = System.nanoTime();
-            for (int i = 0; i < runs; i++) s.load(this, TickFlags.LIGHT);
-            long endTime = System.nanoTime();
-            double timePerIteration = (endTime - startTime) / (double) runs;
-            System.out.println("Time per iteration:");
-            System.out.println((timePerIteration / 1000000)+"ms");
-            System.out.println((timePerIteration / 1000000000)+"s\n");
-            System.out.println("Running test with writing.");
-            startTime = System.nanoTime();
-            for (int i = 0; i < runs; i++) s.load(this);
-            endTime = System.nanoTime();
-            timePerIteration = (endTime - startTime) / (double) runs;
-            System.out.println("Time per iteration:");
-            System.out.println((timePerIteration / 1000000)+"ms");
-            System.out.println((timePerIteration / 1000000000)+"s");
-            double numMoves = savestates.getMoves().length;
-            int size = savestates.getSavestate().length;
-            while (savestates.getNode().hasParent()){
-                savestates.rewind();
-                size += savestates.getSavestate().length;
+            for (Future<TWSVerifier.Result> future : TWSVerifier.verify(new File(levelset), new File(tws), pool)) {
+                TWSVerifier.Result result = future.get();
+                if (!result.passed) System.out.println(result);
             }
-            System.out.println("\nTotal state size:");
-            System.out.println((size / (double) 1000)+" kb");
-            System.out.println("\nAverage state size:");
-            System.out.println((size / numMoves / 1000)+" kb");
         }
-        catch (IOException e){
-            System.out.println("Benchmark of level "+level+"failed");
+        catch (IOException | ExecutionException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        finally {
+            pool.shutdown();
         }
     }
-
+    
     public static void initialise(String[] args){
             SuperCC emulator = new SuperCC();
 
@@ -304,6 +508,8 @@ public class SuperCC {
             if (args[0].equals("-h")) {
                 System.out.println("SuperCC.jar [Levelset File]/[-h] [Level Number]/[TWS File] [Level Number]/[--testTWS]\n" +
                         "[Level Number] is optional, but [--testTWS] always has to be the 3rd argument.\n" +
+                        "SuperCC.jar --verify [--threads n] [--out report.csv] [Levelset File] [TWS File] ... checks\n" +
+                        "tws files against their levelsets without opening a window.\n" +
                         "If [-h] is used as the 1st argument all other arguments will be ignored.");
                 System.exit(0);
             }
@@ -367,6 +573,27 @@ public class SuperCC {
     }
 
     public static void main(String[] args){
+        String metricsFile = System.getProperty("supercc.metrics");
+        if (metricsFile != null) {                                  // Dump the metrics on exit, for headless runs
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Metrics.dump(new File(metricsFile));
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        if (args.length > 0 && args[0].equals("--verify")) {     // Headless, see TWSVerifier
+            try {
+                TWSVerifier.main(Arrays.copyOfRange(args, 1, args.length));
+            }
+            catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                System.exit(2);
+            }
+            return;
+        }
         SwingUtilities.invokeLater(() -> initialise(args));
     }
 
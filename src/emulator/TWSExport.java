@@ -0,0 +1,193 @@
+package emulator;
+
+import game.Level;
+import game.Position;
+import io.LevelsetIndex;
+import io.TWSWriter;
+import util.ByteList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.function.IntFunction;
+
+import static emulator.SuperCC.WAIT;
+
+/**
+ * Writes the saved solutions of every level of the current levelset to a
+ * single tws file.
+ * <p>
+ * Each level's solution is read from where {@link SuperCC#getJSONPath} saves
+ * it, or taken from the {@link SolutionStore} if the level has no saved
+ * solution there. It is played on a level of its own, on a pool of threads,
+ * which finds the position of every mouse click relative to chip and checks
+ * that it completes the level. A solution the level only ends a few ticks
+ * after, as when chip slides into the exit, is written with those ticks
+ * added. The level records are encoded on the same threads and written out
+ * in level order as they become ready, so only the records that are done
+ * ahead of the level being written are held in memory. The header names the
+ * last level that was written, so it is filled in once all records are.
+ * </p>
+ */
+public class TWSExport {
+
+    /**
+     * The levels that were written and the ones that were left out because
+     * their solutions don't complete them or couldn't be read.
+     */
+    public static class Result {
+        public final List<Integer> written = new ArrayList<>();
+        public final Map<Integer, String> failed = new TreeMap<>();
+        public int missing;                                         // Levels without a saved solution
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Wrote ").append(written.size()).append(" solutions");
+            if (missing > 0) sb.append(", ").append(missing).append(" levels have no saved solution");
+            for (Map.Entry<Integer, String> level : failed.entrySet()) {
+                sb.append("\nLevel ").append(level.getKey()).append(": ").append(level.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A level's record, or why there is none.
+     */
+    private static class Record {
+        final byte[] bytes;
+        final String error;
+
+        Record(byte[] bytes, String error) {
+            this.bytes = bytes;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Export the saved solutions of the emulator's levelset.
+     * @param threads the number of levels to verify and encode at once
+     */
+    public static Result export(SuperCC emulator, File twsFile, int threads) throws IOException, InterruptedException {
+        LevelsetIndex index = emulator.getLevelsetIndex();
+        SolutionStore store = emulator.getSolutionStore();
+        String levelsetHash = emulator.getLevelsetHash();
+        return export(emulator, twsFile, threads, levelNumber -> {
+            LevelsetIndex.Entry entry = index.get(levelNumber);
+            File json = new File(emulator.getJSONPath(levelNumber, entry.title == null ? new byte[0] : entry.title));
+            if (json.isFile()) return () -> readSolution(json);
+            SolutionStore.Entry stored = store.getFastest(levelsetHash, levelNumber);
+            if (stored == null) return null;
+            return () -> store.read(stored);
+        });
+    }
+
+    /**
+     * Export the solutions of the emulator's levelset.
+     * @param solutions gives a level's solution to read on the pool, or null
+     *                  if the level has none
+     */
+    static Result export(SuperCC emulator, File twsFile, int threads, IntFunction<Callable<Solution>> solutions)
+        throws IOException, InterruptedException {
+        LevelsetIndex index = emulator.getLevelsetIndex();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Record>> records = new ArrayList<>(index.size());
+        Result result = new Result();
+        for (int i = 1; i <= index.size(); i++) {
+            Callable<Solution> solution = solutions.apply(i);
+            if (solution == null) {
+                records.add(null);
+                result.missing++;
+                continue;
+            }
+            int levelNumber = i;
+            records.add(pool.submit(() -> encode(emulator, levelNumber, solution.call())));
+        }
+        pool.shutdown();
+
+        int lastLevel = 1;
+        try (FileOutputStream file = new FileOutputStream(twsFile)) {
+            OutputStream out = new BufferedOutputStream(file);
+            TWSWriter.writeHeader(out, lastLevel);
+            for (int i = 0; i < records.size(); i++) {
+                if (records.get(i) == null) continue;
+                Record record;
+                try {
+                    record = records.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) record = new Record(null, e.getCause().getMessage());
+                    else {
+                        e.getCause().printStackTrace();
+                        record = new Record(null, "Could not verify: " + e.getCause());
+                    }
+                }
+                records.set(i, null);                               // Don't hold on to the written records
+                if (record.bytes == null) result.failed.put(i + 1, record.error);
+                else {
+                    out.write(record.bytes);
+                    result.written.add(i + 1);
+                    lastLevel = i + 1;
+                }
+            }
+            out.flush();
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            TWSWriter.writeHeader(header, lastLevel);
+            file.getChannel().write(ByteBuffer.wrap(header.toByteArray()), 0);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Play a saved solution on a new copy of its level and encode it if it
+     * completes the level.
+     */
+    private static Solution readSolution(File json) throws IOException {
+        try {
+            return Solution.read(Files.readAllBytes(Paths.get(json.getPath())));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Could not read " + json.getName());
+        }
+    }
+
+    private static Record encode(SuperCC emulator, int levelNumber, Solution solution) throws IOException {
+        Level level = emulator.parseLevel(levelNumber, solution.rngSeed, solution.step);
+        ByteList mouseMoves = new ByteList();
+        for (int move = 0; move < solution.halfMoves.length; ) {
+            Position chipPosition = new Position(level.getChip().getPosition().getIndex());
+            int next = level.getChip().isDead() ? move + 1 : solution.tickDetached(level, move);
+            int end = Math.min(next, solution.halfMoves.length);   // The last tick can run past the end
+            for (int i = move; i < end; i++) {                      // The encoder needs every click, even skipped ones
+                if (i > move) chipPosition = level.getChip().getPosition();
+                byte b = solution.halfMoves[i];
+                if (SuperCC.isClick(b)) {
+                    Position clickedPosition = Position.clickPosition(Position.screenPosition(chipPosition), b);
+                    mouseMoves.add(clickedPosition.getX() - chipPosition.getX());
+                    mouseMoves.add(clickedPosition.getY() - chipPosition.getY());
+                }
+            }
+            move = next;
+        }
+        int waits = Solution.waitForEnd(level, Solution.GRACE_TICKS, null);
+        if (!Solution.isCompleted(level)) return new Record(null, "Solution does not complete the level");
+        if (waits > 0) {                                            // Record the time it takes the level to end
+            byte[] halfMoves = Arrays.copyOf(solution.halfMoves, solution.halfMoves.length + waits);
+            Arrays.fill(halfMoves, solution.halfMoves.length, halfMoves.length, WAIT);
+            solution = new Solution(halfMoves, solution.rngSeed, solution.step, Solution.HALF_MOVES);
+        }
+        return new Record(TWSWriter.encode(level, solution, mouseMoves), null);
+    }
+
+}
@@ -0,0 +1,169 @@
+package emulator;
+
+import game.Level;
+import io.DatParser;
+import io.LevelsetIndex;
+import io.TWSReader;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Checks that the solutions in tws files complete their levels, without a
+ * window or an emulator.
+ * <p>
+ * Every level is parsed and played on its own, so the levels of any number
+ * of levelsets are spread over a pool of threads. Each level gets a
+ * {@link Result} with whether its solution completes it, the timer when it
+ * does, the number of ticks played and how long playing them took.
+ * </p>
+ * <p>
+ * Run from the command line with pairs of levelset and tws files:
+ * <pre>TWSVerifier [--threads n] [--out report.csv] levelset tws [levelset tws ...]</pre>
+ * The report is written as CSV, one line per level, and the exit status is
+ * 1 if any level fails.
+ * </p>
+ */
+public class TWSVerifier {
+
+    private static final String CSV_HEADER = "levelset,level,title,passed,time,ticks,nanos,error";
+
+    public static class Result {
+        public final String levelset;
+        public final int levelNumber;
+        public final String title;
+        public final boolean passed;
+        public final int time;                                      // The timer in tenths, negative if untimed
+        public final int ticks;                                     // Ticks played, including any waits
+        public final long nanos;                                    // Spent playing, not parsing
+        public final String error;                                  // Why the level failed, null if it passed
+
+        Result(String levelset, int levelNumber, String title, boolean passed, int time, int ticks, long nanos,
+               String error) {
+            this.levelset = levelset;
+            this.levelNumber = levelNumber;
+            this.title = title;
+            this.passed = passed;
+            this.time = time;
+            this.ticks = ticks;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        String toCSV() {
+            return csv(levelset) + "," + levelNumber + "," + csv(title) + "," + passed + "," + time + ","
+                + ticks + "," + nanos + "," + (error == null ? "" : csv(error));
+        }
+
+        @Override
+        public String toString() {
+            return (passed ? "passed" : "failed") + " level " + levelNumber + " " + title
+                + (error == null ? "" : ": " + error);
+        }
+    }
+
+    private static String csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Verify every level of a levelset against a tws file.
+     * @param pool the threads to play the levels on, which can be shared
+     *             between levelsets
+     * @return the results in level order, as they finish
+     */
+    public static List<Future<Result>> verify(File levelset, File tws, ExecutorService pool) throws IOException {
+        DatParser dat = new DatParser(levelset);
+        TWSReader twsReader = new TWSReader(tws);
+        LevelsetIndex index = dat.getIndex();
+        String name = levelset.getName();
+        List<Future<Result>> results = new ArrayList<>(index.size());
+        for (int i = 1; i <= index.size(); i++) {
+            LevelsetIndex.Entry entry = index.get(i);
+            results.add(pool.submit(() -> verify(dat, twsReader, entry, name)));
+        }
+        return results;
+    }
+
+    private static Result verify(DatParser dat, TWSReader twsReader, LevelsetIndex.Entry entry, String levelset) {
+        int levelNumber = entry.levelNumber;
+        String title = LevelsetIndex.ascii(entry.title);
+        try {
+            Solution solution = twsReader.readSolution(levelNumber, entry.password);
+            Level level = dat.parseLevel(levelNumber, solution.rngSeed, solution.step);
+            long start = System.nanoTime();
+            boolean passed = solution.playDetached(level, Solution.GRACE_TICKS);
+            long nanos = System.nanoTime() - start;
+            String error = passed ? null : level.getChip().isDead() ? "Chip died" : "Solution does not complete the level";
+            return new Result(levelset, levelNumber, title, passed, level.getTimer(), level.getTickNumber(), nanos, error);
+        }
+        catch (Exception e) {
+            return new Result(levelset, levelNumber, title, false, 0, 0, 0, e.toString());
+        }
+    }
+
+    public static void writeCSV(List<Result> results, PrintStream out) {
+        out.println(CSV_HEADER);
+        for (Result result : results) out.println(result.toCSV());
+    }
+
+    private static Result get(Future<Result> future) throws InterruptedException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {                              // verify catches everything, so this is a bug
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        File out = null;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--out") && i + 1 < args.length) out = new File(args[++i]);
+            else files.add(new File(args[i]));
+        }
+        if (files.isEmpty() || files.size() % 2 != 0) {
+            System.err.println("TWSVerifier [--threads n] [--out report.csv] levelset tws [levelset tws ...]");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<List<Future<Result>>> levelsets = new ArrayList<>();
+        for (int i = 0; i < files.size(); i += 2) levelsets.add(verify(files.get(i), files.get(i + 1), pool));
+        pool.shutdown();
+
+        List<Result> results = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < levelsets.size(); i++) {
+            int passed = 0;
+            long nanos = 0;
+            for (Future<Result> future : levelsets.get(i)) {
+                Result result = get(future);
+                results.add(result);
+                nanos += result.nanos;
+                if (result.passed) passed++;
+                else System.err.println(files.get(2 * i).getName() + ": " + result);
+            }
+            failed += levelsets.get(i).size() - passed;
+            System.err.printf("%s: %d/%d passed, %.2fs simulated%n", files.get(2 * i).getName(), passed,
+                              levelsets.get(i).size(), nanos / 1e9);
+        }
+        System.err.printf("%d levels in %.2fs%n", results.size(), (System.nanoTime() - start) / 1e9);
+
+        if (out == null) writeCSV(results, System.out);
+        else {
+            try (PrintStream stream = new PrintStream(new BufferedOutputStream(new FileOutputStream(out)))) {
+                writeCSV(results, stream);
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,575 @@
+package emulator;
+
+import game.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A record of chip, the monster list, the slip list, the RNG and chip's
+ * inventory on every tick of a level, stored by column so questions like
+ * "when was chip last on ice?" only read the columns they need instead of
+ * decoding a savestate per tick.
+ * <p>
+ * Every tick recorded is a row. Rows are kept in memory until a block of
+ * {@value #BLOCK_TICKS} ticks is full, then each column of the block is
+ * delta encoded, deflated and appended to that column's file, which is
+ * memory-mapped like a {@link SavestateSpill}. The monster and slip lists
+ * are stored as one column of {@link Creature#bits()} each, with a column
+ * of their lengths.
+ * </p>
+ * <p>
+ * The rows always cover consecutive ticks. Recording a tick that was
+ * already recorded, as after a rewind, first drops the rows from that tick
+ * on, and recording a tick that does not follow the last one starts the
+ * history again.
+ * </p>
+ */
+public class TickHistory implements Closeable {
+
+    static final int BLOCK_TICKS = 1024;
+    private static final int REGION_SIZE = 1 << 22;                 // 4 MB
+
+    private enum Column {
+        CHIP, CHIP_FLOOR, RNG, CHIPS_LEFT, KEYS, BOOTS, MONSTER_COUNT, MONSTERS, SLIP_COUNT, SLIPS;
+
+        private static final Column[] allColumns = values();
+
+        /**
+         * @return the column holding the length of each row of this
+         * column, or null if every row has one value
+         */
+        Column countColumn() {
+            return this == MONSTERS ? MONSTER_COUNT : this == SLIPS ? SLIP_COUNT : null;
+        }
+    }
+
+    private final File directory;
+    private final ColumnFile[] files = new ColumnFile[Column.allColumns.length];
+    private final long[][] tail = new long[Column.allColumns.length][];    // The rows of the block being filled
+    private final int[] tailSize = new int[Column.allColumns.length];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private int firstTick = -1, ticks, blocks;
+
+    /**
+     * One column of every block that has been written, in a file of its
+     * own. Blocks are appended and only ever dropped from the end.
+     */
+    private static class ColumnFile {
+        private final File file;
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> regions = new ArrayList<>();
+        private long[] offsets = new long[16];
+        private int[] lengths = new int[16], counts = new int[16];
+        private long end;
+
+        private ByteBuffer region(long offset) throws IOException {
+            int region = (int) (offset / REGION_SIZE);
+            while (regions.size() <= region) {
+                regions.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * REGION_SIZE, REGION_SIZE));
+            }
+            ByteBuffer buffer = regions.get(region).duplicate();
+            buffer.position((int) (offset % REGION_SIZE));
+            return buffer;
+        }
+
+        void write(int block, byte[] data, int length, int count) throws IOException {
+            if (length > REGION_SIZE) throw new IOException("Block of " + length + " bytes is too large");
+            if (end % REGION_SIZE + length > REGION_SIZE) end = (end / REGION_SIZE + 1) * REGION_SIZE;
+            if (block >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                lengths = Arrays.copyOf(lengths, offsets.length);
+                counts = Arrays.copyOf(counts, offsets.length);
+            }
+            region(end).put(data, 0, length);
+            offsets[block] = end;
+            lengths[block] = length;
+            counts[block] = count;
+            end += length;
+        }
+
+        byte[] read(int block) throws IOException {
+            byte[] data = new byte[lengths[block]];
+            region(offsets[block]).get(data);
+            return data;
+        }
+
+        /**
+         * Drop a block and every block after it.
+         */
+        void truncate(int block) {
+            end = offsets[block];
+        }
+
+        void close() {
+            regions.clear();
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!file.delete()) file.deleteOnExit();
+        }
+
+        ColumnFile(File directory, Column column) throws IOException {
+            file = File.createTempFile(column.name().toLowerCase(), ".column", directory);
+            file.deleteOnExit();
+            channel = FileChannel.open(file.toPath(), READ, WRITE);
+        }
+    }
+
+    /**
+     * @param directory the directory to create the column files in. They
+     *                  are deleted when the history is closed.
+     */
+    public TickHistory(File directory) throws IOException {
+        this.directory = directory;
+        directory.mkdirs();
+        try {
+            for (Column column : Column.allColumns) {
+                files[column.ordinal()] = new ColumnFile(directory, column);
+                tail[column.ordinal()] = new long[column.countColumn() == null ? BLOCK_TICKS : BLOCK_TICKS * 4];
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Record every tick of a solution, from the level's current state.
+     */
+    public static TickHistory replay(Level level, Solution solution, File directory) throws IOException {
+        TickHistory history = new TickHistory(directory);
+        history.record(level);
+        for (int move = 0; move < solution.halfMoves.length && !level.getChip().isDead(); ) {
+            move = solution.tickDetached(level, move, history::record);
+        }
+        return history;
+    }
+
+    private void append(Column column, long value) {
+        int c = column.ordinal();
+        if (tailSize[c] == tail[c].length) tail[c] = Arrays.copyOf(tail[c], tail[c].length * 2);
+        tail[c][tailSize[c]++] = value;
+    }
+
+    /**
+     * Record the level's current state as the row of its current tick.
+     */
+    public synchronized void record(Level level) {
+        int tick = level.getTickNumber();
+        if (ticks > 0 && tick >= firstTick && tick <= firstTick + ticks) truncate(tick - firstTick);
+        else clear();
+        if (ticks == 0) firstTick = tick;
+
+        Creature chip = level.getChip();
+        append(Column.CHIP, chip.bits());
+        append(Column.CHIP_FLOOR, level.getLayerBG().get(chip.getPosition()).ordinal());
+        append(Column.RNG, level.getRngValue());
+        append(Column.CHIPS_LEFT, level.getChipsLeft());
+        long keys = 0;
+        for (int i = 0; i < 4; i++) keys |= (level.getKeys()[i] & 0xFFFFL) << (16 * i);
+        append(Column.KEYS, keys);
+        long boots = 0;
+        for (int i = 0; i < 4; i++) boots |= (level.getBoots()[i] & 0xFFL) << (8 * i);
+        append(Column.BOOTS, boots);
+        append(Column.MONSTER_COUNT, level.getMonsterList().size());
+        for (Creature monster : level.getMonsterList()) append(Column.MONSTERS, monster.bits());
+        append(Column.SLIP_COUNT, level.getSlipList().size());
+        for (Creature slipper : level.getSlipList()) append(Column.SLIPS, slipper.bits());
+
+        ticks++;
+        if (ticks - blocks * BLOCK_TICKS == BLOCK_TICKS) {
+            try {
+                flush();
+            }
+            catch (IOException e) {                                 // Keep what was written, start again after it
+                e.printStackTrace();
+                clear();
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        for (Column column : Column.allColumns) {
+            int c = column.ordinal();
+            byte[] data = encode(tail[c], tailSize[c]);
+            files[c].write(blocks, data, data.length, tailSize[c]);
+            tailSize[c] = 0;
+        }
+        blocks++;
+    }
+
+    /**
+     * Drop every row from a row on.
+     */
+    private void truncate(int row) {
+        if (row >= ticks) return;
+        int block = row / BLOCK_TICKS;
+        if (block < blocks) {                                       // Bring the block back to be filled again
+            try {
+                for (Column column : Column.allColumns) {
+                    int c = column.ordinal();
+                    long[] values = decode(files[c].read(block), files[c].counts[block]);
+                    if (tail[c].length < values.length) tail[c] = Arrays.copyOf(values, values.length);
+                    else System.arraycopy(values, 0, tail[c], 0, values.length);
+                    tailSize[c] = values.length;
+                    files[c].truncate(block);
+                }
+            }
+            catch (IOException | DataFormatException e) {
+                e.printStackTrace();
+                clear();
+                return;
+            }
+            blocks = block;
+        }
+        int keep = row - blocks * BLOCK_TICKS;
+        for (Column column : Column.allColumns) {
+            Column count = column.countColumn();
+            if (count == null) tailSize[column.ordinal()] = keep;
+            else {
+                int size = 0;
+                for (int i = 0; i < keep; i++) size += (int) tail[count.ordinal()][i];
+                tailSize[column.ordinal()] = size;
+            }
+        }
+        ticks = row;
+    }
+
+    /**
+     * Drop every row.
+     */
+    public synchronized void clear() {
+        if (blocks > 0) for (ColumnFile file : files) file.truncate(0);
+        Arrays.fill(tailSize, 0);
+        ticks = blocks = 0;
+        firstTick = -1;
+    }
+
+    /**
+     * @return the first tick recorded, or -1 if there are none
+     */
+    public synchronized int getFirstTick() {
+        return firstTick;
+    }
+
+    /**
+     * @return the last tick recorded, or -1 if there are none
+     */
+    public synchronized int getLastTick() {
+        return ticks == 0 ? -1 : firstTick + ticks - 1;
+    }
+
+    /**
+     * @return the bytes of compressed columns written to the files
+     */
+    public synchronized long getStoredBytes() {
+        long size = 0;
+        for (ColumnFile file : files) {
+            for (int i = 0; i < blocks; i++) size += file.lengths[i];
+        }
+        return size;
+    }
+
+    /**
+     * Delta encode the values with zig-zag varints and deflate them.
+     */
+    private byte[] encode(long[] values, int count) {
+        byte[] varints = new byte[count * 10];
+        int length = 0;
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = values[i] - previous;
+            previous = values[i];
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                varints[length++] = (byte) (zigzag & 0x7F | 0x80);
+                zigzag >>>= 7;
+            }
+            varints[length++] = (byte) zigzag;
+        }
+        deflater.reset();
+        deflater.setInput(varints, 0, length);
+        deflater.finish();
+        byte[] data = new byte[length + length / 8 + 64];
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == data.length) data = Arrays.copyOf(data, data.length * 2);
+            size += deflater.deflate(data, size, data.length - size);
+        }
+        return Arrays.copyOf(data, size);
+    }
+
+    private static long[] decode(byte[] data, int count) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        byte[] varints;
+        try {
+            inflater.setInput(data);
+            varints = new byte[Math.max(64, count * 2)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == varints.length) varints = Arrays.copyOf(varints, varints.length * 2);
+                int n = inflater.inflate(varints, length, varints.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += n;
+            }
+        }
+        finally {
+            inflater.end();
+        }
+        long[] values = new long[count];
+        long previous = 0;
+        int p = 0;
+        for (int i = 0; i < count; i++) {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = varints[p++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    /**
+     * One recorded tick, as seen by a query. Only the columns a query reads
+     * are decoded, a block at a time, and the same Tick is reused for every
+     * row of a query, so it must not be kept.
+     */
+    public final class Tick {
+        private final long[][] values = new long[Column.allColumns.length][];
+        private final int[][] starts = new int[Column.allColumns.length][];     // Where each row of a list column starts
+        private final int[] decodedBlock = new int[Column.allColumns.length];
+        private int row, block;
+
+        private Tick() {
+            Arrays.fill(decodedBlock, -1);
+        }
+
+        private void moveTo(int row) {
+            this.row = row;
+            block = row / BLOCK_TICKS;
+        }
+
+        private long[] column(Column column) {
+            int c = column.ordinal();
+            if (decodedBlock[c] != block) {
+                if (block < blocks) {
+                    try {
+                        values[c] = decode(files[c].read(block), files[c].counts[block]);
+                    }
+                    catch (IOException | DataFormatException e) {
+                        throw new IllegalStateException("Could not read the tick history", e);
+                    }
+                }
+                else values[c] = tail[c];
+                Column count = column.countColumn();
+                if (count != null) {
+                    long[] counts = column(count);
+                    int[] start = new int[BLOCK_TICKS + 1];
+                    int rows = block < blocks ? BLOCK_TICKS : ticks - blocks * BLOCK_TICKS;
+                    for (int i = 0; i < rows; i++) start[i + 1] = start[i] + (int) counts[i];
+                    starts[c] = start;
+                }
+                decodedBlock[c] = block;
+            }
+            return values[c];
+        }
+
+        private long get(Column column) {
+            return column(column)[row - block * BLOCK_TICKS];
+        }
+
+        private long get(Column column, int i) {
+            long[] values = column(column);
+            int start = starts[column.ordinal()][row - block * BLOCK_TICKS];
+            return values[start + i];
+        }
+
+        public int getTickNumber() {
+            return firstTick + row;
+        }
+
+        public int getTimer(Level level) {
+            int tick = getTickNumber();
+            return tick == 0 ? level.getStartTime() : level.getStartTime() - tick + 1;
+        }
+
+        public Creature getChip() {
+            return new Creature((int) get(Column.CHIP));
+        }
+
+        public Position getChipPosition() {
+            return new Position((int) get(Column.CHIP) & 0b11_1111_1111);
+        }
+
+        /**
+         * @return the tile on the lower layer under chip
+         */
+        public Tile getTileUnderChip() {
+            return Tile.fromOrdinal((int) get(Column.CHIP_FLOOR));
+        }
+
+        public int getRNGValue() {
+            return (int) get(Column.RNG);
+        }
+
+        public int getChipsLeft() {
+            return (int) get(Column.CHIPS_LEFT);
+        }
+
+        /**
+         * @param key 0 to 3 for blue, red, green and yellow
+         */
+        public int getKeys(int key) {
+            return (short) (get(Column.KEYS) >>> (16 * key));
+        }
+
+        /**
+         * @param boot 0 to 3 for flippers, fire boots, skates and suction
+         *             boots
+         */
+        public int getBoots(int boot) {
+            return (byte) (get(Column.BOOTS) >>> (8 * boot));
+        }
+
+        public int getMonsterCount() {
+            return (int) get(Column.MONSTER_COUNT);
+        }
+
+        public Creature getMonster(int i) {
+            return new Creature((int) get(Column.MONSTERS, i));
+        }
+
+        public int getSlipCount() {
+            return (int) get(Column.SLIP_COUNT);
+        }
+
+        public Creature getSlipper(int i) {
+            return new Creature((int) get(Column.SLIPS, i));
+        }
+
+        /**
+         * @return true if any monster in the monster list matches
+         */
+        public boolean anyMonster(Predicate<Creature> predicate) {
+            for (int i = 0, n = getMonsterCount(); i < n; i++) if (predicate.test(getMonster(i))) return true;
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Tick " + getTickNumber();
+        }
+    }
+
+    private int clampFrom(int from) {
+        return (int) Math.max(0, (long) from - firstTick);
+    }
+
+    private int clampTo(int to) {
+        return (int) Math.min(ticks - 1, (long) to - firstTick);
+    }
+
+    /**
+     * @return the first tick from one tick to another, inclusive, that
+     * matches, or -1 if none does
+     */
+    public synchronized int first(int from, int to, Predicate<Tick> predicate) {
+        Tick tick = new Tick();
+        for (int row = clampFrom(from), end = clampTo(to); row <= end; row++) {
+            tick.moveTo(row);
+            if (predicate.test(tick)) return tick.getTickNumber();
+        }
+        return -1;
+    }
+
+    public int first(Predicate<Tick> predicate) {
+        return first(Integer.MIN_VALUE, Integer.MAX_VALUE, predicate);
+    }
+
+    /**
+     * @return the last tick from one tick to another, inclusive, that
+     * matches, or -1 if none does
+     */
+    public synchronized int last(int from, int to, Predicate<Tick> predicate) {
+        Tick tick = new Tick();
+        for (int row = clampTo(to), start = clampFrom(from); row >= start; row--) {
+            tick.moveTo(row);
+            if (predicate.test(tick)) return tick.getTickNumber();
+        }
+        return -1;
+    }
+
+    public int last(Predicate<Tick> predicate) {
+        return last(Integer.MIN_VALUE, Integer.MAX_VALUE, predicate);
+    }
+
+    /**
+     * @return every run of consecutive matching ticks as the first and last
+     * tick of the run
+     */
+    public synchronized List<int[]> ranges(Predicate<Tick> predicate) {
+        List<int[]> ranges = new ArrayList<>();
+        Tick tick = new Tick();
+        int start = -1;
+        for (int row = 0; row < ticks; row++) {
+            tick.moveTo(row);
+            boolean matches = predicate.test(tick);
+            if (matches && start < 0) start = row;
+            else if (!matches && start >= 0) {
+                ranges.add(new int[] {firstTick + start, firstTick + row - 1});
+                start = -1;
+            }
+        }
+        if (start >= 0) ranges.add(new int[] {firstTick + start, firstTick + ticks - 1});
+        return ranges;
+    }
+
+    /**
+     * @return the number of ticks that match
+     */
+    public synchronized int count(Predicate<Tick> predicate) {
+        Tick tick = new Tick();
+        int count = 0;
+        for (int row = 0; row < ticks; row++) {
+            tick.moveTo(row);
+            if (predicate.test(tick)) count++;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        deflater.end();
+        for (ColumnFile file : files) if (file != null) file.close();
+    }
+
+    @Override
+    public String toString() {
+        return "TickHistory in " + directory;
+    }
+
+}
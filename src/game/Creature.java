@@ -179,7 +179,7 @@ public class Creature{
                 level.getSlipList().add(this);
                 if (!creatureType.isBlock()) {
                     direction = applySlidingTile(direction, level.layerBG.get(position), level.rng); //When a creature first enters a sliding tile its direction is updated to face whatever direction its going to move next after that tile takes effect
-                    CreatureList.direction = this.getDirection();
+                    level.monsterList.direction = this.getDirection();
                 }
             }
         }
@@ -278,6 +278,7 @@ public class Creature{
             if (canEnter(direction, exitTile, level)) break;
         }
         while (i != portalIndex);
+        if (level.events != null) level.events.teleport(level.tickNumber, creatureType, level.getPortals()[portalIndex], position);
     }
     
     private boolean canLeave(Direction direction, Tile tile, Level level){
@@ -374,6 +375,14 @@ public class Creature{
         }
     }
     private boolean tryEnter(Direction direction, Level level, Position newPosition, Tile tile, List<Button> pressedButtons){
+        EventLog events = level.events;
+        if (events == null) return enter(direction, level, newPosition, tile, pressedButtons);
+        CreatureID type = creatureType;
+        boolean entered = enter(direction, level, newPosition, tile, pressedButtons);
+        events.enter(level.tickNumber, type, position, newPosition, tile, entered, isDead() && tile != EXIT);
+        return entered;
+    }
+    private boolean enter(Direction direction, Level level, Position newPosition, Tile tile, List<Button> pressedButtons){
         sliding = false;
         switch (tile) {
             case FLOOR: return true;
@@ -806,7 +815,7 @@ public class Creature{
 
     boolean tick(Direction[] directions, Level level, boolean slidingMove){
         Creature oldCreature = clone();
-        if (!creatureType.isChip() && !isSliding()) CreatureList.direction = direction;
+        if (!creatureType.isChip() && !isSliding()) level.monsterList.direction = direction;
         for (Direction newDirection : directions){
     
             LinkedList<Button> pressedButtons = new LinkedList<>();
@@ -832,11 +841,11 @@ public class Creature{
                 }
                 if (!creatureType.isChip()) {
                     if (level.getLayerBG().get(position).isChip()) level.getChip().kill();
-                    if (!isSliding()) CreatureList.direction = newDirection;
+                    if (!isSliding()) level.monsterList.direction = newDirection;
                 }
                 return true;
             }
-            if (!creatureType.isChip() && !isSliding()) CreatureList.direction = newDirection;
+            if (!creatureType.isChip() && !isSliding()) level.monsterList.direction = newDirection;
 
         }
         setSliding(oldCreature.sliding, level);
@@ -20,7 +20,7 @@ public class CreatureList implements Iterable<Creature> {
     private Creature[] list;
     int numDeadMonsters;
     private List<Creature> newClones;
-    public static Direction direction;
+    Direction direction;
     private boolean blobStep;
     
     public Creature creatureAt(Position position){
@@ -164,6 +164,7 @@ public class CreatureList implements Iterable<Creature> {
                             resetClone.setSliding(true);
                             resetClone.tick(new Direction[]{Direction.DOWN}, level, false); //Some fancy stuff to actually make them slide
                         } //Fun fact: not having else here causes a crash when a sliding creature steps off a sliding force floor and hits a resetclone button the same turn a normal clone button is hit, BUT only if that's the first normal button hit. However the game not adding resetclones that started on sliding tiles to the monster list is a bigger issue
+                        if (level.events != null) level.events.clone(level.tickNumber, position, row31Position, tile);
                         if (!SpecialTileInteraction && !(resetClone.getCreatureType().isBlock())) newClones.add(resetClone); //the above error is caused by accidentally adding blocks to the monsterlist, if you handle it so that doesn't happen there's no error
                         level.ResetData(row0Position, level); //passes the position of the reset to a new method to handle data resets
                     }
@@ -184,6 +185,7 @@ public class CreatureList implements Iterable<Creature> {
             Tile newTile = level.layerFG.get(newPosition);
 
             if (clone.canEnter(direction, newTile, level) || newTile == clone.toTile()) {
+                if (level.events != null) level.events.clone(level.tickNumber, position, position, tile);
                 if (clone.getCreatureType().isBlock()) tickClonedMonster(clone);
                 else newClones.add(clone);
 
@@ -0,0 +1,239 @@
+package game;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size ring buffer of the interactions on a level: chip's move on
+ * each tick, notable tiles entered, buttons pressed, traps opened and
+ * closed, clones made, teleports taken and savestates loaded.
+ * <p>
+ * Each event is packed into two longs, so logging an event allocates
+ * nothing, and a level without a log (the default) only pays for a null
+ * check. Enable logging for new levels with {@link #setEnabled(boolean)} or
+ * -Dsupercc.events=true.
+ * </p>
+ * <p>
+ * The log is written only by the thread ticking the level and can be read
+ * from any other without locking: a reader copies the events and then
+ * discards the ones the writer may have overwritten meanwhile. The slots are
+ * atomic so that neither side's slot accesses can be reordered across its
+ * access to the count of events written.
+ * </p>
+ */
+public final class EventLog {
+
+    public enum Type {
+        MOVE, ENTER, BUTTON, TRAP_OPEN, TRAP_CLOSE, CLONE, TELEPORT, LOAD;
+
+        private static final Type[] allTypes = values();
+    }
+
+    public static final int DEFAULT_CAPACITY = 1 << 15;
+    private static final int NO_POSITION = 0xFFFF;
+    private static final int ENTERED = 1, DIED = 2;
+    private static final boolean[] loggedTiles = new boolean[Tile.values().length];
+
+    static {
+        Tile[] tiles = {Tile.CHIP, Tile.WATER, Tile.FIRE, Tile.BLOCK, Tile.ICE_BLOCK, Tile.DIRT, Tile.EXIT,
+            Tile.DOOR_BLUE, Tile.DOOR_RED, Tile.DOOR_GREEN, Tile.DOOR_YELLOW, Tile.BLUEWALL_FAKE, Tile.BLUEWALL_REAL,
+            Tile.THIEF, Tile.SOCKET, Tile.BOMB, Tile.TRAP, Tile.HIDDENWALL_TEMP, Tile.POP_UP_WALL};
+        for (Tile tile : tiles) loggedTiles[tile.ordinal()] = true;
+        for (Tile tile : Tile.values()) {
+            if (tile.isPickup() || tile.isCreature() || tile.isChip() || tile.isSwimmingChip()) loggedTiles[tile.ordinal()] = true;
+        }
+    }
+
+    private static volatile boolean enabled = Boolean.getBoolean("supercc.events");
+
+    private final AtomicLongArray slots;                            // Two per event
+    private final int mask;
+    private final AtomicLong written = new AtomicLong();            // Events written since the log was made
+
+    /**
+     * @param capacity the number of events kept, rounded up to a power of
+     * two
+     */
+    public EventLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new AtomicLongArray(size * 2);
+        mask = size - 1;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether levels made from now on get a log.
+     */
+    public static void setEnabled(boolean enabled) {
+        EventLog.enabled = enabled;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of events written since the log was made,
+     * including the ones overwritten since
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    private static int pack(Position position) {
+        if (position == null) return NO_POSITION;
+        return (position.x & 0xFF) << 8 | position.y & 0xFF;
+    }
+
+    private static Position unpack(int position) {
+        if (position == NO_POSITION) return null;
+        return new Position((byte) (position >>> 8), (byte) position);
+    }
+
+    private void add(Type type, int tick, int flags, Position from, Position to, int value) {
+        long n = written.get();
+        int i = (int) (n & mask) << 1;
+        slots.lazySet(i, (long) tick << 32 | type.ordinal() << 24 | (flags & 0xFF) << 16);
+        slots.lazySet(i + 1, (long) pack(from) << 48 | (long) pack(to) << 32 | value & 0xFFFFFFFFL);
+        written.lazySet(n + 1);                                     // Publishes the slots, without a full fence
+    }
+
+    void move(int tick, Position chip, byte move) {
+        add(Type.MOVE, tick, 0, chip, null, move);
+    }
+
+    /**
+     * Log a creature entering a tile, if the tile is one worth logging.
+     */
+    void enter(int tick, CreatureID creature, Position from, Position to, Tile tile, boolean entered, boolean died) {
+        if (!loggedTiles[tile.ordinal()]) return;
+        int flags = (entered ? ENTERED : 0) | (died ? DIED : 0);
+        add(Type.ENTER, tick, flags, from, to, creature.ordinal() << 8 | tile.ordinal());
+    }
+
+    public void button(int tick, Tile button, Position position, Position target) {
+        add(Type.BUTTON, tick, 0, position, target, button.ordinal());
+    }
+
+    public void trap(int tick, int trapIndex, Position trap, boolean open) {
+        add(open ? Type.TRAP_OPEN : Type.TRAP_CLOSE, tick, 0, null, trap, trapIndex);
+    }
+
+    void clone(int tick, Position cloner, Position clone, Tile tile) {
+        add(Type.CLONE, tick, 0, cloner, clone, tile.ordinal());
+    }
+
+    void teleport(int tick, CreatureID creature, Position from, Position to) {
+        add(Type.TELEPORT, tick, 0, from, to, creature.ordinal());
+    }
+
+    void load(int tick) {
+        add(Type.LOAD, tick, 0, null, null, 0);
+    }
+
+    /**
+     * An event read back from the log.
+     */
+    public static final class Event {
+        public final long index;                                    // Counting every event written to the log
+        public final int tick;
+        public final Type type;
+        public final Position from, to;                             // Either may be null
+        private final int flags, value;
+
+        private Event(long index, long word0, long word1) {
+            this.index = index;
+            tick = (int) (word0 >>> 32);
+            type = Type.allTypes[(int) (word0 >>> 24) & 0xFF];
+            flags = (int) (word0 >>> 16) & 0xFF;
+            from = unpack((int) (word1 >>> 48) & 0xFFFF);
+            to = unpack((int) (word1 >>> 32) & 0xFFFF);
+            value = (int) word1;
+        }
+
+        private static String creature(int ordinal) {
+            String name = CreatureID.fromOrdinal(ordinal).name().replace('_', ' ');
+            return name.charAt(0) + name.substring(1).toLowerCase();
+        }
+
+        /**
+         * @return the event in words, without the tick
+         */
+        public String describe() {
+            switch (type) {
+                case MOVE:
+                    String move = value >= 32 && value < 127 ? String.valueOf((char) value) : Integer.toString(value);
+                    return "Chip at " + from + " moves " + move;
+                case ENTER:
+                    return creature(value >>> 8) + " at " + from + (((flags & ENTERED) != 0) ? " enters " : " is blocked by ")
+                        + Tile.fromOrdinal(value & 0xFF) + " at " + to + ((flags & DIED) != 0 ? " and dies" : "");
+                case BUTTON:
+                    return Tile.fromOrdinal(value) + " pressed at " + from + (to == null ? "" : ", connected to " + to);
+                case TRAP_OPEN:
+                    return "Trap " + value + " at " + to + " opens";
+                case TRAP_CLOSE:
+                    return "Trap " + value + " at " + to + " closes";
+                case CLONE:
+                    return Tile.fromOrdinal(value) + " cloned at " + to + (to.equals(from) ? "" : " by cloner at " + from);
+                case TELEPORT:
+                    return creature(value) + " teleports from " + from + " to " + to;
+                default:
+                    return "Savestate loaded";
+            }
+        }
+
+        @Override
+        public String toString() {
+            return tick + ": " + describe();
+        }
+    }
+
+    /**
+     * Read the events still in the log, oldest first.
+     * @param since the index of the first event wanted, 0 for all
+     */
+    public List<Event> getEvents(long since) {
+        long end = written.get();
+        long start = Math.max(since, end - getCapacity());
+        if (start >= end) return new ArrayList<>();
+        long[] copy = new long[(int) (end - start) * 2];
+        for (long n = start; n < end; n++) {
+            int i = (int) (n & mask) << 1;
+            int j = (int) (n - start) << 1;
+            copy[j] = slots.get(i);
+            copy[j + 1] = slots.get(i + 1);
+        }
+        long first = Math.max(start, written.get() - getCapacity() + 1);    // Anything older may have been overwritten
+        List<Event> events = new ArrayList<>((int) Math.max(0, end - first));
+        for (long n = first; n < end; n++) {
+            int j = (int) (n - start) << 1;
+            events.add(new Event(n, copy[j], copy[j + 1]));
+        }
+        return events;
+    }
+
+    /**
+     * Write events as CSV, with a header.
+     */
+    public static void writeCSV(List<Event> events, Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("tick,type,from,to,description");
+        for (Event event : events) {
+            out.println(event.tick + "," + event.type + "," + csv(event.from) + "," + csv(event.to)
+                        + ",\"" + event.describe().replace("\"", "\"\"") + "\"");
+        }
+        out.flush();
+    }
+
+    private static String csv(Position position) {
+        return position == null ? "" : "\"" + position + "\"";
+    }
+
+}
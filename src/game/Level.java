@@ -1,6 +1,7 @@
 package game;
 
 import game.button.*;
+import util.Metrics;
 
 import java.util.BitSet;
 
@@ -9,6 +10,7 @@ import static game.Tile.*;
 public class Level extends SaveState {
     
     private static final int HALF_WAIT = 0, KEY = 1, CLICK_EARLY = 2, CLICK_LATE = 3;
+    private static final Metrics.Counter TICKS = Metrics.counter("engine.ticks");
     public static final byte UP = 'u', LEFT = 'l', DOWN = 'd', RIGHT = 'r', WAIT = '-';
 
     public final int INITIAL_MONSTER_LIST_SIZE = monsterList.size();
@@ -32,6 +34,7 @@ public class Level extends SaveState {
     private Position AutopsyPosition = new Position(22, 0);
     
     public final Cheats cheats;
+    EventLog events;                                                // Null unless logging
     
     public int getLevelNumber() {
         return levelNumber;
@@ -81,6 +84,9 @@ public class Level extends SaveState {
     public int getRngSeed(){
         return rngSeed;
     }
+    public int getRngValue(){
+        return rng.getCurrentValue();
+    }
     public Step getStep(){
         return step;
     }
@@ -109,6 +115,12 @@ public class Level extends SaveState {
         if (tickNumber == 0) return 9999;
         else return 9999 - tickNumber + 1;                     // The first tick does not change the timer
     }
+    /**
+     * @return the number of ticks since the level started
+     */
+    public int getTickNumber() {
+        return tickNumber;
+    }
     void setTimer(int n) {
         startTime = n + tickNumber - 1;
     }
@@ -184,6 +196,21 @@ public class Level extends SaveState {
 
     public void setLevelWon(boolean won) {levelWon = won;}
 
+    /**
+     * @return the log of this level's events, or null if it has none
+     */
+    public EventLog getEventLog() {
+        return events;
+    }
+
+    /**
+     * @param events the log to write this level's events to, or null to
+     *               stop logging
+     */
+    public void setEventLog(EventLog events) {
+        this.events = events;
+    }
+
     public boolean isCompleted() {
         return levelWon;
     }
@@ -212,6 +239,7 @@ public class Level extends SaveState {
         this.step = step;
         this.cheats = new Cheats(this);
         this.LEVELSET_LENGTH = levelsetLength;
+        if (EventLog.isEnabled()) this.events = new EventLog(EventLog.DEFAULT_CAPACITY);
         
         this.slipList.setLevel(this);
         this.monsterList.setLevel(this);
@@ -223,6 +251,12 @@ public class Level extends SaveState {
         }
     }
     
+    @Override
+    public void load(byte[] savestate){
+        super.load(savestate);
+        if (events != null) events.load(tickNumber);
+    }
+    
     void popTile(Position position){
         layerFG.set(position, layerBG.get(position));
         layerBG.set(position, FLOOR);
@@ -296,9 +330,11 @@ public class Level extends SaveState {
     private void finaliseTraps(){
         for (BrownButton b : brownButtons) {
             if (layerBG.get(b.getButtonPosition()) == BUTTON_BROWN){
+                if (events != null && !traps.get(b.getTrapIndex())) events.trap(tickNumber, b.getTrapIndex(), b.getTargetPosition(), true);
                 traps.set(b.getTrapIndex(), true);
             }
             else if (layerFG.get(b.getTargetPosition()) == TRAP){
+                if (events != null && traps.get(b.getTrapIndex())) events.trap(tickNumber, b.getTrapIndex(), b.getTargetPosition(), false);
                 traps.set(b.getTrapIndex(), false);
             }
         }
@@ -336,9 +372,23 @@ public class Level extends SaveState {
      * @return true if the next move should be made automatically without input
      */
     public boolean tick(byte b, Direction[] directions){
+        TICKS.increment();
+        TickProfiler.Recorder profiler = TickProfiler.recorder();
+        if (profiler == null) return tick(b, directions, null);
+        profiler.startTick();
+        try {
+            return tick(b, directions, profiler);
+        }
+        finally {
+            profiler.endTick(this);
+        }
+    }
+
+    private boolean tick(byte b, Direction[] directions, TickProfiler.Recorder profiler){
 
         setLevelWon(false); //Each tick sets the level won state to false so that even when rewinding unless you stepped into the exit the level is not won
         initialiseSlidingMonsters();
+        if (events != null) events.move(tickNumber, chip.getPosition(), b);
         boolean isHalfMove = (tickNumber & 0x1) != 0; //A faster version of tickNumber % 2 != 0;
         int moveType = moveType(b, isHalfMove, chip.isSliding());
         monsterList.initialise();
@@ -352,10 +402,17 @@ public class Level extends SaveState {
             }
         }
 
-        if (tickNumber > 0 && !isHalfMove) monsterList.tick();
+        if (profiler != null) profiler.lap(TickProfiler.Phase.SETUP);
+
+        if (tickNumber > 0 && !isHalfMove) {
+            monsterList.tick();
+            if (profiler != null) profiler.count(TickProfiler.Count.CREATURES, monsterList.size());
+        }
+        if (profiler != null) profiler.lap(TickProfiler.Phase.MONSTERS);
 
         if (endTick()) return false;
         if (chip.isSliding()) moveChipSliding();
+        if (profiler != null) profiler.lap(TickProfiler.Phase.CHIP_SLIDE);
         if (endTick()) return false;
         if (moveType == CLICK_EARLY) {
             if (voluntaryMoveAllowed) {
@@ -368,7 +425,12 @@ public class Level extends SaveState {
         }
         if (endTick()) return false;
         tickNumber++;
+        if (profiler != null) {
+            profiler.lap(TickProfiler.Phase.CHIP_MOVE);
+            profiler.count(TickProfiler.Count.SLIDES, slipList.size());
+        }
         slipList.tick();
+        if (profiler != null) profiler.lap(TickProfiler.Phase.SLIP_LIST);
         if (endTick()) return false;
         if (moveType == KEY) {
             moveChip(directions);
@@ -379,11 +441,15 @@ public class Level extends SaveState {
             moveChip(chip.seek(new Position(mouseGoal)));
             voluntaryMoveAllowed = true;
         }
+        if (profiler != null) profiler.lap(TickProfiler.Phase.CHIP_MOVE);
         if (endTick()) return false;
 
+        if (profiler != null) profiler.count(TickProfiler.Count.CLONES, monsterList.getNewClones().size());
         monsterList.finalise();
+        if (profiler != null) profiler.lap(TickProfiler.Phase.FINALISE);
         finaliseTraps();
         if (moveType == KEY || chip.getPosition().getIndex() == mouseGoal) mouseGoal = NO_CLICK;
+        if (profiler != null) profiler.lap(TickProfiler.Phase.TRAPS);
 
         return (moveType == KEY || moveType == CLICK_EARLY) && !isHalfMove && !chip.isSliding();
     }
@@ -64,7 +64,7 @@ public class RNG{
     }
     
     public RNG(int startingSeed) {
-        currentValue = startingSeed;
+        setCurrentValue(startingSeed);                                              // The top bit never affects the output, and savestates drop it
     }
 
 }
@@ -79,6 +79,53 @@ public class SaveState {
         return writer.toByteArray();
     }
     
+    /**
+     * Hash everything {@link #save()} writes, without writing a savestate.
+     * Two levels with the same hash are all but certain to have the same
+     * savestate.
+     * @return a 64 bit hash of the state
+     */
+    public long hash(){
+        long h = mix(0, chip.bits());
+        h = mix(h, layerBG.getBytes());
+        h = mix(h, layerFG.getBytes());
+        h = mix(h, (long) tickNumber << 32 | chipsLeft);
+        h = mix(h, (long) keys[0] << 48 | (keys[1] & 0xFFFFL) << 32 | (keys[2] & 0xFFFFL) << 16 | keys[3] & 0xFFFFL);
+        h = mix(h, boots);
+        h = mix(h, (long) rng.getCurrentValue() << 32 | mouseGoal);
+        for (long word : traps.toLongArray()) h = mix(h, word);
+        h = mix(h, monsterList.size());
+        for (Creature monster : monsterList.getCreatures()) h = mix(h, monster.bits());
+        h = mix(h, slipList.size());
+        for (Creature monster : slipList) h = mix(h, monster.bits());
+        h = mix(h, (long) idleMoves << 1 | (voluntaryMoveAllowed ? 1 : 0));
+        h ^= h >>> 33;                                              // Finalise as in MurmurHash3
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+
+    private static long mix(long h, long value){
+        h ^= value * 0x9E3779B97F4A7C15L;
+        return Long.rotateLeft(h, 31) * 0xBF58476D1CE4E5B9L;
+    }
+
+    /**
+     * Mix a byte array in 8 bytes at a time.
+     */
+    private static long mix(long h, byte[] bytes){
+        int i = 0;
+        for (; i + 8 <= bytes.length; i += 8) {
+            long word = 0;
+            for (int j = i; j < i + 8; j++) word = word << 8 | bytes[j] & 0xFF;
+            h = mix(h, word);
+        }
+        long word = bytes.length;
+        for (; i < bytes.length; i++) word = word << 8 | bytes[i] & 0xFF;
+        return mix(h, word);
+    }
+
     /**
      * load a savestate
      * @param savestate the savestate to load
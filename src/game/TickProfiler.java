@@ -0,0 +1,211 @@
+package game;
+
+import jdk.jfr.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opt-in timing of the phases of {@link Level#tick} and of the savestate
+ * and repaint work the emulator does after a move.
+ * <p>
+ * While profiling is enabled every thread that ticks a level keeps its own
+ * {@link Recorder}, which times the phases with {@link System#nanoTime()}
+ * and counts the creatures ticked, the creatures sliding and the clones
+ * made. At the end of each tick the numbers are added to totals shared by
+ * all threads and committed as a {@link LevelTickEvent} or
+ * {@link EmulatorTickEvent}, which a JFR recording picks up. When
+ * profiling is disabled a tick costs one volatile read. Start with
+ * -Dsupercc.profile=true to profile from the start.
+ * </p>
+ */
+public class TickProfiler {
+
+    public enum Phase {
+        SETUP("Setup", false),
+        MONSTERS("Monster list", false),
+        CHIP_SLIDE("Chip sliding", false),
+        SLIP_LIST("Slip list", false),
+        CHIP_MOVE("Chip moving", false),
+        FINALISE("Monster list finalise", false),
+        TRAPS("Traps", false),
+        SAVESTATE("Savestates", true),
+        REPAINT("Repaint", true);
+
+        public final String label;
+        public final boolean emulator;                              // Once per emulator move rather than per tick
+
+        Phase(String label, boolean emulator) {
+            this.label = label;
+            this.emulator = emulator;
+        }
+    }
+
+    public enum Count {
+        TICKS("Ticks"),
+        MOVES("Emulator moves"),
+        CREATURES("Creatures ticked"),
+        SLIDES("Slides"),
+        CLONES("Clones");
+
+        public final String label;
+
+        Count(String label) {
+            this.label = label;
+        }
+    }
+
+    private static volatile boolean enabled = Boolean.getBoolean("supercc.profile");
+    private static final LongAdder[] nanos = adders(Phase.values().length);
+    private static final LongAdder[] counts = adders(Count.values().length);
+    private static final ThreadLocal<Recorder> recorders = ThreadLocal.withInitial(Recorder::new);
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TickProfiler.enabled = enabled;
+    }
+
+    /**
+     * @return the current thread's recorder, or null if profiling is
+     * disabled
+     */
+    public static Recorder recorder() {
+        return enabled ? recorders.get() : null;
+    }
+
+    /**
+     * @return the time spent in a phase on all threads since the last reset
+     */
+    public static long getNanos(Phase phase) {
+        return nanos[phase.ordinal()].sum();
+    }
+
+    public static long getCount(Count count) {
+        return counts[count.ordinal()].sum();
+    }
+
+    public static void reset() {
+        for (LongAdder adder : nanos) adder.reset();
+        for (LongAdder adder : counts) adder.reset();
+    }
+
+    /**
+     * Times the phases of one tick on one thread. A tick is started, its
+     * phases are ended one after the other with {@link #lap}, and the tick
+     * is ended, which adds it to the totals.
+     */
+    public static class Recorder {
+        private final long[] tickNanos = new long[Phase.values().length];
+        private final long[] tickCounts = new long[Count.values().length];
+        private long last;
+        private Event event;
+
+        private void start(Event event) {
+            Arrays.fill(tickNanos, 0);
+            Arrays.fill(tickCounts, 0);
+            this.event = event;
+            event.begin();
+            last = System.nanoTime();
+        }
+
+        void startTick() {
+            start(new LevelTickEvent());
+        }
+
+        public void startEmulatorTick() {
+            start(new EmulatorTickEvent());
+        }
+
+        /**
+         * End a phase, which started when the last one ended.
+         */
+        public void lap(Phase phase) {
+            long now = System.nanoTime();
+            tickNanos[phase.ordinal()] += now - last;
+            last = now;
+        }
+
+        void count(Count count, int n) {
+            tickCounts[count.ordinal()] += n;
+        }
+
+        private void add() {
+            for (int i = 0; i < tickNanos.length; i++) if (tickNanos[i] != 0) nanos[i].add(tickNanos[i]);
+            for (int i = 0; i < tickCounts.length; i++) if (tickCounts[i] != 0) counts[i].add(tickCounts[i]);
+        }
+
+        void endTick(Level level) {
+            tickCounts[Count.TICKS.ordinal()]++;
+            add();
+            LevelTickEvent event = (LevelTickEvent) this.event;
+            event.end();
+            if (event.shouldCommit()) {
+                event.level = level.getLevelNumber();
+                event.tick = level.getTickNumber();
+                event.setup = tickNanos[Phase.SETUP.ordinal()];
+                event.monsters = tickNanos[Phase.MONSTERS.ordinal()];
+                event.chipSlide = tickNanos[Phase.CHIP_SLIDE.ordinal()];
+                event.slipList = tickNanos[Phase.SLIP_LIST.ordinal()];
+                event.chipMove = tickNanos[Phase.CHIP_MOVE.ordinal()];
+                event.finalise = tickNanos[Phase.FINALISE.ordinal()];
+                event.traps = tickNanos[Phase.TRAPS.ordinal()];
+                event.creatures = (int) tickCounts[Count.CREATURES.ordinal()];
+                event.slides = (int) tickCounts[Count.SLIDES.ordinal()];
+                event.clones = (int) tickCounts[Count.CLONES.ordinal()];
+                event.commit();
+            }
+        }
+
+        public void endEmulatorTick() {
+            tickCounts[Count.MOVES.ordinal()]++;
+            add();
+            EmulatorTickEvent event = (EmulatorTickEvent) this.event;
+            event.end();
+            if (event.shouldCommit()) {
+                event.savestate = tickNanos[Phase.SAVESTATE.ordinal()];
+                event.repaint = tickNanos[Phase.REPAINT.ordinal()];
+                event.commit();
+            }
+        }
+    }
+
+    @Name("supercc.LevelTick")
+    @Label("Level Tick")
+    @Category("SuperCC")
+    @Description("The phases of one Level.tick")
+    @StackTrace(false)
+    public static class LevelTickEvent extends Event {
+        @Label("Level") int level;
+        @Label("Tick") int tick;
+        @Label("Setup") @Timespan(Timespan.NANOSECONDS) long setup;
+        @Label("Monster List") @Timespan(Timespan.NANOSECONDS) long monsters;
+        @Label("Chip Sliding") @Timespan(Timespan.NANOSECONDS) long chipSlide;
+        @Label("Slip List") @Timespan(Timespan.NANOSECONDS) long slipList;
+        @Label("Chip Moving") @Timespan(Timespan.NANOSECONDS) long chipMove;
+        @Label("Monster List Finalise") @Timespan(Timespan.NANOSECONDS) long finalise;
+        @Label("Traps") @Timespan(Timespan.NANOSECONDS) long traps;
+        @Label("Creatures Ticked") int creatures;
+        @Label("Slides") int slides;
+        @Label("Clones") int clones;
+    }
+
+    @Name("supercc.EmulatorTick")
+    @Label("Emulator Tick")
+    @Category("SuperCC")
+    @Description("The savestate and repaint work after a move")
+    @StackTrace(false)
+    public static class EmulatorTickEvent extends Event {
+        @Label("Savestates") @Timespan(Timespan.NANOSECONDS) long savestate;
+        @Label("Repaint") @Timespan(Timespan.NANOSECONDS) long repaint;
+    }
+
+}
@@ -1,16 +1,20 @@
 package game.button;
 
 import game.Creature;
+import game.EventLog;
 import game.Level;
 import game.Position;
 
 import static game.CreatureID.TANK_MOVING;
 import static game.Direction.TURN_AROUND;
+import static game.Tile.BUTTON_BLUE;
 
 public class BlueButton extends Button {
     
     @Override
     public void press(Level level) {
+        EventLog events = level.getEventLog();
+        if (events != null) events.button(level.getTickNumber(), BUTTON_BLUE, getButtonPosition(), null);
         for (Creature m : level.getMonsterList()) {
             if (m.getCreatureType().isTank() && !m.isSliding()){
                 m.setCreatureType(TANK_MOVING);
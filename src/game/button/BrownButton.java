@@ -1,14 +1,22 @@
 package game.button;
 
+import game.EventLog;
 import game.Level;
 import game.Position;
 
+import static game.Tile.BUTTON_BROWN;
+
 public class BrownButton extends ConnectionButton {
     
     private final int trapIndex;
     
     @Override
     public void press(Level level) {
+        EventLog events = level.getEventLog();
+        if (events != null) {
+            events.button(level.getTickNumber(), BUTTON_BROWN, getButtonPosition(), targetPosition);
+            if (!isOpen(level)) events.trap(level.getTickNumber(), trapIndex, targetPosition, true);
+        }
         level.getOpenTraps().set(trapIndex);
     }
     
@@ -17,6 +25,8 @@ public class BrownButton extends ConnectionButton {
     }
     
     public void release(Level level) {
+        EventLog events = level.getEventLog();
+        if (events != null && isOpen(level)) events.trap(level.getTickNumber(), trapIndex, targetPosition, false);
         level.getOpenTraps().set(trapIndex, false);
     }
     
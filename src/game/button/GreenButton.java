@@ -1,8 +1,10 @@
 package game.button;
 
+import game.EventLog;
 import game.Level;
 import game.Position;
 
+import static game.Tile.BUTTON_GREEN;
 import static game.Tile.TOGGLE_CLOSED;
 import static game.Tile.TOGGLE_OPEN;
 
@@ -10,6 +12,8 @@ public class GreenButton extends Button{
     
     @Override
     public void press(Level level) {
+        EventLog events = level.getEventLog();
+        if (events != null) events.button(level.getTickNumber(), BUTTON_GREEN, getButtonPosition(), null);
         for (Position p : level.getToggleDoors()) {
             if      (level.getLayerFG().get(p) == TOGGLE_OPEN) level.getLayerFG().set(p, TOGGLE_CLOSED);
             else if (level.getLayerFG().get(p) == TOGGLE_CLOSED) level.getLayerFG().set(p, TOGGLE_OPEN);
@@ -1,12 +1,17 @@
 package game.button;
 
+import game.EventLog;
 import game.Level;
 import game.Position;
 
+import static game.Tile.BUTTON_RED;
+
 public class RedButton extends ConnectionButton {
     
     @Override
     public void press(Level level) {
+        EventLog events = level.getEventLog();
+        if (events != null) events.button(level.getTickNumber(), BUTTON_RED, getButtonPosition(), targetPosition);
         level.getMonsterList().addClone(targetPosition);
     }
     
@@ -0,0 +1,160 @@
+package graphics;
+
+import emulator.SuperCC;
+import game.EventLog;
+import game.Level;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A window listing the {@link EventLog} of the current level, newest last.
+ * Logging is enabled while the window is open, and the current level gets
+ * a log if it has none. The list follows the level the emulator is on and
+ * can be filtered by type and exported as CSV.
+ */
+class EventLogWindow extends JDialog {
+
+    private static final String ALL_TYPES = "All events";
+
+    private final SuperCC emulator;
+    private final boolean wasEnabled = EventLog.isEnabled();
+    private final EventModel model = new EventModel();
+    private final JComboBox<Object> typeFilter = new JComboBox<>();
+    private final JCheckBox follow = new JCheckBox("Follow", true);
+    private final JTable table = new JTable(model);
+    private final Timer timer;
+    private Level level;
+    private long since;                                             // Events before this are cleared
+
+    private static class EventModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"Tick", "Type", "Event"};
+        private final List<EventLog.Event> events = new ArrayList<>();
+
+        @Override
+        public int getRowCount() {
+            return events.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            EventLog.Event event = events.get(row);
+            switch (column) {
+                case 0: return event.tick;
+                case 1: return event.type;
+                default: return event.describe();
+            }
+        }
+    }
+
+    private EventLog attach() {
+        Level current = emulator.getLevel();
+        if (current == null) return null;
+        if (current.getEventLog() == null) current.setEventLog(new EventLog(EventLog.DEFAULT_CAPACITY));
+        if (current != level) {
+            level = current;
+            since = 0;
+        }
+        return current.getEventLog();
+    }
+
+    private void refresh() {
+        EventLog log = attach();
+        List<EventLog.Event> events = model.events;
+        events.clear();
+        if (log != null) {
+            Object type = typeFilter.getSelectedItem();
+            for (EventLog.Event event : log.getEvents(since)) {
+                if (type == ALL_TYPES || event.type == type) events.add(event);
+            }
+        }
+        model.fireTableDataChanged();
+        if (follow.isSelected() && !events.isEmpty()) {
+            table.scrollRectToVisible(table.getCellRect(events.size() - 1, 0, true));
+        }
+    }
+
+    private void clear() {
+        EventLog log = attach();
+        if (log != null) since = log.getWritten();
+        refresh();
+    }
+
+    private void export() {
+        JFileChooser fc = new JFileChooser();
+        fc.setSelectedFile(new File("events.csv"));
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        try (Writer writer = new BufferedWriter(new FileWriter(fc.getSelectedFile()))) {
+            EventLog.writeCSV(model.events, writer);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not export events:\n" + e.getMessage());
+        }
+    }
+
+    EventLogWindow(Window owner, SuperCC emulator) {
+        super(owner, "Event log", ModalityType.MODELESS);
+        this.emulator = emulator;
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setPreferredWidth(50);
+        table.getColumnModel().getColumn(1).setPreferredWidth(80);
+        table.getColumnModel().getColumn(2).setPreferredWidth(420);
+
+        typeFilter.addItem(ALL_TYPES);
+        for (EventLog.Type type : EventLog.Type.values()) typeFilter.addItem(type);
+        typeFilter.addActionListener(e -> refresh());
+        JButton clear = new JButton("Clear");
+        clear.addActionListener(e -> clear());
+        JButton export = new JButton("Export CSV...");
+        export.addActionListener(e -> export());
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(typeFilter);
+        buttons.add(follow);
+        buttons.add(clear);
+        buttons.add(export);
+
+        JPanel panel = new JPanel(new BorderLayout(0, 4));
+        panel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        panel.add(buttons, BorderLayout.SOUTH);
+        setContentPane(panel);
+        setSize(600, 450);
+        setLocationRelativeTo(owner);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        timer = new Timer(500, e -> refresh());
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+                EventLog.setEnabled(wasEnabled);
+                if (!wasEnabled && emulator.getLevel() != null) emulator.getLevel().setEventLog(null);
+            }
+        });
+        EventLog.setEnabled(true);
+        refresh();
+        timer.start();
+    }
+
+}
@@ -0,0 +1,117 @@
+package graphics;
+
+import emulator.SavestateSearch;
+import emulator.SuperCC;
+import game.Level;
+import game.Position;
+import game.Tile;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+/**
+ * A window that moves the emulator to the first or last savestate on the
+ * current branch matching a condition, see {@link SavestateSearch}.
+ */
+class FindTickWindow extends JDialog {
+
+    private static final String CHIP_AT = "Chip at (x, y)", CHIP_ON = "Chip on tile", MONSTERS = "Monster count",
+        KEYS = "Key count", CHIPS_LEFT = "Chips left";
+    private static final String[] KEY_COLOURS = {"Blue", "Red", "Green", "Yellow"};
+
+    private final SuperCC emulator;
+    private final JComboBox<String> condition = new JComboBox<>(new String[] {CHIP_AT, CHIP_ON, MONSTERS, KEYS, CHIPS_LEFT});
+    private final JComboBox<Tile> tile = new JComboBox<>(Tile.values());
+    private final JComboBox<String> key = new JComboBox<>(KEY_COLOURS);
+    private final JSpinner x = new JSpinner(new SpinnerNumberModel(0, 0, 31, 1));
+    private final JSpinner y = new JSpinner(new SpinnerNumberModel(0, 0, 31, 1));
+    private final JSpinner count = new JSpinner(new SpinnerNumberModel(0, 0, Short.MAX_VALUE, 1));
+    private final JLabel result = new JLabel(" ");
+
+    private void updateFields() {
+        Object selected = condition.getSelectedItem();
+        x.setVisible(selected == CHIP_AT);
+        y.setVisible(selected == CHIP_AT);
+        tile.setVisible(selected == CHIP_ON);
+        key.setVisible(selected == KEYS);
+        count.setVisible(selected == MONSTERS || selected == KEYS || selected == CHIPS_LEFT);
+        pack();
+    }
+
+    private Predicate<Level> predicate() {
+        Object selected = condition.getSelectedItem();
+        int n = (Integer) count.getValue();
+        if (selected == CHIP_AT) return SavestateSearch.chipAt(new Position((Integer) x.getValue(), (Integer) y.getValue()));
+        if (selected == CHIP_ON) return SavestateSearch.chipOn((Tile) tile.getSelectedItem());
+        if (selected == MONSTERS) return SavestateSearch.monsterCount(n);
+        if (selected == KEYS) return SavestateSearch.keyCount(key.getSelectedIndex(), n);
+        return SavestateSearch.chipsLeft(n);
+    }
+
+    private void find(boolean last) {
+        if (emulator.getLevel() == null || SuperCC.areToolsRunning() || !emulator.getSavestates().isPaused()) return;
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        try {
+            int threads = Runtime.getRuntime().availableProcessors();
+            long start = System.nanoTime();
+            int index = last ? SavestateSearch.last(emulator, predicate(), threads)
+                             : SavestateSearch.first(emulator, predicate(), threads);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            int nodes = emulator.getSavestates().getPlaybackNodes().size();
+            if (index < 0) {
+                result.setText("No match in " + nodes + " savestates (" + millis + " ms)");
+                return;
+            }
+            SavestateSearch.rewind(emulator, index);
+            result.setText("Found at savestate " + index + " of " + nodes + " (" + millis + " ms)");
+            emulator.showAction("Found " + condition.getSelectedItem());
+            emulator.repaint(false);
+        }
+        catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not search:\n" + e.getMessage());
+        }
+        finally {
+            setCursor(Cursor.getDefaultCursor());
+        }
+    }
+
+    FindTickWindow(Window owner, SuperCC emulator) {
+        super(owner, "Find tick", ModalityType.MODELESS);
+        this.emulator = emulator;
+        if (emulator.getLevel() != null) {
+            Position chip = emulator.getLevel().getChip().getPosition();
+            x.setValue(chip.getX());
+            y.setValue(chip.getY());
+        }
+        condition.addActionListener(e -> updateFields());
+        JButton first = new JButton("First");
+        first.addActionListener(e -> find(false));
+        JButton last = new JButton("Last");
+        last.addActionListener(e -> find(true));
+
+        JPanel fields = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        fields.add(condition);
+        fields.add(x);
+        fields.add(y);
+        fields.add(tile);
+        fields.add(key);
+        fields.add(count);
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(first);
+        buttons.add(last);
+
+        JPanel panel = new JPanel(new BorderLayout(0, 4));
+        panel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        panel.add(fields, BorderLayout.NORTH);
+        panel.add(result, BorderLayout.CENTER);
+        panel.add(buttons, BorderLayout.SOUTH);
+        setContentPane(panel);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        updateFields();
+        setLocationRelativeTo(owner);
+    }
+
+}
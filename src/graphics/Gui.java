@@ -9,6 +9,8 @@ import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.plaf.basic.BasicSliderUI;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.util.List;
 
@@ -25,6 +27,8 @@ public class Gui extends JFrame{
     private JSlider speedSlider;
     private JPanel sliderPanel;
     private JButton playButton;
+    private final JPanel contentPanel = new JPanel(new BorderLayout());
+    private MetricsPanel metricsPanel;
     
     static final int DEFAULT_TILE_WIDTH = 20;
     static final int DEFAULT_TILE_HEIGHT = 20;
@@ -117,7 +121,7 @@ public class Gui extends JFrame{
                 else {
                     emulator.showAction("Playing solution");
                     playButton.setIcon(new ImageIcon(ImageIO.read(getClass().getResource("/resources/icons/pause.gif"))));
-                    new Thread(() -> emulator.getSavestates().play(emulator)).start();
+                    emulator.getSavestates().startPlayback(emulator);
                 }
             }
             catch (IOException exc) {
@@ -145,8 +149,15 @@ public class Gui extends JFrame{
         getInventoryPanel().initialise(emulator);
         getInventoryPanel().setOpaque(true);
         getGamePanel().setEmulator(emulator);
-        setContentPane(mainPanel);
+        contentPanel.add(mainPanel, BorderLayout.CENTER);
+        setContentPane(contentPanel);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                emulator.close();
+            }
+        });
         setJMenuBar(new MenuBar(this, emulator));
         pack();
         setVisible(true);
@@ -162,6 +173,23 @@ public class Gui extends JFrame{
         emulator.setControls(keyListener);
     }
     
+    /**
+     * Show or hide the metrics panel on the right of the window.
+     */
+    public void setMetricsVisible(boolean visible) {
+        if (visible == (metricsPanel != null)) return;
+        if (visible) {
+            metricsPanel = new MetricsPanel();
+            contentPanel.add(metricsPanel, BorderLayout.EAST);
+        }
+        else {
+            contentPanel.remove(metricsPanel);
+            metricsPanel = null;
+        }
+        pack();
+        requestFocus();
+    }
+    
     public void updateTimeSlider(SavestateManager manager) {
         List<TreeNode<byte[]>> playbackNodes = manager.getPlaybackNodes();
         timeSlider.setMaximum(playbackNodes.size() - 1);
@@ -0,0 +1,118 @@
+package graphics;
+
+import emulator.SuperCC;
+import io.FeatureIndex;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A dialog that finds the levels of every levelset in the levelset directory
+ * that have all of a list of features, e.g. "teleport blob>=2". The feature
+ * index is kept in the SuCC directory and brought up to date in the
+ * background when the dialog opens. Double clicking a level or pressing
+ * enter opens it.
+ */
+class LevelSearch extends JDialog {
+
+    private final SuperCC emulator;
+    private final DefaultListModel<FeatureIndex.Match> matches = new DefaultListModel<>();
+    private final JLabel status = new JLabel(" ");
+    private FeatureIndex index;
+
+    private void search(String query) {
+        matches.clear();
+        if (index == null) return;
+        try {
+            List<FeatureIndex.Match> found = index.query(query);
+            for (FeatureIndex.Match match : found) matches.addElement(match);
+            status.setText(found.size() + " of " + index.size() + " levels");
+        }
+        catch (IllegalArgumentException e) {
+            status.setText(e.getMessage());
+        }
+    }
+
+    private void openSelected(JList<FeatureIndex.Match> list) {
+        FeatureIndex.Match match = list.getSelectedValue();
+        if (match == null || SuperCC.areToolsRunning()) return;
+        dispose();
+        emulator.openLevelset(match.levelset);
+        emulator.loadLevel(match.levelNumber);
+    }
+
+    private void update(File indexFile, JTextField query) {
+        File[] files = new File(emulator.getPaths().getLevelsetPath()).listFiles((dir, name) -> {
+            String lower = name.toLowerCase(Locale.ROOT);
+            return lower.endsWith(".dat") || lower.endsWith(".ccl");
+        });
+        List<File> levelsets = new ArrayList<>();
+        if (files != null) for (File file : files) levelsets.add(file);
+        status.setText("Indexing " + levelsets.size() + " levelsets...");
+        new SwingWorker<FeatureIndex, Void>() {
+            @Override
+            protected FeatureIndex doInBackground() throws IOException {
+                FeatureIndex index = FeatureIndex.load(indexFile);
+                index.update(levelsets);
+                index.save(indexFile);
+                return index;
+            }
+            @Override
+            protected void done() {
+                try {
+                    index = get();
+                    status.setText(index.size() + " levels");
+                    if (!query.getText().trim().isEmpty()) search(query.getText());
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                    status.setText("Could not index levelsets: " + e.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    LevelSearch(SuperCC emulator, Window owner) {
+        super(owner, "Find levels by feature", ModalityType.MODELESS);
+        this.emulator = emulator;
+        JList<FeatureIndex.Match> list = new JList<>(matches);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+        JTextField query = new JTextField();
+        query.setToolTipText("Tiles, creatures or button wires, e.g. \"teleport blob>=2 wire:button_brown-trap\"");
+        query.addActionListener(e -> search(query.getText()));
+
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) openSelected(list);
+            }
+        });
+        list.getInputMap(JComponent.WHEN_FOCUSED).put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "open");
+        list.getActionMap().put("open", new AbstractAction() {
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                openSelected(list);
+            }
+        });
+
+        JPanel panel = new JPanel(new BorderLayout(0, 4));
+        panel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        panel.add(query, BorderLayout.NORTH);
+        panel.add(new JScrollPane(list), BorderLayout.CENTER);
+        panel.add(status, BorderLayout.SOUTH);
+        setContentPane(panel);
+        setSize(500, 500);
+        setLocationRelativeTo(owner);
+        update(new File(emulator.getPaths().getSuccPath(), "features.index"), query);
+    }
+
+}
@@ -0,0 +1,125 @@
+package graphics;
+
+import emulator.SuperCC;
+import io.LevelsetIndex;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableRowSorter;
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.regex.Pattern;
+
+/**
+ * A dialog listing every level of the levelset from its index, which can be
+ * filtered by title or password. Double clicking a level or pressing enter
+ * loads it.
+ */
+class LevelSelect extends JDialog {
+
+    private static final String[] COLUMNS = {"#", "Title", "Password", "Time", "Chips", "Monsters"};
+
+    private static class IndexModel extends AbstractTableModel {
+        private final LevelsetIndex index;
+
+        @Override
+        public int getRowCount() {
+            return index.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column == 1 || column == 2 ? String.class : Integer.class;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            LevelsetIndex.Entry level = index.get(row + 1);
+            switch (column) {
+                case 0: return row + 1;
+                case 1: return LevelsetIndex.ascii(level.title);
+                case 2: return LevelsetIndex.ascii(level.password);
+                case 3: return level.timeLimit;
+                case 4: return level.chips;
+                default: return level.monsters;
+            }
+        }
+
+        IndexModel(LevelsetIndex index) {
+            this.index = index;
+        }
+    }
+
+    private void loadSelected(SuperCC emulator, JTable table) {
+        int row = table.getSelectedRow();
+        if (row < 0) return;
+        dispose();
+        emulator.loadLevel(table.convertRowIndexToModel(row) + 1);
+    }
+
+    LevelSelect(SuperCC emulator, Window owner, LevelsetIndex index) {
+        super(owner, "Select level", ModalityType.MODELESS);
+        JTable table = new JTable(new IndexModel(index));
+        TableRowSorter<IndexModel> sorter = new TableRowSorter<>((IndexModel) table.getModel());
+        table.setRowSorter(sorter);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.getColumnModel().getColumn(1).setPreferredWidth(250);
+
+        JTextField filter = new JTextField();
+        filter.getDocument().addDocumentListener(new DocumentListener() {
+            private void update() {
+                String text = filter.getText().trim();
+                if (text.isEmpty()) sorter.setRowFilter(null);
+                else sorter.setRowFilter(RowFilter.regexFilter("(?i)" + Pattern.quote(text), 1, 2));
+            }
+            @Override
+            public void insertUpdate(DocumentEvent e) { update(); }
+            @Override
+            public void removeUpdate(DocumentEvent e) { update(); }
+            @Override
+            public void changedUpdate(DocumentEvent e) { update(); }
+        });
+        filter.addActionListener(e -> {
+            if (table.getRowCount() > 0 && table.getSelectedRow() < 0) table.setRowSelectionInterval(0, 0);
+            loadSelected(emulator, table);
+        });
+
+        table.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) loadSelected(emulator, table);
+            }
+        });
+        table.getInputMap(JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT)
+            .put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "load");
+        table.getActionMap().put("load", new AbstractAction() {
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                loadSelected(emulator, table);
+            }
+        });
+
+        JPanel panel = new JPanel(new BorderLayout(0, 4));
+        panel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        panel.add(filter, BorderLayout.NORTH);
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        setContentPane(panel);
+        setSize(600, 500);
+        setLocationRelativeTo(owner);
+    }
+
+}
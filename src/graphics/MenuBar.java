@@ -1,8 +1,11 @@
 package graphics;
 
+import emulator.KeyframedSolution;
 import emulator.SavestateManager;
 import emulator.Solution;
+import emulator.SolutionStore;
 import emulator.SuperCC;
+import emulator.TWSExport;
 import emulator.TickFlags;
 import game.Level;
 import game.Position;
@@ -118,6 +121,43 @@ class MenuBar extends JMenuBar{
             addIcon(goTo, "/resources/icons/goto.gif");
             add(goTo);
 
+            JMenuItem select = new JMenuItem("Select level...");
+            select.addActionListener(e -> {
+                if (!SuperCC.areToolsRunning()) {
+                    try {
+                        new LevelSelect(emulator, window, emulator.getLevelsetIndex()).setVisible(true);
+                    }
+                    catch (IOException ex) {
+                        ex.printStackTrace();
+                        emulator.throwError("Could not read levelset: "+ex.getMessage());
+                    }
+                }
+            });
+            select.setAccelerator(KeyStroke.getKeyStroke(VK_L, CTRL_MASK + SHIFT_MASK));
+            add(select);
+
+            JMenuItem search = new JMenuItem("Find levels by feature...");
+            search.addActionListener(e -> new LevelSearch(emulator, window).setVisible(true));
+            add(search);
+
+            JMenuItem fastest = new JMenuItem("Load fastest stored solution");
+            fastest.addActionListener(e -> {
+                if (!SuperCC.areToolsRunning()) {
+                    try {
+                        SolutionStore store = emulator.getSolutionStore();
+                        SolutionStore.Entry entry = store.getFastest(emulator.getLevelsetHash(),
+                                                                     emulator.getLevel().getLevelNumber());
+                        if (entry == null) JOptionPane.showMessageDialog(window, "No stored solution completes this level");
+                        else store.read(entry).loadInstantly(emulator);
+                    }
+                    catch (IOException ex) {
+                        ex.printStackTrace();
+                        emulator.throwError("Could not read solution store: "+ex.getMessage());
+                    }
+                }
+            });
+            add(fastest);
+
             add(new JSeparator());
 
             JMenuItem toggleStep = new JMenuItem("Toogle odd/even step");
@@ -162,15 +202,16 @@ class MenuBar extends JMenuBar{
                 Solution solution = new Solution(emulator.getSavestates().getMoveList(), l.getRngSeed(), l.getStep());
                 try{
                     JFileChooser fc = new JFileChooser();
-                    fc.setFileFilter(new FileNameExtensionFilter("json", "json"));
+                    fc.setFileFilter(new FileNameExtensionFilter("json, scs", "json", "scs"));
                     fc.setCurrentDirectory(new File(emulator.getJSONPath()));
                     fc.setSelectedFile(new File(emulator.getJSONPath()));
                     if (fc.showSaveDialog(window) == JFileChooser.APPROVE_OPTION) {
                         File file = fc.getSelectedFile();
                         String filename = file.toString();
-                        if (!filename .endsWith(".json")) filename += ".json";
+                        boolean binary = filename.endsWith(".scs");      // Packed binary solution
+                        if (!binary && !filename.endsWith(".json")) filename += ".json";
                         FileOutputStream fos = new FileOutputStream(filename);
-                        fos.write(solution.toString().getBytes());
+                        fos.write(binary ? solution.toBinary() : solution.toString().getBytes());
                         fos.close();
                     }
                 }
@@ -205,12 +246,12 @@ class MenuBar extends JMenuBar{
             open.addActionListener(event -> {
                 try{
                     JFileChooser fc = new JFileChooser();
-                    fc.setFileFilter(new FileNameExtensionFilter("json", "json"));
+                    fc.setFileFilter(new FileNameExtensionFilter("json, scs", "json", "scs"));
                     fc.setCurrentDirectory(new File(emulator.getJSONPath()).getParentFile());
                     fc.setSelectedFile(new File(emulator.getJSONPath()));
                     if (fc.showOpenDialog(window) == JFileChooser.APPROVE_OPTION) {
-                        Solution solution = Solution.fromJSON(new String(Files.readAllBytes(fc.getSelectedFile().toPath()), StandardCharsets.ISO_8859_1));
-                        solution.load(emulator);
+                        Solution solution = Solution.read(Files.readAllBytes(fc.getSelectedFile().toPath()));
+                        solution.loadInstantly(emulator);
                     }
                 }
                 catch (IOException e){
@@ -220,16 +261,142 @@ class MenuBar extends JMenuBar{
             });
             addIcon(open, "/resources/icons/open.gif");
             add(open);
+    
+            JMenuItem saveKeyframed = new JMenuItem("Save with keyframes");
+            saveKeyframed.addActionListener(event -> {
+                Level l = emulator.getLevel();
+                int levelNumber = l.getLevelNumber();
+                Solution solution = new Solution(emulator.getSavestates().getMoveList(), l.getRngSeed(), l.getStep());
+                JFileChooser fc = new JFileChooser();
+                fc.setFileFilter(new FileNameExtensionFilter("json", "json"));
+                fc.setCurrentDirectory(new File(emulator.getJSONPath()));
+                fc.setSelectedFile(new File(emulator.getJSONPath()));
+                if (fc.showSaveDialog(window) == JFileChooser.APPROVE_OPTION) {
+                    String filename = fc.getSelectedFile().toString();
+                    File file = new File(filename.endsWith(".json") ? filename : filename + ".json");
+                    new SwingWorker<Void, Void>() {
+                        @Override
+                        protected Void doInBackground() throws Exception {
+                            KeyframedSolution keyframed = KeyframedSolution.create(emulator, levelNumber, solution,
+                                                                                   KeyframedSolution.DEFAULT_INTERVAL);
+                            Files.write(file.toPath(), keyframed.toString().getBytes(ISO_8859_1));
+                            return null;
+                        }
+                        @Override
+                        protected void done() {
+                            try {
+                                get();
+                            }
+                            catch (Exception e) {
+                                e.printStackTrace();
+                                emulator.throwError("Could not save file: "+e.getMessage());
+                            }
+                        }
+                    }.execute();
+                }
+            });
+            add(saveKeyframed);
+    
+            JMenuItem verifyKeyframed = new JMenuItem("Verify keyframed solution");
+            verifyKeyframed.addActionListener(event -> {
+                JFileChooser fc = new JFileChooser();
+                fc.setFileFilter(new FileNameExtensionFilter("json", "json"));
+                fc.setCurrentDirectory(new File(emulator.getJSONPath()).getParentFile());
+                fc.setSelectedFile(new File(emulator.getJSONPath()));
+                if (fc.showOpenDialog(window) == JFileChooser.APPROVE_OPTION) {
+                    File file = fc.getSelectedFile();
+                    int levelNumber = emulator.getLevel().getLevelNumber();
+                    emulator.showAction("Verifying keyframed solution");
+                    new SwingWorker<Integer, Void>() {
+                        private KeyframedSolution keyframed;
+                        @Override
+                        protected Integer doInBackground() throws Exception {
+                            keyframed = KeyframedSolution.fromJSON(new String(Files.readAllBytes(file.toPath()), ISO_8859_1));
+                            return keyframed.verify(emulator, levelNumber, Runtime.getRuntime().availableProcessors());
+                        }
+                        @Override
+                        protected void done() {
+                            try {
+                                int failed = get();
+                                if (failed < 0) emulator.showAction("Solution verified");
+                                else if (failed == keyframed.segments()) emulator.showAction("Solution does not complete the level");
+                                else emulator.showAction("Segment "+(failed+1)+" of "+keyframed.segments()+" does not match");
+                            }
+                            catch (Exception e) {
+                                e.printStackTrace();
+                                emulator.throwError("Could not verify file:\n" + e.getMessage());
+                            }
+                        }
+                    }.execute();
+                }
+            });
+            add(verifyKeyframed);
             
+            JMenuItem store = new JMenuItem("Add to solution store");
+            store.addActionListener(event -> {
+                Level level = emulator.getLevel();
+                int levelNumber = level.getLevelNumber();
+                Solution solution = new Solution(emulator.getSavestates().getMoveList(), level.getRngSeed(), level.getStep());
+                new SwingWorker<SolutionStore.Entry, Void>() {
+                    @Override
+                    protected SolutionStore.Entry doInBackground() throws Exception {
+                        return emulator.getSolutionStore().add(emulator, levelNumber, solution);
+                    }
+                    @Override
+                    protected void done() {
+                        try {
+                            SolutionStore.Entry entry = get();
+                            emulator.showAction(entry.completed ? "Stored solution ("+entry.ticks+" ticks)" : "Stored incomplete solution");
+                        }
+                        catch (Exception e) {
+                            e.printStackTrace();
+                            emulator.throwError("Could not store solution: "+e.getMessage());
+                        }
+                    }
+                }.execute();
+            });
+            add(store);
+
+            JMenuItem importStore = new JMenuItem("Import saved solutions to store");
+            importStore.addActionListener(event -> {
+                JFileChooser fc = new JFileChooser();
+                fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                fc.setSelectedFile(new File(emulator.getJSONPath()).getParentFile());
+                if (fc.showOpenDialog(window) == JFileChooser.APPROVE_OPTION) {
+                    File directory = fc.getSelectedFile();
+                    new SwingWorker<SolutionStore.ImportResult, Void>() {
+                        @Override
+                        protected SolutionStore.ImportResult doInBackground() throws Exception {
+                            return emulator.getSolutionStore().importDirectory(emulator, directory,
+                                                                               Runtime.getRuntime().availableProcessors());
+                        }
+                        @Override
+                        protected void done() {
+                            try {
+                                SolutionStore.ImportResult result = get();
+                                if (result.failed.isEmpty()) emulator.showAction(result.toString());
+                                else JOptionPane.showMessageDialog(window, result.toString(), "Import saved solutions to store",
+                                                                   JOptionPane.WARNING_MESSAGE);
+                            }
+                            catch (Exception e) {
+                                e.printStackTrace();
+                                emulator.throwError("Could not import solutions: "+e.getMessage());
+                            }
+                        }
+                    }.execute();
+                }
+            });
+            add(importStore);
+
             JMenuItem seedSearch = new JMenuItem("Search for seeds");
             seedSearch.addActionListener(event -> {
                 try{
                     JFileChooser fc = new JFileChooser();
-                    fc.setFileFilter(new FileNameExtensionFilter("json", "json"));
+                    fc.setFileFilter(new FileNameExtensionFilter("json, scs", "json", "scs"));
                     fc.setCurrentDirectory(new File(emulator.getJSONPath()).getParentFile());
                     fc.setSelectedFile(new File(emulator.getJSONPath()));
                     if (fc.showOpenDialog(window) == JFileChooser.APPROVE_OPTION) {
-                        Solution solution = Solution.fromJSON(new String(Files.readAllBytes(fc.getSelectedFile().toPath()), StandardCharsets.ISO_8859_1));
+                        Solution solution = Solution.read(Files.readAllBytes(fc.getSelectedFile().toPath()));
                         new SeedSearch(emulator, solution);
                     }
                 }
@@ -262,8 +429,9 @@ class MenuBar extends JMenuBar{
                 Transferable t = Toolkit.getDefaultToolkit().getSystemClipboard().getContents(this);
                 //Solution s = emulator.getSolution();
                 try {
-                    Solution.fromJSON((String) t.getTransferData(DataFlavor.stringFlavor)).load(emulator);
-                    emulator.showAction("Pasted solution");
+                    Solution solution = Solution.fromJSON((String) t.getTransferData(DataFlavor.stringFlavor));
+                    int simulated = solution.loadSpliced(emulator);
+                    emulator.showAction("Pasted solution, simulated "+simulated+" moves");
                     emulator.getMainWindow().repaint(false);
                 }
                 catch (IllegalArgumentException e){ //If the clipboard isn't an entire JSON solution it might be raw moves, which should be put in
@@ -293,6 +461,21 @@ class MenuBar extends JMenuBar{
             addIcon(paste, "/resources/icons/paste.gif");
             add(paste);
     
+            JMenuItem edit = new JMenuItem("Edit moves");
+            edit.addActionListener(event -> {
+                Level level = emulator.getLevel();
+                String moves = new String(emulator.getSavestates().getMoveList().toArray(), StandardCharsets.ISO_8859_1);
+                String s = (String) JOptionPane.showInputDialog(window, "Moves", "Edit moves",
+                                                                JOptionPane.PLAIN_MESSAGE, null, null, moves);
+                if (s == null || s.equals(moves)) return;
+                Solution solution = new Solution(s.getBytes(StandardCharsets.ISO_8859_1), level.getRngSeed(),
+                                                 level.getStep(), Solution.SUCC_MOVES);
+                int simulated = solution.loadSpliced(emulator);
+                emulator.showAction("Edited moves, simulated "+simulated+" moves");
+                emulator.getMainWindow().repaint(false);
+            });
+            add(edit);
+    
             addSeparator();
     
             JMenuItem saveSavestates = new JMenuItem("Save all states");
@@ -401,6 +584,36 @@ class MenuBar extends JMenuBar{
             add(newTWS);
             addIcon(newTWS, "/resources/icons/new.gif");
 
+            JMenuItem exportTWS = new JMenuItem("Write all saved solutions to new tws");
+            exportTWS.addActionListener(event -> {
+                JFileChooser fc = new JFileChooser();
+                fc.setFileFilter(new FileNameExtensionFilter("tws", "tws"));
+                fc.setCurrentDirectory(new File(emulator.getPaths().getTwsPath()));
+                if (fc.showSaveDialog(window) == JFileChooser.APPROVE_OPTION) {
+                    String filename = fc.getSelectedFile().toString();
+                    if (!filename.endsWith(".tws")) filename += ".tws";
+                    File file = new File(filename);
+                    new SwingWorker<TWSExport.Result, Void>() {
+                        @Override
+                        protected TWSExport.Result doInBackground() throws Exception {
+                            return TWSExport.export(emulator, file, Runtime.getRuntime().availableProcessors());
+                        }
+                        @Override
+                        protected void done() {
+                            try {
+                                JOptionPane.showMessageDialog(window, get().toString(), "Write all saved solutions",
+                                                              JOptionPane.INFORMATION_MESSAGE);
+                            }
+                            catch (Exception e) {
+                                e.printStackTrace();
+                                emulator.throwError("Could not write tws: "+e.getMessage());
+                            }
+                        }
+                    }.execute();
+                }
+            });
+            add(exportTWS);
+
             JMenuItem openTWS = new JMenuItem("Open tws");
             openTWS.addActionListener(e -> {
                 JFileChooser fc = new JFileChooser();
@@ -420,7 +633,7 @@ class MenuBar extends JMenuBar{
             loadSolution.addActionListener(event -> {
                 Thread t = new Thread(() -> {
                     try {
-                        emulator.twsReader.readSolution(emulator.getLevel()).load(emulator);
+                        emulator.twsReader.readSolution(emulator.getLevel()).loadInstantly(emulator);
                     } catch (IOException e) {
                         emulator.throwError("Error while loading solution");
                     }
@@ -599,6 +812,12 @@ class MenuBar extends JMenuBar{
                 });
                 add(b);
             }
+
+            add(new JSeparator());
+
+            JToggleButton metrics = new JToggleButton("Show Metrics");
+            metrics.addActionListener(e -> window.setMetricsVisible(metrics.isSelected()));
+            add(metrics);
         }
     }
     
@@ -635,6 +854,22 @@ class MenuBar extends JMenuBar{
             });
             add(tsp);
 
+            JMenuItem profiler = new JMenuItem("Tick profiler");
+            profiler.addActionListener(e -> new TickProfilerWindow(window).setVisible(true));
+            add(profiler);
+
+            JMenuItem events = new JMenuItem("Event log");
+            events.addActionListener(e -> new EventLogWindow(window, emulator).setVisible(true));
+            add(events);
+
+            JMenuItem find = new JMenuItem("Find tick");
+            find.addActionListener(e -> new FindTickWindow(window, emulator).setVisible(true));
+            add(find);
+
+            JCheckBoxMenuItem history = new JCheckBoxMenuItem("Record tick history");
+            history.addActionListener(e -> emulator.setRecordingHistory(history.isSelected()));
+            add(history);
+
         }
     }
     
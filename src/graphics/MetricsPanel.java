@@ -0,0 +1,129 @@
+package graphics;
+
+import util.Metrics;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A panel listing the {@link Metrics}, refreshed every second while it is
+ * showing. Counters are shown with their rate since the last refresh, so
+ * engine.ticks gives the ticks simulated per second and playback.frames the
+ * frame rate of a replay.
+ */
+class MetricsPanel extends JPanel {
+
+    private static final int REFRESH_MILLIS = 1000;
+
+    private final MetricsModel model = new MetricsModel();
+    private final Timer timer = new Timer(REFRESH_MILLIS, e -> model.refresh());
+
+    private static class MetricsModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"Metric", "Value", "Per second"};
+        private final List<String> names = new ArrayList<>();
+        private final List<Metrics.Metric> metrics = new ArrayList<>();
+        private final Map<String, Long> lastCounts = new HashMap<>();
+        private final Map<String, Double> rates = new HashMap<>();
+        private long lastRefresh;
+
+        void refresh() {
+            long now = System.nanoTime();
+            double seconds = (now - lastRefresh) / 1e9;
+            names.clear();
+            metrics.clear();
+            for (Map.Entry<String, Metrics.Metric> entry : Metrics.snapshot().entrySet()) {
+                String name = entry.getKey();
+                Metrics.Metric metric = entry.getValue();
+                names.add(name);
+                metrics.add(metric);
+                if (!(metric instanceof Metrics.Counter)) continue;
+                long count = ((Metrics.Counter) metric).get();
+                Long last = lastCounts.put(name, count);
+                if (last == null || lastRefresh == 0) rates.remove(name);
+                else rates.put(name, (count - last) / seconds);
+            }
+            lastRefresh = now;
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return names.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            switch (column) {
+                case 0: return names.get(row);
+                case 1: return metrics.get(row).format();
+                default:
+                    Double rate = rates.get(names.get(row));
+                    return rate == null ? "" : String.format("%,.0f", rate);
+            }
+        }
+    }
+
+    private void dump() {
+        JFileChooser fc = new JFileChooser();
+        fc.setSelectedFile(new File("metrics.txt"));
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        try {
+            Metrics.dump(fc.getSelectedFile());
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not save metrics:\n" + e.getMessage());
+        }
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        model.refresh();
+        timer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    MetricsPanel() {
+        super(new BorderLayout(0, 4));
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setPreferredWidth(180);
+        table.getColumnModel().getColumn(1).setPreferredWidth(260);
+        JButton dump = new JButton("Append to file...");
+        dump.addActionListener(e -> dump());
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.setOpaque(false);
+        buttons.add(dump);
+
+        setBackground(Gui.DARK_GREY);
+        setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(520, 0));
+        add(scrollPane, BorderLayout.CENTER);
+        add(buttons, BorderLayout.SOUTH);
+    }
+
+}
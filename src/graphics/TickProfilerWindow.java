@@ -0,0 +1,154 @@
+package graphics;
+
+import game.TickProfiler;
+import jdk.jfr.Recording;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A window showing where the time of a tick goes, from {@link TickProfiler}.
+ * Profiling is enabled while the window is open, and the totals are
+ * refreshed twice a second. The profiler's events can also be recorded to a
+ * JFR file, for JDK Mission Control.
+ */
+class TickProfilerWindow extends JDialog {
+
+    private static final TickProfiler.Phase[] PHASES = TickProfiler.Phase.values();
+    private static final TickProfiler.Count[] COUNTS = TickProfiler.Count.values();
+
+    private final boolean wasEnabled = TickProfiler.isEnabled();
+    private final Timer timer;
+    private Recording recording;
+
+    /**
+     * The phases, then the counts, each with its total and its average per
+     * tick, or per emulator move for the phases of the emulator.
+     */
+    private static class StatsModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"", "Total", "Share", "Per tick"};
+        private final long[] nanos = new long[PHASES.length];
+        private final long[] counts = new long[COUNTS.length];
+        private long levelNanos;
+
+        void refresh() {
+            levelNanos = 0;
+            for (int i = 0; i < PHASES.length; i++) {
+                nanos[i] = TickProfiler.getNanos(PHASES[i]);
+                if (!PHASES[i].emulator) levelNanos += nanos[i];
+            }
+            for (int i = 0; i < COUNTS.length; i++) counts[i] = TickProfiler.getCount(COUNTS[i]);
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return PHASES.length + COUNTS.length;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            long ticks = counts[TickProfiler.Count.TICKS.ordinal()];
+            if (row < PHASES.length) {
+                TickProfiler.Phase phase = PHASES[row];
+                long per = phase.emulator ? counts[TickProfiler.Count.MOVES.ordinal()] : ticks;
+                switch (column) {
+                    case 0: return phase.label;
+                    case 1: return String.format("%.1f ms", nanos[row] / 1e6);
+                    case 2: return phase.emulator || levelNanos == 0 ? "" : String.format("%.1f%%", 100.0 * nanos[row] / levelNanos);
+                    default: return per == 0 ? "" : String.format("%.2f \u00b5s", nanos[row] / 1e3 / per);
+                }
+            }
+            row -= PHASES.length;
+            switch (column) {
+                case 0: return COUNTS[row].label;
+                case 1: return counts[row];
+                case 2: return "";
+                default: return ticks == 0 || COUNTS[row] == TickProfiler.Count.TICKS
+                    ? "" : String.format("%.2f", (double) counts[row] / ticks);
+            }
+        }
+    }
+
+    private void toggleRecording(JButton button) {
+        if (recording == null) {
+            recording = new Recording();
+            recording.enable(TickProfiler.LevelTickEvent.class);
+            recording.enable(TickProfiler.EmulatorTickEvent.class);
+            recording.start();
+            button.setText("Stop and save recording...");
+            return;
+        }
+        recording.stop();
+        JFileChooser fc = new JFileChooser();
+        fc.setSelectedFile(new File("ticks.jfr"));
+        if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            try {
+                recording.dump(fc.getSelectedFile().toPath());
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Could not save recording:\n" + e.getMessage());
+            }
+        }
+        recording.close();
+        recording = null;
+        button.setText("Record JFR");
+    }
+
+    TickProfilerWindow(Window owner) {
+        super(owner, "Tick profiler", ModalityType.MODELESS);
+        StatsModel model = new StatsModel();
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+
+        JButton reset = new JButton("Reset");
+        reset.addActionListener(e -> {
+            TickProfiler.reset();
+            model.refresh();
+        });
+        JButton record = new JButton("Record JFR");
+        record.addActionListener(e -> toggleRecording(record));
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(reset);
+        buttons.add(record);
+
+        JPanel panel = new JPanel(new BorderLayout(0, 4));
+        panel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        panel.add(buttons, BorderLayout.SOUTH);
+        setContentPane(panel);
+        setSize(450, 320);
+        setLocationRelativeTo(owner);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        timer = new Timer(500, e -> model.refresh());
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+                if (recording != null) recording.close();
+                TickProfiler.setEnabled(wasEnabled);
+            }
+        });
+        TickProfiler.setEnabled(true);
+        model.refresh();
+        timer.start();
+    }
+
+}
@@ -4,8 +4,18 @@ import game.Level;
 import game.Step;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A class for reading the .dat format.
@@ -15,9 +25,21 @@ public class DatParser{
 
     private final static int MSCC_SIGNATURE = 0x0002AAAC;
     private final static int TWORLD_LYNX_SIGNATURE = 0x0102AAAC;
+    private final static int CACHED_LEVELS = 64;
 
     private final File file;
+    private final ByteBuffer data;
+    private final Map<Integer, LevelPrototype> prototypes = new LinkedHashMap<Integer, LevelPrototype>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, LevelPrototype> eldest) {
+            return size() > CACHED_LEVELS;
+        }
+    };
     private long[] levelStart;
+    private int[] levelLength;
+    private String levelsetHash;
+    private LevelsetIndex index;
+    private File indexDirectory;
     
     public int lastLevel() {
         return levelStart.length;
@@ -27,38 +49,188 @@ public class DatParser{
         return file.getName().replaceFirst("[.][^.]+$", "");
     }
 
+    /**
+     * @return a hex SHA-1 hash of the whole .dat file, used to key data that
+     * is only valid for this exact levelset.
+     */
+    public String getLevelsetHash() throws IOException {
+        if (levelsetHash == null) {
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                sha1.update(data.duplicate());
+                byte[] digest = sha1.digest();
+                StringBuilder sb = new StringBuilder();
+                for (byte b : digest) sb.append(String.format("%02x", b));
+                levelsetHash = sb.toString();
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+        return levelsetHash;
+    }
+
+    /**
+     * @return a hex SHA-1 hash of one level's data in the .dat file. It only
+     * changes if the level itself is changed.
+     */
+    public String getLevelHash(int level) throws IOException {
+        try {
+            ByteBuffer bytes = data.duplicate();
+            bytes.position((int) levelStart[level]);
+            bytes.limit((int) levelStart[level] + levelLength[level]);
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(bytes);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : sha1.digest()) sb.append(String.format("%02x", b));
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Level "+level+" of "+file.getName()+" is truncated", e);
+        }
+    }
+
+    /**
+     * Save the levelset's index in a directory, so it is only built again
+     * when the levelset changes. Without one it is built in memory.
+     */
+    public synchronized void setIndexDirectory(File directory) {
+        indexDirectory = directory;
+    }
+
+    /**
+     * @return the levelset's index, read from the index directory or built
+     * the first time it is needed
+     */
+    public synchronized LevelsetIndex getIndex() throws IOException {
+        if (index == null) index = LevelsetIndex.load(this, indexDirectory);
+        return index;
+    }
+
+    /**
+     * Read a level's header and optional fields, skipping its layers.
+     */
+    LevelsetIndex.Entry readHeader(int level) throws IOException {
+        LevelFields fields = readFields(level, false);
+        return new LevelsetIndex.Entry(fields.levelNumber, fields.timeLimit, fields.chips, fields.monsters,
+                                       fields.title, fields.password);
+    }
+
+    /**
+     * The fields of one level as stored in the .dat file.
+     */
+    private static class LevelFields {
+        private int levelNumber, timeLimit, chips, monsters;
+        private byte[] layerFG, layerBG, title, password, hint;
+        private int[][] trapConnections = new int[][] {};
+        private int[][] cloneConnections = new int[][] {};
+        private int[][] monsterPositions;
+    }
+
+    /**
+     * Read a level's header and optional fields.
+     * @param full false to skip the layers, connections, hint and monster
+     *             positions, which only a parsed level needs
+     */
+    private LevelFields readFields(int level, boolean full) throws IOException {
+        if (level <= 0 || level >= levelStart.length) throw new IOException("No level "+level+" in "+file.getName());
+        DatReader reader = new DatReader((int) levelStart[level]);
+        LevelFields fields = new LevelFields();
+        try {
+            fields.levelNumber = reader.readWord();
+            fields.timeLimit = reader.readWord();
+            fields.chips = reader.readWord();
+            reader.skip(2);                                         // Map detail
+            if (full) {
+                fields.layerFG = readLayer(reader);
+                fields.layerBG = readLayer(reader);
+            }
+            else {
+                reader.skip(reader.readWord());
+                reader.skip(reader.readWord());
+            }
+            int optionalFieldsLength = reader.readWord();
+            while (optionalFieldsLength > 0) {
+                final int fieldType = reader.readUnsignedByte();
+                final int fieldLength = reader.readUnsignedByte();
+                optionalFieldsLength -= 2 + fieldLength;
+                int fieldEnd = reader.position() + fieldLength;
+                switch (fieldType) {
+                    case 1:
+                        fields.timeLimit = reader.readWord();
+                        break;
+                    case 2:
+                        fields.chips = reader.readWord();
+                        break;
+                    case 3:
+                        fields.title = reader.readAscii(fieldLength);
+                        break;
+                    case 4:
+                        if (full) fields.trapConnections = readConnections(reader, fieldLength / 10, true);
+                        break;
+                    case 5:
+                        if (full) fields.cloneConnections = readConnections(reader, fieldLength / 8, false);
+                        break;
+                    case 6:
+                        fields.password = reader.readEncodedAscii(fieldLength);
+                        break;
+                    case 7:
+                        if (full) fields.hint = reader.readAscii(fieldLength);
+                        break;
+                    case 8:
+                        fields.password = reader.readAscii(fieldLength);
+                        break;
+                    case 10:
+                        int numMonsters = fieldLength / 2;
+                        fields.monsters = numMonsters;
+                        if (!full) break;
+                        fields.monsterPositions = new int[numMonsters][2];
+                        for (int j = 0; j < numMonsters; j++) {
+                            fields.monsterPositions[j][0] = reader.readUnsignedByte();
+                            fields.monsterPositions[j][1] = reader.readUnsignedByte();
+                        }
+                        break;
+                }
+                reader.seek(fieldEnd);
+            }
+            return fields;
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e){
+            throw new IOException("Level "+level+" of "+file.getName()+" is truncated", e);
+        }
+    }
+
     /**
      * Reads either layer 1 or layer 2 of the .dat file. Only call this if the
-     * FileInputStream stream is pointing at the layer data, so that the next
-     * word is the "Number of bytes in X layer".
+     * reader is pointing at the layer data, so that the next word is the
+     * "Number of bytes in X layer".
      *
      * @return A 1028 element byte array containing the layer, row by row.
      */
     private byte[] readLayer(DatReader reader) throws IOException{
         byte[] layer = new byte[32*32];
-        int bytesInLayer = reader.readWord();
+        byte[] rle = reader.readBytes(reader.readWord());
         int i = 0;
-        while (i < 1024){
-            int b = reader.readUnsignedByte();
+        int j = 0;
+        while (i < 1024 && j < rle.length){
+            int b = rle[j++] & 0xFF;
             if (b == 0xFF){
-                int copies = reader.readUnsignedByte();
-                int objectCode = reader.read();
-                for (int k = 0; k < copies; k++){
-                    layer[i] = (byte) objectCode;
-                    i++;
-                }
-            }
-            else{
-                layer[i] = (byte) b;
-                i++;
+                int copies = Math.min(rle[j++] & 0xFF, 1024 - i);
+                Arrays.fill(layer, i, i + copies, rle[j++]);
+                i += copies;
             }
+            else layer[i++] = (byte) b;
         }
+        if (i < 1024) throw new IOException("Layer data is too short");
         return layer;
     }
 
     /**
      * Reads a set of button connections from the .dat file. Only call this if
-     * the FileInputStream stream is pointing at the connection data, so that
+     * the reader is pointing at the connection data, so that
      * the next word is the "Button X position".
      *
      * @param length Length of this field
@@ -82,92 +254,96 @@ public class DatParser{
     }
 
     /**
-     * Load a level from the .dat file.
+     * Load a level from the .dat file. Recently loaded levels are only parsed
+     * once; later loads make a new Level from the parsed data.
      * @param level The level number
      * @param rngSeed The starting rng seed
      * @param step The starting step of the level. Either Step.ODD or Step.EVEN
      * @return a Level object
      */
     public Level parseLevel(int level, int rngSeed, Step step) throws IOException{
-        DatReader reader = new DatReader(file);
-        try {
-            reader.skip(levelStart[level]);
-            final int levelNumber = reader.readWord();
-            int timeLimit = reader.readWord();
-            int chips = reader.readWord();
-            final int mapDetail = reader.readWord();
-            final byte[] layerFG = readLayer(reader);
-            final byte[] layerBG = readLayer(reader);
-            byte[] title = null;
-            int[][] trapConnections = new int[][] {};
-            int[][] cloneConnections = new int[][] {};
-            byte[] password = null;
-            byte[] hint = null;
-            int[][] monsterPositions = null;
-            int optionalFieldsLength = reader.readWord();
-            while (optionalFieldsLength > 0) {
-                final int fieldType = reader.readUnsignedByte();
-                optionalFieldsLength--;
-                final int fieldLength = reader.readUnsignedByte();
-                optionalFieldsLength--;
-                switch (fieldType) {
-                    case 1:
-                        timeLimit = reader.readWord();
-                        break;
-                    case 2:
-                        chips = reader.readWord();
-                        break;
-                    case 3:
-                        title = reader.readAscii(fieldLength);
-                        break;
-                    case 4:
-                        trapConnections = readConnections(reader, fieldLength / 10, true);
-                        break;
-                    case 5:
-                        cloneConnections = readConnections(reader, fieldLength / 8, false);
-                        break;
-                    case 6:
-                        password = reader.readEncodedAscii(fieldLength);
-                        break;
-                    case 7:
-                        hint = reader.readAscii(fieldLength);
-                        break;
-                    case 8:
-                        password = reader.readAscii(fieldLength);
-                        break;
-                    case 9:
-                        for (int j = 0; j < fieldLength; j++) reader.readUnsignedByte();
-                        break;
-                    case 10:
-                        int numMonsters = fieldLength / 2;
-                        monsterPositions = new int[numMonsters][2];
-                        for (int j = 0; j < numMonsters; j++) {
-                            monsterPositions[j][0] = reader.readUnsignedByte();
-                            monsterPositions[j][1] = reader.readUnsignedByte();
-                        }
-                        break;
-                }
-                optionalFieldsLength -= fieldLength;
+        LevelPrototype prototype;
+        synchronized (prototypes) {
+            prototype = prototypes.get(level);
+        }
+        if (prototype == null) {
+            prototype = parsePrototype(level);
+            synchronized (prototypes) {
+                prototypes.put(level, prototype);
             }
+        }
+        return prototype.makeLevel(rngSeed, step, lastLevel());
+    }
+
+    private LevelPrototype parsePrototype(int level) throws IOException{
+        LevelFields fields = readFields(level, true);
+        return new LevelPrototype(fields.levelNumber, fields.timeLimit, fields.chips, fields.layerFG, fields.layerBG,
+                fields.title, fields.trapConnections, fields.cloneConnections, fields.password, fields.hint,
+                fields.monsterPositions);
+    }
+
+    /**
+     * The parsed data of one level. It is never changed, every Level made
+     * from it gets its own copy of the layers.
+     */
+    private static class LevelPrototype {
+        private final int levelNumber, timeLimit, chips;
+        private final byte[] layerFG, layerBG, title, password, hint;
+        private final int[][] trapConnections, cloneConnections, monsterPositions;
 
-            return LevelFactory.makeLevel(levelNumber, timeLimit, chips, layerFG, layerBG, title, trapConnections,
-                    cloneConnections, password, hint, monsterPositions, rngSeed, step, lastLevel());
+        Level makeLevel(int rngSeed, Step step, int lastLevel) {
+            return LevelFactory.makeLevel(levelNumber, timeLimit, chips, layerFG.clone(), layerBG.clone(), title,
+                    trapConnections, cloneConnections, password, hint, monsterPositions, rngSeed, step, lastLevel);
         }
-        catch (IOException e){
-            reader.close();
-            throw(e);
+
+        LevelPrototype(int levelNumber, int timeLimit, int chips, byte[] layerFG, byte[] layerBG, byte[] title,
+                       int[][] trapConnections, int[][] cloneConnections, byte[] password, byte[] hint,
+                       int[][] monsterPositions) {
+            this.levelNumber = levelNumber;
+            this.timeLimit = timeLimit;
+            this.chips = chips;
+            this.layerFG = layerFG;
+            this.layerBG = layerBG;
+            this.title = title;
+            this.trapConnections = trapConnections;
+            this.cloneConnections = cloneConnections;
+            this.password = password;
+            this.hint = hint;
+            this.monsterPositions = monsterPositions;
         }
     }
 
     /**
-     * DatParser constructor. The .dat file is skimmed in order to create an
-     * array of pointers to each individual level. No levels get loaded in
-     * this constructor.
+     * DatParser constructor. The .dat file is mapped into memory and skimmed
+     * in order to create an array of pointers to each individual level. No
+     * levels get loaded in this constructor.
      * @param file The .dat file
      */
     public DatParser(File file) throws IOException {
+        this(file, map(file));
+    }
+
+    /**
+     * Read a .dat file into the heap instead of mapping it. A mapping is
+     * only released when it is garbage collected, and keeps the file locked
+     * on Windows until then, so parsers that are only used briefly, as when
+     * indexing many levelsets, should use this.
+     * @param file The .dat file
+     */
+    public static DatParser read(File file) throws IOException {
+        return new DatParser(file, ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private DatParser(File file, ByteBuffer data) throws IOException {
         this.file = file;
-        DatReader reader = new DatReader(file);
+        this.data = data;
+        DatReader reader = new DatReader(0);
         try {
             int signature = reader.readInt32();
             if (signature != MSCC_SIGNATURE && signature != TWORLD_LYNX_SIGNATURE) {
@@ -176,45 +352,64 @@ public class DatParser{
             final int levels = reader.readWord();
             long byteN = 4+2;
             levelStart = new long[levels+1];  // +1 because we skip level #0
+            levelLength = new int[levels+1];
             for (int i = 1; i <= levels; i++) {
-                long bytesInLevel = reader.readWord();
+                int bytesInLevel = reader.readWord();
                 byteN += 2;
                 levelStart[i] = byteN;
+                levelLength[i] = bytesInLevel;
                 byteN += bytesInLevel;
                 reader.skip(bytesInLevel);
             }
         }
-        catch (IOException e){
-            reader.close();
-            throw e;
+        catch (BufferUnderflowException | IllegalArgumentException e){
+            throw new IOException("Truncated file", e);
         }
     }
     
-    private class DatReader extends FileInputStream{
-        private int readUnsignedByte() throws IOException{
-            return read() & 0xFF;
+    /**
+     * Reads the file's data from some position on. Each reader has its own
+     * position, so levels can be parsed on several threads at once.
+     */
+    private class DatReader {
+        private final ByteBuffer buffer;
+        private int readUnsignedByte(){
+            return buffer.get() & 0xFF;
+        }
+        private int readWord(){
+            return buffer.getShort() & 0xFFFF;
+        }
+        private int readInt32(){
+            return buffer.getInt();
+        }
+        private byte[] readBytes(int length){
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return bytes;
+        }
+        private void skip(int length){
+            buffer.position(buffer.position() + length);
         }
-        private int readWord() throws IOException{
-            return readUnsignedByte() + 256*readUnsignedByte();
+        private int position(){
+            return buffer.position();
         }
-        private int readInt32() throws IOException{
-            return readUnsignedByte() + 256*readUnsignedByte() + 65536*readUnsignedByte() + 16777216*readUnsignedByte();
+        private void seek(int position){
+            buffer.position(position);
         }
-        private byte[] readAscii(int length) throws IOException{
-            byte[] asciiBytes = new byte[length];
-            read(asciiBytes, 0, length-1);
-            read();                                         // trailing '\0'
+        private byte[] readAscii(int length){
+            byte[] asciiBytes = readBytes(length);
+            asciiBytes[length-1] = 0;                       // trailing '\0'
             return asciiBytes;
         }
-        private byte[] readEncodedAscii(int length) throws IOException{
-            byte[] asciiBytes = new byte[length];
-            read(asciiBytes, 0, length-1);
-            read();                                         // trailing '\0'
+        private byte[] readEncodedAscii(int length){
+            byte[] asciiBytes = readBytes(length);
+            asciiBytes[length-1] = 0;                       // trailing '\0'
             for (int i = 0; i < length; i++) asciiBytes[i] = (byte) ((int) asciiBytes[i] ^ 0x99);
             return asciiBytes;
         }
-        DatReader (File datFile) throws IOException{
-            super(datFile);
+        DatReader(int position){
+            buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(position);
         }
     }
 
@@ -0,0 +1,359 @@
+package io;
+
+import game.*;
+import game.button.ConnectionButton;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * An inverted index of the tiles, creatures and button connections of every
+ * level of a collection of levelsets, to find levels by their features.
+ * <p>
+ * A level's features are the number of times each tile appears on either
+ * layer ("tile:TELEPORT"), the number of each kind of creature on the map
+ * ("creature:BLOB") and the number of buttons of each colour wired to each
+ * kind of tile ("wire:BUTTON_BROWN-CLONE_MACHINE"). Features are stored by
+ * the hash of the level's data, so updating the index after a levelset
+ * changed only parses the levels that changed. Levelsets and levels are
+ * parsed in parallel.
+ * </p>
+ * <p>
+ * A query is a list of features that all have to be present. A feature may
+ * leave out its "tile:" or "creature:" prefix and may ask for a minimum
+ * count, e.g. "teleport blob>=2 wire:button_brown-clone_machine".
+ * </p>
+ */
+public class FeatureIndex {
+
+    private static final int SIGNATURE = 0x53434649;                // "SCFI"
+    private static final int VERSION = 1;
+    public static final String TILE = "tile:", CREATURE = "creature:", WIRE = "wire:";
+
+    private final Map<String, Features> features = new ConcurrentHashMap<>();  // By level hash
+    private final Map<File, String[]> levelsets = new TreeMap<>();             // Level hashes by levelset
+    private Map<String, Postings> postings;
+
+    /**
+     * One level's features, and its title so results can be shown without
+     * parsing it again.
+     */
+    private static class Features {
+        final String title;
+        final String[] names;
+        final int[] counts;
+
+        Features(String title, String[] names, int[] counts) {
+            this.title = title;
+            this.names = names;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * The levels that have a feature, by level id, with how often they have
+     * it.
+     */
+    private static class Postings {
+        int[] levels = new int[4];
+        int[] counts = new int[4];
+        int size;
+
+        void add(int level, int count) {
+            if (size == levels.length) {
+                levels = Arrays.copyOf(levels, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            levels[size] = level;
+            counts[size++] = count;
+        }
+    }
+
+    public static class Match {
+        public final File levelset;
+        public final int levelNumber;
+        public final String title;
+
+        Match(File levelset, int levelNumber, String title) {
+            this.levelset = levelset;
+            this.levelNumber = levelNumber;
+            this.title = title;
+        }
+
+        @Override
+        public String toString() {
+            return levelset.getName() + " " + levelNumber + ": " + title;
+        }
+    }
+
+    /**
+     * Count the features of a freshly parsed level.
+     */
+    static Features features(Level level) {
+        Map<String, Integer> counts = new TreeMap<>();
+        Layer layerFG = level.getLayerFG();
+        Layer layerBG = level.getLayerBG();
+        for (int i = 0; i < 32 * 32; i++) {
+            Tile fg = layerFG.get(i);
+            counts.merge(TILE + fg.name(), 1, Integer::sum);
+            counts.merge(TILE + layerBG.get(i).name(), 1, Integer::sum);
+            if (isCreature(fg)) {
+                counts.merge(CREATURE + new Creature(new Position(i), fg).getCreatureType().name(), 1, Integer::sum);
+            }
+        }
+        for (ConnectionButton button : level.getBrownButtons()) {
+            counts.merge(WIRE + Tile.BUTTON_BROWN.name() + "-" + wiredTile(level, button).name(), 1, Integer::sum);
+        }
+        for (ConnectionButton button : level.getRedButtons()) {
+            counts.merge(WIRE + Tile.BUTTON_RED.name() + "-" + wiredTile(level, button).name(), 1, Integer::sum);
+        }
+        String[] names = counts.keySet().toArray(new String[0]);
+        int[] values = new int[names.length];
+        for (int i = 0; i < names.length; i++) values[i] = counts.get(names[i]);
+        return new Features(LevelsetIndex.ascii(level.getTitle()), names, values);
+    }
+
+    /**
+     * @return the tile a button is wired to, looking under any creature
+     * standing on it
+     */
+    private static Tile wiredTile(Level level, ConnectionButton button) {
+        Position target = button.getTargetPosition();
+        Tile tile = level.getLayerFG().get(target);
+        if (isCreature(tile)) tile = level.getLayerBG().get(target);
+        return tile;
+    }
+
+    private static boolean isCreature(Tile tile) {
+        return tile.isCreature() || tile.isChip() || tile == Tile.BLOCK || tile == Tile.ICE_BLOCK;
+    }
+
+    /**
+     * Bring the index up to date with a collection of levelsets. Levelsets
+     * indexed earlier that are not in the collection are dropped. Only levels
+     * that have not been indexed before are parsed.
+     * @return the number of levels that were parsed
+     */
+    public synchronized int update(Collection<File> datFiles) {
+        Map<File, String[]> updated = new ConcurrentHashMap<>();
+        AtomicInteger parsed = new AtomicInteger();
+        datFiles.parallelStream().forEach(file -> {
+            try {
+                DatParser dat = DatParser.read(file);
+                String[] hashes = new String[dat.lastLevel() - 1];
+                for (int i = 0; i < hashes.length; i++) hashes[i] = dat.getLevelHash(i + 1);
+                IntStream.range(0, hashes.length).parallel()
+                    .filter(i -> !features.containsKey(hashes[i]))
+                    .forEach(i -> {
+                        try {
+                            features.putIfAbsent(hashes[i], features(dat.parseLevel(i + 1, 0, Step.EVEN)));
+                            parsed.incrementAndGet();
+                        }
+                        catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    });
+                updated.put(file.getAbsoluteFile(), hashes);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        levelsets.clear();
+        levelsets.putAll(updated);
+        Set<String> used = new HashSet<>();
+        for (String[] hashes : levelsets.values()) used.addAll(Arrays.asList(hashes));
+        features.keySet().retainAll(used);
+        postings = null;
+        return parsed.get();
+    }
+
+    /**
+     * @return every level with all of the query's features, in levelset
+     * and level order
+     * @throws IllegalArgumentException if a feature of the query is unknown
+     */
+    public synchronized List<Match> query(String query) {
+        if (postings == null) buildPostings();
+        List<Postings> terms = new ArrayList<>();
+        List<Integer> minimums = new ArrayList<>();
+        for (String term : query.trim().split("\\s+")) {
+            if (term.isEmpty()) continue;
+            int minimum = 1;
+            int split = term.indexOf(">=");
+            if (split >= 0) {
+                try {
+                    minimum = Integer.parseInt(term.substring(split + 2));
+                }
+                catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Not a number: " + term);
+                }
+                term = term.substring(0, split);
+            }
+            String name = featureName(term);
+            if (name == null) throw new IllegalArgumentException("Unknown feature: " + term);
+            Postings found = postings.get(name);
+            if (found == null) return new ArrayList<>();
+            terms.add(found);
+            minimums.add(minimum);
+        }
+        List<Match> matches = new ArrayList<>();
+        if (terms.isEmpty()) return matches;
+
+        int shortest = 0;
+        for (int i = 1; i < terms.size(); i++) if (terms.get(i).size < terms.get(shortest).size) shortest = i;
+        int[] cursors = new int[terms.size()];
+        List<LevelRef> refs = levelRefs();
+        candidates:
+        for (int c = 0; c < terms.get(shortest).size; c++) {
+            int level = terms.get(shortest).levels[c];
+            for (int t = 0; t < terms.size(); t++) {
+                Postings p = terms.get(t);
+                int i = Arrays.binarySearch(p.levels, cursors[t], p.size, level);
+                if (i < 0) {
+                    cursors[t] = -i - 1;
+                    continue candidates;
+                }
+                cursors[t] = i;
+                if (p.counts[i] < minimums.get(t)) continue candidates;
+            }
+            LevelRef ref = refs.get(level);
+            matches.add(new Match(ref.levelset, ref.levelNumber, features.get(ref.hash).title));
+        }
+        return matches;
+    }
+
+    /**
+     * @return the full name of a feature as given in a query, or null if no
+     * feature has that name
+     */
+    private String featureName(String term) {
+        String upper = term.toUpperCase(Locale.ROOT);
+        for (String prefix : new String[] {TILE, CREATURE, WIRE}) {
+            if (upper.startsWith(prefix.toUpperCase(Locale.ROOT))) {
+                return prefix + upper.substring(prefix.length());
+            }
+        }
+        for (Tile tile : Tile.values()) if (tile.name().equals(upper)) return TILE + upper;
+        for (CreatureID creature : CreatureID.values()) if (creature.name().equals(upper)) return CREATURE + upper;
+        return null;
+    }
+
+    private static class LevelRef {
+        final File levelset;
+        final int levelNumber;
+        final String hash;
+
+        LevelRef(File levelset, int levelNumber, String hash) {
+            this.levelset = levelset;
+            this.levelNumber = levelNumber;
+            this.hash = hash;
+        }
+    }
+
+    private List<LevelRef> levelRefs() {
+        List<LevelRef> refs = new ArrayList<>();
+        for (Map.Entry<File, String[]> levelset : levelsets.entrySet()) {
+            String[] hashes = levelset.getValue();
+            for (int i = 0; i < hashes.length; i++) {
+                if (features.containsKey(hashes[i])) refs.add(new LevelRef(levelset.getKey(), i + 1, hashes[i]));
+            }
+        }
+        return refs;
+    }
+
+    private void buildPostings() {
+        postings = new HashMap<>();
+        List<LevelRef> refs = levelRefs();
+        for (int id = 0; id < refs.size(); id++) {
+            Features level = features.get(refs.get(id).hash);
+            for (int i = 0; i < level.names.length; i++) {
+                postings.computeIfAbsent(level.names[i], name -> new Postings()).add(id, level.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of levels indexed, counting duplicate levels once
+     */
+    public synchronized int size() {
+        return features.size();
+    }
+
+    public synchronized void save(File file) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(SIGNATURE);
+            out.writeInt(VERSION);
+            Map<String, Integer> names = new HashMap<>();
+            for (Features level : features.values()) for (String name : level.names) names.putIfAbsent(name, names.size());
+            String[] byId = new String[names.size()];
+            for (Map.Entry<String, Integer> name : names.entrySet()) byId[name.getValue()] = name.getKey();
+            out.writeInt(byId.length);
+            for (String name : byId) out.writeUTF(name);
+            out.writeInt(features.size());
+            for (Map.Entry<String, Features> level : features.entrySet()) {
+                out.writeUTF(level.getKey());
+                out.writeUTF(level.getValue().title);
+                out.writeShort(level.getValue().names.length);
+                for (int i = 0; i < level.getValue().names.length; i++) {
+                    out.writeShort(names.get(level.getValue().names[i]));
+                    out.writeShort(level.getValue().counts[i]);
+                }
+            }
+            out.writeInt(levelsets.size());
+            for (Map.Entry<File, String[]> levelset : levelsets.entrySet()) {
+                out.writeUTF(levelset.getKey().getPath());
+                out.writeInt(levelset.getValue().length);
+                for (String hash : levelset.getValue()) out.writeUTF(hash);
+            }
+        }
+        if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * @return the index saved in a file, or an empty index if there is none
+     * or it was written by another version
+     */
+    public static FeatureIndex load(File file) {
+        FeatureIndex index = new FeatureIndex();
+        if (!file.isFile()) return index;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SIGNATURE || in.readInt() != VERSION) return index;
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) names[i] = in.readUTF();
+            int levels = in.readInt();
+            for (int l = 0; l < levels; l++) {
+                String hash = in.readUTF();
+                String title = in.readUTF();
+                String[] levelNames = new String[in.readUnsignedShort()];
+                int[] counts = new int[levelNames.length];
+                for (int i = 0; i < levelNames.length; i++) {
+                    levelNames[i] = names[in.readUnsignedShort()];
+                    counts[i] = in.readUnsignedShort();
+                }
+                index.features.put(hash, new Features(title, levelNames, counts));
+            }
+            int levelsets = in.readInt();
+            for (int s = 0; s < levelsets; s++) {
+                File levelset = new File(in.readUTF());
+                String[] hashes = new String[in.readInt()];
+                for (int i = 0; i < hashes.length; i++) hashes[i] = in.readUTF();
+                index.levelsets.put(levelset, hashes);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return new FeatureIndex();
+        }
+        return index;
+    }
+
+}
@@ -0,0 +1,151 @@
+package io;
+
+import java.io.*;
+import java.util.stream.IntStream;
+
+/**
+ * The title, password, time limit, chip count and monster count of every
+ * level of a levelset, read without parsing the levels themselves.
+ * <p>
+ * The index is built in parallel, each worker decoding only the headers and
+ * optional fields of its share of the levels. It can be saved in a cache
+ * directory as [levelset name].index together with the levelset's hash, and
+ * is built again whenever the hash no longer matches.
+ * </p>
+ */
+public class LevelsetIndex {
+
+    private static final int SIGNATURE = 0x53434958;                // "SCIX"
+    private static final int VERSION = 1;
+
+    private final Entry[] entries;
+
+    public static class Entry {
+        public final int levelNumber;
+        public final int timeLimit;
+        public final int chips;
+        public final int monsters;                                  // Entries in the monster list, as stored
+        public final byte[] title;
+        public final byte[] password;
+
+        Entry(int levelNumber, int timeLimit, int chips, int monsters, byte[] title, byte[] password) {
+            this.levelNumber = levelNumber;
+            this.timeLimit = timeLimit;
+            this.chips = chips;
+            this.monsters = monsters;
+            this.title = title;
+            this.password = password;
+        }
+    }
+
+    /**
+     * @return a title or password as stored in a levelset, cut at the
+     * terminating 0 byte, or "" if there is none
+     */
+    public static String ascii(byte[] bytes) {
+        if (bytes == null) return "";
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) length++;
+        return new String(bytes, 0, length);
+    }
+
+    /**
+     * @return the number of levels
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * @param level a level number, starting at 1
+     */
+    public Entry get(int level) {
+        return entries[level - 1];
+    }
+
+    static LevelsetIndex build(DatParser dat) {
+        Entry[] entries = new Entry[dat.lastLevel() - 1];
+        IntStream.range(0, entries.length).parallel().forEach(i -> {
+            try {
+                entries[i] = dat.readHeader(i + 1);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return new LevelsetIndex(entries);
+    }
+
+    /**
+     * Read the saved index of a levelset, or build and save it if there is
+     * none for this version of the levelset.
+     * @param directory where indexes are saved, or null to only build it
+     */
+    static LevelsetIndex load(DatParser dat, File directory) throws IOException {
+        if (directory == null) return build(dat);
+        File file = new File(directory, dat.getLevelsetName() + ".index");
+        String hash = dat.getLevelsetHash();
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == SIGNATURE && in.readInt() == VERSION && in.readUTF().equals(hash)) {
+                    Entry[] entries = new Entry[in.readInt()];
+                    for (int i = 0; i < entries.length; i++) {
+                        entries[i] = new Entry(in.readUnsignedShort(), in.readUnsignedShort(), in.readUnsignedShort(),
+                                               in.readUnsignedShort(), readBytes(in), readBytes(in));
+                    }
+                    return new LevelsetIndex(entries);
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        LevelsetIndex index = build(dat);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            directory.mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(SIGNATURE);
+                out.writeInt(VERSION);
+                out.writeUTF(hash);
+                out.writeInt(index.entries.length);
+                for (Entry entry : index.entries) {
+                    out.writeShort(entry.levelNumber);
+                    out.writeShort(entry.timeLimit);
+                    out.writeShort(entry.chips);
+                    out.writeShort(entry.monsters);
+                    writeBytes(out, entry.title);
+                    writeBytes(out, entry.password);
+                }
+            }
+            if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) temp.delete();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+        return index;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private LevelsetIndex(Entry[] entries) {
+        this.entries = entries;
+    }
+
+}
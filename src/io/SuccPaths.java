@@ -48,6 +48,13 @@ public class SuccPaths {
             writer.printf("%s = %s", "TileWidth", settingsMap.get("Graphics:TileWidth"));
             writer.println();
             writer.printf("%s = %s", "TileHeight", settingsMap.get("Graphics:TileHeight"));
+            writer.println();
+            writer.println();
+
+            writer.println("[Memory]");
+            writer.printf("%s = %s", "SessionCache", settingsMap.get("Memory:SessionCache"));
+            writer.println();
+            writer.printf("%s = %s", "SpillThreshold", settingsMap.get("Memory:SpillThreshold"));
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -116,6 +123,33 @@ public class SuccPaths {
             return tileSizes;
         }
     }
+    /**
+     * @return how many megabytes the sessions of levels that are not being
+     * played may use.
+     */
+    public int getSessionCacheSize() {
+        try {
+            return Integer.parseInt(settingsMap.get("Memory:SessionCache"));
+        }
+        catch (NumberFormatException e) {
+            setSessionCacheSize(256);
+            return 256;
+        }
+    }
+    /**
+     * @return how many megabytes of savestates a level's session may keep in
+     * memory before the ones far from the current position are spilled to
+     * disk.
+     */
+    public int getSpillThreshold() {
+        try {
+            return Integer.parseInt(settingsMap.get("Memory:SpillThreshold"));
+        }
+        catch (NumberFormatException e) {
+            setSpillThreshold(1024);
+            return 1024;
+        }
+    }
     public String getJSONPath(String levelsetName, int levelNumber, String levelName) {
         String json = getSuccPath();
         new File(Paths.get(json, levelsetName).toString()).mkdirs();
@@ -157,6 +191,14 @@ public class SuccPaths {
         settingsMap.put("Graphics:TileHeight", String.valueOf(tileSizes[1]));
         updateSettingsFile();
     }
+    public void setSessionCacheSize(int megabytes) {
+        settingsMap.put("Memory:SessionCache", String.valueOf(megabytes));
+        updateSettingsFile();
+    }
+    public void setSpillThreshold(int megabytes) {
+        settingsMap.put("Memory:SpillThreshold", String.valueOf(megabytes));
+        updateSettingsFile();
+    }
 
     public SuccPaths(File settingsFile) throws IOException {
         this.settingsFile = settingsFile;
@@ -227,7 +269,11 @@ public class SuccPaths {
                     "[Graphics]\n" +
                     "TilesheetNum = 0\n" +
                     "TileWidth = 20\n" +
-                    "TileHeight = 20");
+                    "TileHeight = 20\n" +
+                    "\n" +
+                    "[Memory]\n" +
+                    "SessionCache = 256\n" +
+                    "SpillThreshold = 1024");
             fw.close();
         }
         catch(Exception g) {
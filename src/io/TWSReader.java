@@ -3,36 +3,163 @@ package io;
 import emulator.Solution;
 import game.Level;
 import game.Step;
+import util.ByteList;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
 
 import static emulator.SuperCC.CHIP_RELATIVE_CLICK;
 
+/**
+ * Reads solutions from a Tile World solution file.
+ * <p>
+ * The file is memory-mapped once and the offset of each level's record is
+ * kept in two primitive hash maps, one keyed by password and one by level
+ * number and password. Solutions are decoded straight from the mapping, so
+ * reading one doesn't touch the file system and any number of threads can
+ * read solutions at once.
+ * </p>
+ */
 public class TWSReader{
 
-    private HashMap<Long, Long> lPassLevelOffsets = new HashMap<>();
-    private HashMap<Long, Long> passLevelOffsets = new HashMap<>();
+    private final LongLongMap lPassLevelOffsets = new LongLongMap();
+    private final LongLongMap passLevelOffsets = new LongLongMap();
+    private final long[] recordOffsets;                             // Every record, in file order
 
     private final File twsFile;
+    private final MappedByteBuffer data;
+
+    /**
+     * A long to long hash map with open addressing, so offsets don't have to
+     * be boxed. Keys must not be negative.
+     */
+    private static class LongLongMap {
+        private static final long EMPTY = -1;
+
+        private long[] keys = emptyKeys(64);
+        private long[] values = new long[64];
+        private int size;
+
+        private static long[] emptyKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        private int slot(long key, long[] keys) {
+            int mask = keys.length - 1;
+            int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        void put(long key, long value) {
+            if (2 * (size + 1) > keys.length) {
+                long[] oldKeys = keys, oldValues = values;
+                keys = emptyKeys(oldKeys.length * 2);
+                values = new long[oldKeys.length * 2];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] == EMPTY) continue;
+                    int slot = slot(oldKeys[i], keys);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+            int slot = slot(key, keys);
+            if (keys[slot] == EMPTY) size++;
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        /**
+         * @return the key's value, or -1 if it isn't in the map
+         */
+        long get(long key) {
+            int slot = slot(key, keys);
+            return keys[slot] == EMPTY ? -1 : values[slot];
+        }
+    }
 
     public Solution readSolution(Level level) throws IOException{
-        byte[] password = level.getPassword();
-        Long pass = Integer.toUnsignedLong(
+        return readSolution(level.getLevelNumber(), level.getPassword());
+    }
+
+    /**
+     * Read a level's solution without having to parse the level, e.g. with
+     * the level number and password from a {@link LevelsetIndex}.
+     */
+    public Solution readSolution(int levelNumber, byte[] password) throws IOException{
+        long pass = Integer.toUnsignedLong(
                 password[0] + 0x100 * password[1] + 0x10000 * password[2] + 0x1000000 * password[3]
         );
-        long lpass = pass + (Integer.toUnsignedLong(level.getLevelNumber()) << 32);
-        long solutionOffset;
-        if (lPassLevelOffsets.containsKey(lpass)) solutionOffset = lPassLevelOffsets.get(lpass);
-        else if (passLevelOffsets.containsKey(pass)) solutionOffset = passLevelOffsets.get(pass);
-        else throw new IOException("Level not found in tws");
+        long lpass = pass + (Integer.toUnsignedLong(levelNumber) << 32);
+        long solutionOffset = lPassLevelOffsets.get(lpass);
+        if (solutionOffset < 0) solutionOffset = passLevelOffsets.get(pass);
+        if (solutionOffset < 0) throw new IOException("Level not found in tws");
+        return decode(solutionOffset);
+    }
 
-        twsInputStream reader = new twsInputStream(twsFile);
-        reader.skip(solutionOffset);
+    /**
+     * The solutions read from a file and the levels whose records could not
+     * be decoded.
+     */
+    public static class ReadResult {
+        public final Map<Integer, Solution> solutions = new TreeMap<>();
+        public final Map<Integer, String> failed = new TreeMap<>();
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Read ").append(solutions.size()).append(" solutions");
+            for (Map.Entry<Integer, String> level : failed.entrySet()) {
+                sb.append("\nLevel ").append(level.getKey()).append(": ").append(level.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Decode the solution of every level in the file in parallel.
+     * @return the solutions by level number and the levels that failed.
+     * Levels that only have a record without a solution are left out.
+     */
+    public ReadResult readAll() {
+        Solution[] solutions = new Solution[recordOffsets.length];
+        String[] errors = new String[recordOffsets.length];
+        int[] levelNumbers = new int[recordOffsets.length];
+        IntStream.range(0, recordOffsets.length).parallel().forEach(i -> {
+            TWSBuffer reader = new TWSBuffer(recordOffsets[i]);
+            if (reader.readInt() == 6) return;                      // No solution recorded
+            levelNumbers[i] = reader.readShort();
+            if (levelNumbers[i] == 0) return;                       // Data about the whole set, not a solution
+            try {
+                solutions[i] = decode(recordOffsets[i]);
+            }
+            catch (IOException e) {
+                errors[i] = e.getMessage();
+            }
+        });
+        ReadResult result = new ReadResult();
+        for (int i = 0; i < solutions.length; i++) {
+            if (solutions[i] != null) result.solutions.put(levelNumbers[i], solutions[i]);
+            else if (errors[i] != null) result.failed.put(levelNumbers[i], errors[i]);
+        }
+        return result;
+    }
+
+    private Solution decode(long solutionOffset) throws IOException{
+        TWSBuffer reader = new TWSBuffer(solutionOffset);
 
         int offset = reader.readInt();
         if (offset == 6) throw new IOException("No solution recorded"); //If the offset is equal to 6 it means that the only thing the TWS file stores for that level is its level number, and its password
+        if (solutionOffset + 4 + offset > data.limit()) throw new IOException("Truncated record");
         reader.readShort();                     // Level number
         reader.readInt();                       // Password
         reader.readByte();                      // Other Flags (always 0)
@@ -42,11 +169,10 @@ public class TWSReader{
         int rngSeed = reader.readInt();
         int solutionLength = reader.readInt();
 
-        reader.counter = 0;
-        ByteArrayOutputStream writer = new ByteArrayOutputStream();
+        ByteList writer = new ByteList();
         while (writer.size() + reader.solutionLengthOffset <= solutionLength){
-            int b = reader.readByte();
             try {
+                int b = reader.readByte();
                 switch (b & 0b11) {
                     case 0:
                         reader.readFormat3(b, writer);
@@ -62,18 +188,20 @@ public class TWSReader{
                 }
             }
             catch (Exception e){                    // Some solution files are too long - seems to be caused by long slides at the end of a level
-                //System.out.println("TWS file too long on level: "+level.getLevelNumber()+" "+Arrays.toString(level.getTitle()));
                 break;
             }
         }
-        Solution s = new Solution(writer.toByteArray(), rngSeed, step, Solution.QUARTER_MOVES);
+        Solution s = new Solution(writer.toArray(), rngSeed, step, Solution.QUARTER_MOVES);
         s.efficiency = 1 - (double) reader.ineffiencies / solutionLength;
         return s;
     }
 
     public TWSReader (File twsFile) throws IOException{
         this.twsFile = twsFile;
-        twsInputStream reader = new twsInputStream(twsFile);
+        try (FileChannel channel = new RandomAccessFile(twsFile, "r").getChannel()) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        TWSBuffer reader = new TWSBuffer(0);
         try{
             if (reader.readInt() != -1717882059) throw new IOException("Invalid signature");
             if (reader.readByte() != 2) throw new IOException("Incorrect ruleset");
@@ -84,34 +212,45 @@ public class TWSReader{
             long offset = 8 + length;
             int levelOffset;
 
+            long[] records = new long[64];
+            int count = 0;
             while (offset < twsFile.length()){
                 levelOffset = reader.readInt();
                 int levelNumber = reader.readShort();
                 int password = reader.readInt();
                 passLevelOffsets.put(Integer.toUnsignedLong(password), offset);
                 lPassLevelOffsets.put(Integer.toUnsignedLong(password) + (Integer.toUnsignedLong(levelNumber) << 32), offset);
-                reader.skip(levelOffset - 6);       // 10: bytes read since levelOffset
+                if (count == records.length) records = Arrays.copyOf(records, count * 2);
+                records[count++] = offset;
                 offset += levelOffset + 4;              // 4: length of levelOffset
+                if (offset >= twsFile.length()) break;  // The last record, which may be truncated
+                reader.skip(levelOffset - 6);       // 10: bytes read since levelOffset
             }
+            recordOffsets = Arrays.copyOf(records, count);
         }
-        catch (IOException e){
-            reader.close();
-            throw e;
+        catch (RuntimeException e){
+            throw new IOException("Invalid tws file: "+twsFile.getName(), e);
         }
-        reader.close();
     }
 
-    private class twsInputStream extends FileInputStream{
+    /**
+     * A cursor over the mapped file. Each reader has its own, so the mapping
+     * itself is never moved.
+     */
+    private class TWSBuffer{
         private final byte[] DIRECTIONS = new byte[] {'u', 'l', 'd', 'r'};
-        
+
+        private final ByteBuffer buffer;
+
         public int solutionLengthOffset = 0;
 
         public int ineffiencies = 0;
-        
-        public int counter;
-        public void readFormat1(int b, ByteArrayOutputStream writer) throws IOException{
+
+        private void waits(int time, ByteList writer){
+            for (int i = 0; i < time; i++) writer.add('~');
+        }
+        public void readFormat1(int b, ByteList writer){
             int length = b & 0b11;
-            counter += length;
             int time;
             byte direction;
             if (length == 1){
@@ -122,72 +261,67 @@ public class TWSReader{
                 direction = DIRECTIONS[(b & 0b11100) >>> 2];
                 time = ((b & 0b11100000) >>> 5 | readByte() << 3);
             }
-            for (int i = 0; i < time; i++) writer.write('~');
-            writer.write(direction);
+            waits(time, writer);
+            writer.add(direction);
         }
-        public void readFormat2(int b, ByteArrayOutputStream writer) throws IOException{
-            counter += 4;
+        public void readFormat2(int b, ByteList writer){
             byte direction = DIRECTIONS[(b & 0b1100) >>> 2];
             int time = ((b & 0b11100000) >> 5) | readByte() << 3 | readByte() << 11 | readByte() << 19;
             if (time < 2047) ineffiencies += 1;
-            for (int i = 0; i < time; i++) writer.write('~');
-            writer.write(direction);
-        }
-        public void readFormat3(int b, ByteArrayOutputStream writer) throws IOException{
-            counter += 1;
-            byte[] waits = new byte[] {'~', '~', '~'};
-            writer.write(waits);
-            writer.write(DIRECTIONS[(b >>> 2) & 0b11]);
-            writer.write(waits);
-            writer.write(DIRECTIONS[(b >>> 4) & 0b11]);
-            writer.write(waits);
-            writer.write(DIRECTIONS[(b >>> 6) & 0b11]);
-        }
-        public void readFormat4(int b, ByteArrayOutputStream writer) throws IOException{
+            waits(time, writer);
+            writer.add(direction);
+        }
+        public void readFormat3(int b, ByteList writer){
+            writer.add('~');
+            writer.add('~');
+            writer.add('~');
+            writer.add(DIRECTIONS[(b >>> 2) & 0b11]);
+            writer.add('~');
+            writer.add('~');
+            writer.add('~');
+            writer.add(DIRECTIONS[(b >>> 4) & 0b11]);
+            writer.add('~');
+            writer.add('~');
+            writer.add('~');
+            writer.add(DIRECTIONS[(b >>> 6) & 0b11]);
+        }
+        public void readFormat4(int b, ByteList writer){
             int length = ((b >>> 2) & 0b11) + 2;
-            counter += length;
             int b2 = readByte();
             int d = (b >>> 5) | ((b2 & 0b00111111) << 3);
             int time = (b2 & 0b11000000) >> 6;
             for (int i = 0; i < length - 2; i++) time = time | readByte() << (2 + 8*i);
-            for (int i = 0; i < time; i++) writer.write('~');
+            waits(time, writer);
             if (d < 4){
                 byte direction = DIRECTIONS[d];
-                writer.write(direction);
+                writer.add(direction);
             }
             else{
                 d -= 16;
                 int x9 = d % 19;
                 int y9 = (d - x9) / 19;
-                writer.write(CHIP_RELATIVE_CLICK);
-                writer.write(x9);
-                writer.write(y9);
+                writer.add(CHIP_RELATIVE_CLICK);
+                writer.add(x9);
+                writer.add(y9);
                 solutionLengthOffset -= 2;
             }
         }
 
-        public twsInputStream (File file) throws FileNotFoundException{
-            super(file);
-        }
-        int readByte() throws IOException{
-            return read();
+        TWSBuffer(long offset){
+            buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position((int) offset);
         }
-        int readShort() throws IOException{
-            return read() + 256*read();
+        void skip(int n){
+            buffer.position(buffer.position() + n);
         }
-        int readInt() throws IOException{
-            return read() + 256 * read() + 65536 * read() + 16777216 * read();
+        int readByte(){
+            return buffer.get() & 0xFF;
         }
-        byte[] readAscii(int length) throws IOException{
-            byte[] asciiBytes = new byte[length];
-            read(asciiBytes);
-            return asciiBytes;
+        int readShort(){
+            return buffer.getShort() & 0xFFFF;
         }
-        byte[] readEncodedAscii(int length) throws IOException{
-            byte[] asciiBytes = new byte[length];
-            read(asciiBytes);
-            for (int i = 0; i < length; i++) asciiBytes[i] = (byte) ((int) asciiBytes[i] ^ 0x99b);
-            return asciiBytes;
+        int readInt(){
+            return buffer.getInt();
         }
     }
 
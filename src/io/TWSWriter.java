@@ -11,10 +11,48 @@ import java.util.HashMap;
 public class TWSWriter{
     
     public static void write(File twsFile, Level level, Solution solution, ByteList mouseMoves) {
-        try(TWSOutputStream writer = new TWSOutputStream(twsFile)) {
-            writer.writeTWSHeader(level);
-            writer.writeInt(writer.solutionLength(solution));
-            writer.writeLevelHeader(level, solution);
+        try(TWSOutputStream writer = new TWSOutputStream(new BufferedOutputStream(new FileOutputStream(twsFile)))) {
+            writer.writeTWSHeader(level.getLevelNumber());
+            writer.writeLevel(level, solution, mouseMoves);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Start a tws file that level records from {@link #encode} are appended
+     * to.
+     * @param levelNumber the level Tile World opens the file at
+     */
+    public static void writeHeader(OutputStream out, int levelNumber) throws IOException {
+        new TWSOutputStream(out).writeTWSHeader(levelNumber);
+    }
+
+    /**
+     * Encode a level's record of a tws file. Records of several levels can
+     * be encoded at once.
+     * @param level the level in the state the solution leaves it in
+     * @param mouseMoves the x and y of each click relative to chip
+     */
+    public static byte[] encode(Level level, Solution solution, ByteList mouseMoves) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new TWSOutputStream(bytes).writeLevel(level, solution, mouseMoves);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);                     // Can't happen writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class TWSOutputStream extends FilterOutputStream{
+
+        private final byte UP = 3, LEFT = 7, DOWN = 11, RIGHT = 15;
+
+        void writeLevel(Level level, Solution solution, ByteList mouseMoves) throws IOException {
+            writeInt(solutionLength(solution));
+            writeLevelHeader(level, solution);
             int timeBetween = 0;
             boolean firstMove = true;
             int i = 0;
@@ -30,20 +68,12 @@ public class TWSWriter{
 
                         twsRelativeClick = 16 + ((relativeClickY + 9) * 19) + (relativeClickX + 9);
                     }
-                    writer.writeMove(b, timeBetween, firstMove, twsRelativeClick);
+                    writeMove(b, timeBetween, firstMove, twsRelativeClick);
                     timeBetween = 2;
                     firstMove = false;
                 }
             }
         }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private static class TWSOutputStream extends FileOutputStream{
-
-        private final byte UP = 3, LEFT = 7, DOWN = 11, RIGHT = 15;
 
         //all key directions (u, l, d, r) use format 2 on this page http://www.muppetlabs.com/~breadbox/software/tworld/tworldff.html#3
 
@@ -68,10 +98,10 @@ public class TWSWriter{
                 writeFormat4(time, relativeClick);
             }
         }
-        void writeTWSHeader (Level level) throws IOException {
+        void writeTWSHeader (int levelNumber) throws IOException {
             writeInt(0x999B3335);                        // Signature
             write(2);                                   // Ruleset
-            writeShort(level.getLevelNumber());
+            writeShort(levelNumber);
             write(0);
         }
         void writeLevelHeader (Level level, Solution solution) throws IOException {
@@ -103,8 +133,8 @@ public class TWSWriter{
             write(i >> 16);
             write(i >> 24);
         }
-        public TWSOutputStream(File file) throws IOException {
-            super(file);
+        public TWSOutputStream(OutputStream out) {
+            super(out);
         }
         public int solutionLength(Solution s) {
             int c = LEVEL_HEADER_SIZE;
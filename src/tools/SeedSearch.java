@@ -4,6 +4,7 @@ import emulator.Solution;
 import emulator.SuperCC;
 import emulator.TickFlags;
 import game.Position;
+import util.Metrics;
 
 import javax.swing.*;
 
@@ -28,6 +29,7 @@ public class SeedSearch {
     private JTextField positionField;
 
     private static final int UPDATE_RATE = 1000;
+    private static final Metrics.Counter SEEDS = Metrics.counter("seedsearch.seeds");
     
     private final byte[] startingState;
     private int seed;
@@ -123,6 +125,7 @@ public class SeedSearch {
                     lastSuccess = seed;
                 }
                 attempts++;
+                SEEDS.increment();
                 seed++;
                 if (seed % UPDATE_RATE == 0) updateText();
             }
@@ -1,9 +1,11 @@
 package tools;
 
 import emulator.SuperCC;
+import io.LevelsetIndex;
 
 import javax.swing.*;
 import javax.swing.border.BevelBorder;
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class VerifyTWS {
@@ -16,11 +18,19 @@ public class VerifyTWS {
         int lastLevel = emulator.lastLevelNumber();
         ArrayList<String> titles = new ArrayList<>(lastLevel);
         ArrayList<String> results = new ArrayList<>(lastLevel);
+        LevelsetIndex index;
+        try {
+            index = emulator.getLevelsetIndex();
+        }
+        catch (IOException e) {
+            emulator.throwError("Could not read levelset: "+e.getMessage());
+            return;
+        }
         for (int i = 1; i < lastLevel; i++) {
-            emulator.loadLevel(i);
-            titles.add(i + "   " + new String(emulator.getLevel().getTitle()));
+            LevelsetIndex.Entry level = index.get(i);
+            titles.add(i + "   " + (level.title == null ? "" : new String(level.title)));
             try {
-                results.add(emulator.twsReader.readSolution(emulator.getLevel()).efficiency > 0.9 ? "Tile World" : "SuCC");
+                results.add(emulator.twsReader.readSolution(level.levelNumber, level.password).efficiency > 0.9 ? "Tile World" : "SuCC");
             }
             catch (Exception e) {
                 results.add("Could not read tws");
@@ -6,6 +6,7 @@ import emulator.TickFlags;
 import game.*;
 import tools.TSPGUI;
 import util.ByteList;
+import util.Metrics;
 
 import javax.swing.*;
 import java.util.ArrayList;
@@ -48,6 +49,7 @@ public class TSPSolver {
     private int deltaTime;
 
     private final int LIMIT = 500000; // Upper bound of exploration
+    private static final Metrics.Counter STATES = Metrics.counter("tsp.states");
 
     public TSPSolver(SuperCC emulator, TSPGUI gui, ArrayList<TSPGUI.ListNode> inputNodes, ArrayList<TSPGUI.ListNode> exitNodes,
                      ArrayList<TSPGUI.RestrictionNode> restrictionNodes, SimulatedAnnealingParameters simulatedAnnealingParameters,
@@ -226,6 +228,7 @@ public class TSPSolver {
 
         while (!states.isEmpty() && statesExplored < LIMIT && !gui.killFlag) {
             statesExplored++;
+            STATES.increment();
             PathNode node = states.poll();
             byte[] state = node.state;
             level.load(state);
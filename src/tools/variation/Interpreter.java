@@ -6,6 +6,7 @@ import emulator.TickFlags;
 import game.Level;
 import tools.VariationTesting;
 import util.ByteList;
+import util.Metrics;
 
 import javax.swing.*;
 import javax.swing.text.BadLocationException;
@@ -38,6 +39,7 @@ public class Interpreter implements Expr.Evaluator, Stmt.Executor {
     private VariationTesting vt;
     private int fromStatement = 0;
     public long variationCount = 0;
+    private static final Metrics.Counter VARIATIONS = Metrics.counter("variation.variations");
 
     public Interpreter(SuperCC emulator, VariationTesting vt, JTextPane console, String code) {
         this.parser = new Parser(console);
@@ -61,6 +63,7 @@ public class Interpreter implements Expr.Evaluator, Stmt.Executor {
         long timeStart = System.currentTimeMillis();
         while(!vt.killFlag && !isFinished()) {
             variationCount++;
+            VARIATIONS.increment();
             try {
                 level.load(manager.saveStates[atSequence]);
                 moveList = manager.moveLists[atSequence];
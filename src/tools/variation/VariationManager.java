@@ -43,7 +43,7 @@ public class VariationManager {
 
         byte[] moves = emulator.getSavestates().getMoves();
         int index = emulator.getSavestates().getPlaybackIndex();
-        if(emulator.getSavestates().getMoveList().size() == 0) {
+        if(emulator.getSavestates().getMoveLog().size() == 0) {
             index = 0;
         }
         for(int i = 0; i < index; i++) {
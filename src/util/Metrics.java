@@ -0,0 +1,234 @@
+package util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named counters, gauges and histograms that the engine, the
+ * savestates and the tools report into, for the metrics panel and for
+ * dumping to a file.
+ * <p>
+ * Metrics are created on first use and live as long as the program, so
+ * reporting code keeps them in static fields. Counters and histograms cost
+ * about as much as an uncontended {@link LongAdder#increment()}. Gauges
+ * either hold a value or compute it when the metrics are read, and
+ * samplers registered with {@link #onSample(Runnable)} are run before each
+ * read to set gauges that are expensive to keep up to date.
+ * </p>
+ */
+public final class Metrics {
+
+    private static final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+    private static final List<Runnable> samplers = new CopyOnWriteArrayList<>();
+
+    private Metrics() {}
+
+    public interface Metric {
+        /**
+         * @return the value of the metric as one line of text
+         */
+        String format();
+    }
+
+    /**
+     * A count of events, which only goes up.
+     */
+    public static final class Counter implements Metric {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public String format() {
+            return Long.toString(get());
+        }
+    }
+
+    /**
+     * A value that goes up and down, either set by the code that knows it or
+     * computed when it is read.
+     */
+    public static final class Gauge implements Metric {
+        private final LongSupplier supplier;
+        private volatile long value;
+
+        private Gauge(LongSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        public void set(long value) {
+            this.value = value;
+        }
+
+        public long get() {
+            return supplier == null ? value : supplier.getAsLong();
+        }
+
+        @Override
+        public String format() {
+            return Long.toString(get());
+        }
+    }
+
+    /**
+     * The distribution of a value, such as a duration in nanoseconds, in
+     * buckets by powers of two. Negative values are recorded as 0.
+     */
+    public static final class Histogram implements Metric {
+        private final LongAdder[] buckets = new LongAdder[64];      // Bucket i holds values from 2^(i-1) to below 2^i
+        private final LongAdder sum = new LongAdder();
+        private volatile long max;
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+            if (value > max) max = value;                           // Racy, may miss a maximum recorded at the same time
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) count += bucket.sum();
+            return count;
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        /**
+         * @param fraction between 0 and 1
+         * @return the upper bound of the bucket holding that fraction of the
+         * values, which is at most twice the real percentile
+         */
+        public long getPercentile(double fraction) {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) count += counts[i] = buckets[i].sum();
+            long target = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) return i == 0 ? 0 : i == 63 ? max : Math.min(max, (1L << i) - 1);
+            }
+            return max;
+        }
+
+        @Override
+        public String format() {
+            return String.format("count=%d mean=%.0f p50=%d p99=%d max=%d",
+                                 getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+        }
+    }
+
+    private static <T extends Metric> T get(String name, Class<T> type, Supplier<T> create) {
+        Metric metric = metrics.computeIfAbsent(name, n -> create.get());
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is already a " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    public static Counter counter(String name) {
+        return get(name, Counter.class, Counter::new);
+    }
+
+    /**
+     * @return a gauge holding the value last set
+     */
+    public static Gauge gauge(String name) {
+        return get(name, Gauge.class, () -> new Gauge(null));
+    }
+
+    /**
+     * Register a gauge computed when it is read, replacing any gauge of the
+     * same name.
+     */
+    public static Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = new Gauge(supplier);
+        Metric old = metrics.put(name, gauge);
+        if (old != null && !(old instanceof Gauge)) {
+            metrics.put(name, old);
+            throw new IllegalArgumentException(name + " is already a " + old.getClass().getSimpleName());
+        }
+        return gauge;
+    }
+
+    public static Histogram histogram(String name) {
+        return get(name, Histogram.class, Histogram::new);
+    }
+
+    /**
+     * Run a sampler before the metrics are read, on the thread reading them.
+     */
+    public static void onSample(Runnable sampler) {
+        samplers.add(sampler);
+    }
+
+    /**
+     * Run the samplers.
+     * @return every metric by name, in name order
+     */
+    public static SortedMap<String, Metric> snapshot() {
+        for (Runnable sampler : samplers) {
+            try {
+                sampler.run();
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        return new TreeMap<>(metrics);
+    }
+
+    /**
+     * Write every metric as a line of its name and value.
+     */
+    public static void write(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        for (Map.Entry<String, Metric> entry : snapshot().entrySet()) {
+            out.println(entry.getKey() + " " + entry.getValue().format());
+        }
+        out.flush();
+    }
+
+    /**
+     * Append the metrics to a file, under a line with the time.
+     */
+    public static void dump(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(file, true))) {
+            writer.write("# " + new Date() + System.lineSeparator());
+            write(writer);
+            writer.write(System.lineSeparator());
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+package util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * An immutable list of moves. Adding a move or cutting the list short
+ * returns a new list that shares everything but one path with the old one,
+ * so keeping a copy of the moves (for a savestate slot, a branch or a
+ * checkpoint) costs nothing, and different branches only use memory for the
+ * moves they don't have in common.
+ * <p>
+ * The moves are stored in a tree of 32 wide nodes with 32 move leaves, with
+ * the last leaf kept outside the tree (the same layout as Clojure's
+ * persistent vector). Getting a move takes at most a few array lookups,
+ * adding one copies the last leaf and a path through the tree.
+ * </p>
+ */
+public class MoveLog implements Serializable {
+
+    private static final int BITS = 5,
+        WIDTH = 1 << BITS,
+        MASK = WIDTH - 1;
+
+    public static final MoveLog EMPTY = new MoveLog(0, BITS, new Object[WIDTH], new byte[0], 0);
+
+    private transient int count;                                    // Moves in the whole tree, including the ones before offset
+    private transient int shift;
+    private transient Object[] root;
+    private transient byte[] tail;
+    private transient int offset;                                   // Index of this list's first move, for sublists
+
+    public int size() {
+        return count - offset;
+    }
+
+    public byte get(int index) {
+        int i = index + offset;
+        return leafFor(i)[i & MASK];
+    }
+
+    /**
+     * @return a list with b added to the end
+     */
+    public MoveLog add(byte b) {
+        if (count - tailOffset(count) < WIDTH) {
+            byte[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = b;
+            return new MoveLog(count + 1, shift, root, newTail, offset);
+        }
+        Object[] newRoot;
+        int newShift = shift;
+        if ((count >>> BITS) > (1 << shift)) {                      // The tree is full, add a level
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        }
+        else newRoot = pushTail(shift, root, tail);
+        return new MoveLog(count + 1, newShift, newRoot, new byte[] {b}, offset);
+    }
+
+    /**
+     * @return a list with the first size moves of this one
+     */
+    public MoveLog truncate(int size) {
+        if (size == size()) return this;
+        if (size < 0 || size > size()) throw new IndexOutOfBoundsException("Truncating to " + size + " of " + size());
+        int newCount = offset + size;
+        if (newCount == 0) return EMPTY;
+        int newTailOffset = tailOffset(newCount);
+        byte[] newTail = Arrays.copyOf(leafFor(newTailOffset), newCount - newTailOffset);
+        if (newTailOffset == 0) return new MoveLog(newCount, BITS, EMPTY.root, newTail, offset);
+        Object[] newRoot = trim(root, shift, newTailOffset);
+        int newShift = shift;
+        while (newShift > BITS && (newTailOffset >>> BITS) <= (1 << (newShift - BITS))) {
+            newRoot = (Object[]) newRoot[0];
+            newShift -= BITS;
+        }
+        return new MoveLog(newCount, newShift, newRoot, newTail, offset);
+    }
+
+    /**
+     * @return the moves from index from (inclusive) to index to (exclusive),
+     * sharing this list's structure
+     */
+    public MoveLog sublist(int from, int to) {
+        if (from < 0 || from > to) throw new IndexOutOfBoundsException("Sublist from " + from + " to " + to);
+        MoveLog prefix = truncate(to);
+        return new MoveLog(prefix.count, prefix.shift, prefix.root, prefix.tail, offset + from);
+    }
+
+    public void copy(int srcPos, byte[] dest, int destPos, int length) {
+        int i = srcPos + offset;
+        int end = i + length;
+        while (i < end) {
+            byte[] leaf = leafFor(i);
+            int n = Math.min(WIDTH - (i & MASK), end - i);
+            System.arraycopy(leaf, i & MASK, dest, destPos, n);
+            i += n;
+            destPos += n;
+        }
+    }
+
+    public byte[] toArray() {
+        byte[] moves = new byte[size()];
+        copy(0, moves, 0, moves.length);
+        return moves;
+    }
+
+    public ByteList toByteList() {
+        ByteList list = new ByteList();
+        for (int i = 0; i < size(); i++) list.add(get(i));
+        return list;
+    }
+
+    /**
+     * Converts the first size moves into a String.
+     * @param charset The charset to encode to
+     * @param size The number of moves to convert
+     * @return The moves as a string
+     */
+    public String toString(Charset charset, int size) {
+        byte[] moves = new byte[size];
+        copy(0, moves, 0, size);
+        return new String(moves, charset);
+    }
+
+    @Override
+    public String toString() {
+        return new String(toArray());
+    }
+
+    /**
+     * Create a list from an array of moves.
+     */
+    public static MoveLog of(byte[] moves) {
+        MoveLog log = EMPTY;
+        for (byte b : moves) log = log.add(b);
+        return log;
+    }
+
+    private static int tailOffset(int count) {
+        if (count < WIDTH) return 0;
+        return ((count - 1) >>> BITS) << BITS;
+    }
+
+    private byte[] leafFor(int i) {
+        if (i >= tailOffset(count)) return tail;
+        Object node = root;
+        for (int level = shift; level > 0; level -= BITS) node = ((Object[]) node)[(i >>> level) & MASK];
+        return (byte[]) node;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, byte[] leaf) {
+        int index = ((count - 1) >>> level) & MASK;
+        Object[] node = parent.clone();
+        if (level == BITS) node[index] = leaf;
+        else {
+            Object[] child = (Object[]) parent[index];
+            node[index] = child != null ? pushTail(level - BITS, child, leaf) : newPath(level - BITS, leaf);
+        }
+        return node;
+    }
+
+    private static Object newPath(int level, byte[] leaf) {
+        if (level == 0) return leaf;
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    /**
+     * Copy the path to the last of the first end moves, leaving out every
+     * leaf after it. end is a multiple of the leaf size.
+     */
+    private static Object[] trim(Object[] node, int level, int end) {
+        int last = ((end - 1) >>> level) & MASK;
+        Object[] trimmed = new Object[WIDTH];
+        System.arraycopy(node, 0, trimmed, 0, last + 1);
+        if (level > BITS) trimmed[last] = trim((Object[]) node[last], level - BITS, end);
+        return trimmed;
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws IOException {
+        byte[] moves = toArray();
+        out.writeInt(moves.length);
+        out.write(moves);
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws IOException {
+        byte[] moves = new byte[in.readInt()];
+        in.readFully(moves);
+        MoveLog log = of(moves);
+        count = log.count;
+        shift = log.shift;
+        root = log.root;
+        tail = log.tail;
+        offset = 0;
+    }
+
+    private MoveLog(int count, int shift, Object[] root, byte[] tail, int offset) {
+        this.count = count;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+        this.offset = offset;
+    }
+
+}
@@ -52,7 +52,7 @@ public class TreeNode<T> implements Serializable {
         LinkedList<TreeNode<T>> history = getHistory();
         out.writeInt(history.size());
         for (TreeNode<T> node : history) {
-            out.writeObject(node.data);
+            out.writeObject(node.getData());
         }
     }
     
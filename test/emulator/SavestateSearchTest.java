@@ -0,0 +1,86 @@
+package emulator;
+
+import game.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import util.ByteList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SavestateSearchTest {
+
+    private TestLevel fixture;
+    private SavestateManager savestates;
+    private final List<byte[]> states = new ArrayList<>();
+
+    private Level level() throws IOException {
+        return fixture.parse();
+    }
+
+    /**
+     * Play the solution into a SavestateManager, compressing every other
+     * savestate beforehand so both kinds are searched.
+     */
+    @BeforeEach
+    void setUp() throws IOException {
+        fixture = new TestLevel(TestLevel.CCLP3_147);
+        Level level = level();
+        states.add(level.save());
+        fixture.play(level, Integer.MAX_VALUE, move -> states.add(move.save()));
+        savestates = new SavestateManager(level());
+        ByteList list = new ByteList();
+        List<byte[]> added = new ArrayList<>();
+        for (int i = 1; i < states.size(); i++) {
+            added.add(i % 2 == 0 ? SavestateManager.compress(states.get(i), list) : states.get(i));
+        }
+        savestates.addRewindStates(added, new byte[added.size()]);
+    }
+
+    private int bruteForce(Predicate<Level> predicate, boolean last) throws IOException {
+        Level level = level();
+        int found = -1;
+        for (int i = 0; i < states.size(); i++) {
+            level.load(states.get(i));
+            if (predicate.test(level)) {
+                found = i;
+                if (!last) break;
+            }
+        }
+        return found;
+    }
+
+    private void assertSearches(Predicate<Level> predicate) throws IOException, InterruptedException {
+        for (int threads : new int[] {1, 3}) {
+            List<Level> levels = new ArrayList<>();
+            for (int i = 0; i < threads; i++) levels.add(level());
+            assertEquals(bruteForce(predicate, false), SavestateSearch.search(savestates, levels, predicate, false));
+            assertEquals(bruteForce(predicate, true), SavestateSearch.search(savestates, levels, predicate, true));
+        }
+    }
+
+    @Test
+    void findsFirstAndLast() throws IOException, InterruptedException {
+        assertTrue(states.size() > 4 * SavestateSearch.CHUNK_SIZE, "The solution should span several chunks");
+        assertEquals(states.size(), savestates.getPlaybackNodes().size());
+        Level start = level();
+        assertSearches(SavestateSearch.chipOn(Tile.ICE));
+        assertSearches(SavestateSearch.chipAt(start.getChip().getPosition()));
+        assertSearches(SavestateSearch.chipsLeft(0));
+        assertSearches(SavestateSearch.monsterCount(start.getMonsterList().size() - 1));
+        assertSearches(level -> level.getTickNumber() % 1000 == 999);
+    }
+
+    @Test
+    void reportsNoMatch() throws IOException, InterruptedException {
+        assertSearches(SavestateSearch.chipsLeft(-1));
+        List<Level> levels = new ArrayList<>();
+        levels.add(level());
+        assertEquals(-1, SavestateSearch.search(savestates, levels, SavestateSearch.keyCount(0, 100), false));
+    }
+
+}
@@ -0,0 +1,183 @@
+package emulator;
+
+import game.Step;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static emulator.SuperCC.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SolutionCodecTest {
+
+    private static Solution solution(byte[] moves, int rngSeed, Step step) {
+        return new Solution(moves, rngSeed, step, Solution.HALF_MOVES);
+    }
+
+    private static byte[] waits(int count) {
+        byte[] moves = new byte[count];
+        Arrays.fill(moves, WAIT);
+        return moves;
+    }
+
+    /**
+     * Solutions covering every code of the binary form: directions, single
+     * waits, runs of waits on both sides of the run limits and mouse moves,
+     * which are any other byte.
+     */
+    private static List<Solution> solutions() throws IOException {
+        List<Solution> solutions = new ArrayList<>();
+        solutions.add(solution(new byte[0], 0, Step.EVEN));
+        solutions.add(solution(new byte[] {UP, LEFT, DOWN, RIGHT, WAIT, UP}, 1, Step.ODD));
+        for (int run : new int[] {1, 2, 3, 4, 258, 259, 261, 1000}) {
+            byte[] moves = waits(run + 2);
+            moves[0] = UP;
+            moves[moves.length - 1] = RIGHT;
+            solutions.add(solution(moves, run, Step.EVEN));
+        }
+        byte[] everyByte = new byte[256];
+        for (int i = 0; i < everyByte.length; i++) everyByte[i] = (byte) i;
+        solutions.add(solution(everyByte, Integer.MIN_VALUE, Step.ODD));
+        byte[] random = new byte[5000];
+        new Random(0).nextBytes(random);
+        solutions.add(solution(random, -1, Step.EVEN));
+        byte[] mixed = new byte[5000];
+        Random choice = new Random(1);
+        byte[] common = {UP, LEFT, DOWN, RIGHT, WAIT, WAIT, WAIT, WAIT, (byte) 0x83, '"', '\\'};
+        for (int i = 0; i < mixed.length; i++) mixed[i] = common[choice.nextInt(common.length)];
+        solutions.add(solution(mixed, 0x7FFFFFFF, Step.ODD));
+        solutions.add(new TestLevel(TestLevel.CCLP3_147).solution);
+        return solutions;
+    }
+
+    private static void assertSolutionEquals(Solution expected, Solution actual) {
+        assertNotNull(actual);
+        assertEquals(expected.step, actual.step);
+        assertEquals(expected.rngSeed, actual.rngSeed);
+        assertArrayEquals(expected.halfMoves, actual.halfMoves);
+    }
+
+    @Test
+    void roundTripsBinary() throws IOException {
+        for (Solution solution : solutions()) {
+            byte[] binary = solution.toBinary();
+            assertTrue(SolutionCodec.isBinary(binary));
+            assertSolutionEquals(solution, Solution.fromBinary(binary));
+            assertSolutionEquals(solution, Solution.read(binary));
+        }
+    }
+
+    @Test
+    void packsWaitRuns() {
+        byte[] binary = solution(waits(258), 0, Step.EVEN).toBinary();
+        assertEquals(13 + 2, binary.length, "A run of 258 waits should take 11 bits");
+    }
+
+    @Test
+    void readsJSONWrittenBySolution() throws IOException {
+        for (Solution solution : solutions()) {
+            String json = solution.toJSON().toJSONString();
+            assertSolutionEquals(solution, SolutionCodec.fromJSON(json));
+            assertSolutionEquals(solution, Solution.read(json.getBytes(StandardCharsets.ISO_8859_1)));
+        }
+    }
+
+    @Test
+    void readsEscapes() {
+        String json = "{\"Moves\":\"u\\u0064\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00ff\\u0000\", \"Step\":\"EVEN\", \"Seed\":\"7\"}";
+        Solution solution = SolutionCodec.fromJSON(json);
+        assertSolutionEquals(solution(new byte[] {'u', 'd', '"', '\\', '/', '\b', '\f', '\n', '\r', '\t', (byte) 0xFF, 0},
+                                      7, Step.EVEN), solution);
+    }
+
+    @Test
+    void skipsOtherKeys() {
+        String json = " { \"Note\" : \"a \\\"quoted\\\" } string\" , \"Seed\" : 12 , \"Extra\" : {\"a\": [1, \"]\", {}]}, "
+            + "\"Step\" : \"ODD\" , \"Moves\" : \"lr\" , \"Efficiency\" : 0.5 } ";
+        assertSolutionEquals(solution(new byte[] {LEFT, RIGHT}, 12, Step.ODD), SolutionCodec.fromJSON(json));
+    }
+
+    @Test
+    void rejectsTruncatedJSON() {
+        String json = solution(new byte[] {UP, '"', (byte) 0x90, WAIT}, 3, Step.EVEN).toJSON().toJSONString();
+        for (int length = 0; length < json.length(); length++) {
+            assertNull(SolutionCodec.fromJSON(json.substring(0, length)), json.substring(0, length));
+        }
+    }
+
+    @Test
+    void rejectsInvalidJSON() {
+        String[] invalid = {
+            "", "[]", "{}", "null", "{\"Moves\":\"ud\",\"Step\":\"EVEN\"}",
+            "{\"Moves\":\"ud\",\"Step\":\"SIDEWAYS\",\"Seed\":\"0\"}",
+            "{\"Moves\":\"ud\",\"Step\":\"EVEN\",\"Seed\":\"zero\"}",
+            "{\"Moves\":\"\\u0100\",\"Step\":\"EVEN\",\"Seed\":\"0\"}",
+            "{\"Moves\":\"\u0100\",\"Step\":\"EVEN\",\"Seed\":\"0\"}",
+            "{\"Moves\":\"\\u00g0\",\"Step\":\"EVEN\",\"Seed\":\"0\"}",
+            "{\"Moves\":\"\\u00\",\"Step\":\"EVEN\",\"Seed\":\"0\"}",
+            "{\"Moves\":ud,\"Step\":\"EVEN\",\"Seed\":\"0\"}",
+            "{\"Moves\":\"ud\" \"Step\":\"EVEN\",\"Seed\":\"0\"}",
+            "{\"Moves\":\"ud\",\"Step\":\"EVEN\",\"Seed\":\"0\",\"Extra\":[1, 2}",
+        };
+        for (String json : invalid) assertNull(SolutionCodec.fromJSON(json), json);
+        for (String json : new String[] {"", "[]", "null", "{\"Moves\":\"ud\"}"}) {
+            assertThrows(IllegalArgumentException.class, () -> Solution.fromJSON(json));
+        }
+    }
+
+    @Test
+    void rejectsTruncatedBinary() throws IOException {
+        for (Solution solution : solutions()) {
+            byte[] binary = solution.toBinary();
+            for (int length = 0; length < binary.length; length++) {
+                byte[] truncated = Arrays.copyOf(binary, length);
+                assertThrows(IllegalArgumentException.class, () -> Solution.fromBinary(truncated));
+            }
+        }
+    }
+
+    @Test
+    void rejectsGarbageBinary() {
+        byte[] binary = solution(new byte[] {UP, DOWN, WAIT}, 0, Step.EVEN).toBinary();
+
+        byte[] version = binary.clone();
+        version[3] = 2;
+        assertThrows(IllegalArgumentException.class, () -> Solution.fromBinary(version));
+
+        byte[] step = binary.clone();
+        step[4] = 5;
+        assertThrows(IllegalArgumentException.class, () -> Solution.fromBinary(step));
+
+        byte[] code = binary.clone();
+        code[13] = (byte) 0xFF;                                     // Code 7 is unused
+        assertThrows(IllegalArgumentException.class, () -> Solution.fromBinary(code));
+
+        for (int length : new int[] {-1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 20}) {
+            byte[] count = binary.clone();
+            count[9] = (byte) (length >>> 24);
+            count[10] = (byte) (length >>> 16);
+            count[11] = (byte) (length >>> 8);
+            count[12] = (byte) length;
+            assertThrows(IllegalArgumentException.class, () -> Solution.fromBinary(count));
+        }
+
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            byte[] garbage = new byte[13 + random.nextInt(64)];
+            random.nextBytes(garbage);
+            System.arraycopy(binary, 0, garbage, 0, 5);
+            try {
+                Solution.fromBinary(garbage);
+            }
+            catch (IllegalArgumentException e) {
+                // Either is fine, as long as nothing else is thrown
+            }
+        }
+    }
+
+}
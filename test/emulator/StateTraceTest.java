@@ -0,0 +1,54 @@
+package emulator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateTraceTest {
+
+    private static final String[] LEVELSETS = {"CHIPS.DAT", "CCLP1.dat", "CCLP2.dat", "CCLP3.dat", "CCLP4.dat"};
+    private static final String[] TWS = {"CHIPS", "CCLP1", "CCLP2", "CCLP3", "CCLP4"};
+
+    @Test
+    void matchesGoldenTraces() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<String> differences = new ArrayList<>();
+        try {
+            for (int i = 0; i < LEVELSETS.length; i++) {
+                Map<Integer, long[]> golden = StateTrace.read(new File("testData/traces/" + LEVELSETS[i] + ".trace"));
+                List<Future<StateTrace.Trace>> traces = StateTrace.trace(new File("testData/sets/" + LEVELSETS[i]),
+                        new File("testData/tws/public_" + TWS[i] + ".dac.tws"), pool);
+                for (Future<StateTrace.Trace> future : traces) {
+                    StateTrace.Trace trace = future.get();
+                    String difference = StateTrace.compare(golden.get(trace.levelNumber), trace);
+                    if (difference != null) differences.add(LEVELSETS[i] + " level " + trace.levelNumber + ": " + difference);
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        assertTrue(differences.isEmpty(), String.join("\n", differences));
+    }
+
+    @Test
+    void reportsFirstDifference() {
+        StateTrace.Trace replay = new StateTrace.Trace(1, new long[] {1, 2, 3}, new int[] {0, 1, 2}, new int[] {0, 1, 2});
+        assertNull(StateTrace.compare(new long[] {1, 2, 3}, replay));
+        assertEquals("differs on tick 2, after 2 half moves (last matched on tick 1)",
+                     StateTrace.compare(new long[] {1, 2, 4}, replay));
+        assertEquals("replay goes on after the trace ends on tick 1, after 1 half moves",
+                     StateTrace.compare(new long[] {1, 2}, replay));
+        assertNotNull(StateTrace.compare(new long[] {1, 2, 3, 4}, replay));
+        assertNotNull(StateTrace.compare(null, replay));
+    }
+
+}
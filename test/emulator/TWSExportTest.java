@@ -0,0 +1,66 @@
+package emulator;
+
+import io.LevelsetIndex;
+import io.TWSReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TWSExportTest {
+
+    private static final int EXPORTED = 4;                          // Levels 1 to 4 are exported
+    private static final int BROKEN = EXPORTED + 1;                 // And level 5 doesn't complete
+
+    @Test
+    void roundTripsThroughTWSReader() throws Exception {
+        SuperCC emulator = new SuperCC(false);
+        emulator.openLevelset(new File(TestLevel.SETS + "CHIPS.DAT"));
+        TWSReader solutions = new TWSReader(new File(TestLevel.TWS + "public_CHIPS.dac.tws"));
+        LevelsetIndex index = emulator.getLevelsetIndex();
+        File twsFile = File.createTempFile("export", ".tws");
+        try {
+            TWSExport.Result result = TWSExport.export(emulator, twsFile, 2, levelNumber -> {
+                if (levelNumber > BROKEN) return null;
+                return () -> {
+                    Solution solution = solutions.readSolution(levelNumber, index.get(levelNumber).password);
+                    if (levelNumber != BROKEN) return solution;
+                    byte[] halfMoves = Arrays.copyOf(solution.halfMoves, solution.halfMoves.length / 2);
+                    return new Solution(halfMoves, solution.rngSeed, solution.step, Solution.HALF_MOVES);
+                };
+            });
+
+            assertEquals(Arrays.asList(1, 2, 3, 4), result.written);
+            assertEquals(1, result.failed.size());
+            assertTrue(result.failed.containsKey(BROKEN));
+            assertEquals(index.size() - BROKEN, result.missing);
+
+            try (RandomAccessFile file = new RandomAccessFile(twsFile, "r")) {
+                file.seek(5);
+                assertEquals(EXPORTED, file.read() | file.read() << 8, "The header should name the last written level");
+            }
+
+            TWSReader exported = new TWSReader(twsFile);
+            for (int levelNumber = 1; levelNumber <= EXPORTED; levelNumber++) {
+                Solution solution = exported.readSolution(levelNumber, index.get(levelNumber).password);
+                Solution original = solutions.readSolution(levelNumber, index.get(levelNumber).password);
+                assertEquals(original.rngSeed, solution.rngSeed);
+                assertEquals(original.step, solution.step);
+                assertTrue(solution.playDetached(emulator.parseLevel(levelNumber, solution.rngSeed, solution.step),
+                                                 Solution.GRACE_TICKS));
+            }
+            assertThrows(IOException.class, () -> exported.readSolution(BROKEN, index.get(BROKEN).password));
+            TWSReader.ReadResult all = exported.readAll();
+            assertEquals(EXPORTED, all.solutions.size());
+            assertTrue(all.failed.isEmpty());
+        }
+        finally {
+            twsFile.delete();
+        }
+    }
+
+}
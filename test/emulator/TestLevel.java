@@ -0,0 +1,70 @@
+package emulator;
+
+import game.Level;
+import io.DatParser;
+import io.TWSReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * A level of testData with its solution, shared by the tests and the
+ * benchmarks. Levels are named by levelset file and level number, e.g.
+ * "CHIPS.DAT/134", and each is played with its solution from the
+ * levelset's public tws file.
+ */
+class TestLevel {
+
+    static final String SETS = "testData/sets/";
+    static final String TWS = "testData/tws/";
+
+    /**
+     * A long level with ice, monsters and chips, used by the tests that need
+     * many savestates.
+     */
+    static final String CCLP3_147 = "CCLP3.dat/147";
+
+    final String levelset;
+    final int levelNumber;
+    final DatParser dat;
+    final Solution solution;
+
+    /**
+     * @return a new copy of the level, ready for the solution's first move
+     */
+    Level parse() throws IOException {
+        return dat.parseLevel(levelNumber, solution.rngSeed, solution.step);
+    }
+
+    /**
+     * Play the solution's moves on a level.
+     * @param moves the number of half moves to play, or all of them
+     */
+    void play(Level level, int moves) {
+        play(level, moves, null);
+    }
+
+    /**
+     * Play the solution's moves on a level.
+     * @param moves the number of half moves to play, or all of them
+     * @param afterMove called after each move or mouse move, may be null
+     */
+    void play(Level level, int moves, Consumer<Level> afterMove) {
+        for (int move = 0; move < Math.min(moves, solution.halfMoves.length) && !level.getChip().isDead(); ) {
+            move = solution.tickDetached(level, move);
+            if (afterMove != null) afterMove.accept(level);
+        }
+    }
+
+    TestLevel(String level) throws IOException {
+        int slash = level.lastIndexOf('/');
+        levelset = level.substring(0, slash);
+        levelNumber = Integer.parseInt(level.substring(slash + 1));
+        dat = new DatParser(new File(SETS + levelset));
+        String name = levelset.substring(0, levelset.lastIndexOf('.'));
+        TWSReader twsReader = new TWSReader(new File(TWS + "public_" + name + ".dac.tws"));
+        solution = twsReader.readSolution(levelNumber, dat.getIndex().get(levelNumber).password);
+    }
+
+}
@@ -0,0 +1,158 @@
+package emulator;
+
+import game.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TickHistoryTest {
+
+    private File directory;
+    private TestLevel fixture;
+    private Solution solution;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("history").toFile();
+        fixture = new TestLevel(TestLevel.CCLP3_147);
+        solution = fixture.solution;
+    }
+
+    @AfterEach
+    void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    private Level level() throws IOException {
+        return fixture.parse();
+    }
+
+    /**
+     * The savestates of every tick of the solution, by tick number.
+     */
+    private List<byte[]> savestates() throws IOException {
+        Level level = level();
+        List<byte[]> savestates = new ArrayList<>();
+        savestates.add(level.save());
+        for (int move = 0; move < solution.halfMoves.length && !level.getChip().isDead(); ) {
+            move = solution.tickDetached(level, move, tick -> savestates.add(tick.save()));
+        }
+        return savestates;
+    }
+
+    private static String mismatch(TickHistory.Tick tick, Level expected) {
+        if (tick.getChip().bits() != expected.getChip().bits()) return "chip";
+        if (tick.getTileUnderChip() != expected.getLayerBG().get(expected.getChip().getPosition())) return "tile under chip";
+        if (tick.getRNGValue() != expected.getRngValue()) return "rng";
+        if (tick.getChipsLeft() != expected.getChipsLeft()) return "chips left";
+        for (int i = 0; i < 4; i++) {
+            if (tick.getKeys(i) != expected.getKeys()[i]) return "keys";
+            if (tick.getBoots(i) != expected.getBoots()[i]) return "boots";
+        }
+        if (tick.getMonsterCount() != expected.getMonsterList().size()) return "monster count";
+        for (int i = 0; i < tick.getMonsterCount(); i++) {
+            if (tick.getMonster(i).bits() != expected.getMonsterList().get(i).bits()) return "monster " + i;
+        }
+        if (tick.getSlipCount() != expected.getSlipList().size()) return "slip count";
+        for (int i = 0; i < tick.getSlipCount(); i++) {
+            if (tick.getSlipper(i).bits() != expected.getSlipList().get(i).bits()) return "slipper " + i;
+        }
+        return null;
+    }
+
+    private static void assertMatches(TickHistory history, List<byte[]> savestates, Level scratch) {
+        List<String> mismatches = new ArrayList<>();
+        history.count(tick -> {
+            scratch.load(savestates.get(tick.getTickNumber()));
+            String mismatch = mismatch(tick, scratch);
+            if (mismatch != null) mismatches.add("tick " + tick.getTickNumber() + ": " + mismatch);
+            return false;
+        });
+        assertEquals(new ArrayList<String>(), mismatches);
+    }
+
+    @Test
+    void recordsEveryTick() throws IOException {
+        List<byte[]> savestates = savestates();
+        try (TickHistory history = TickHistory.replay(level(), solution, directory)) {
+            assertEquals(0, history.getFirstTick());
+            assertEquals(savestates.size() - 1, history.getLastTick());
+            assertTrue(history.getLastTick() > 2 * TickHistory.BLOCK_TICKS, "The solution should span several blocks");
+            assertMatches(history, savestates, level());
+        }
+    }
+
+    @Test
+    void dropsRewoundTicks() throws IOException {
+        List<byte[]> savestates = savestates();
+        try (TickHistory history = TickHistory.replay(level(), solution, directory)) {
+            Level level = level();
+            int rewindTo = TickHistory.BLOCK_TICKS + 100;
+            level.load(savestates.get(rewindTo));
+            history.record(level);
+            assertEquals(rewindTo, history.getLastTick());
+            level.tick(SuperCC.WAIT, new Direction[] {});
+            history.record(level);
+            assertEquals(rewindTo + 1, history.getLastTick());
+            savestates.set(rewindTo + 1, level.save());
+            assertMatches(history, savestates.subList(0, rewindTo + 2), level());
+        }
+    }
+
+    @Test
+    void startsMidLevel() throws IOException {
+        List<byte[]> savestates = savestates();
+        int start = TickHistory.BLOCK_TICKS + 10;
+        try (TickHistory history = new TickHistory(directory)) {
+            Level level = level();
+            for (int tick = start; tick < savestates.size(); tick++) {
+                level.load(savestates.get(tick));
+                history.record(level);
+            }
+            assertEquals(start, history.getFirstTick());
+            assertEquals(savestates.size() - 1, history.getLastTick());
+            assertEquals(savestates.size() - start, history.count(tick -> true));
+            assertEquals(start, history.first(tick -> true));
+            assertEquals(savestates.size() - 1, history.last(tick -> true));
+            assertEquals(start + 5, history.first(start + 5, Integer.MAX_VALUE, tick -> true));
+            assertEquals(-1, history.first(0, start - 1, tick -> true));
+            assertMatches(history, savestates, level());
+        }
+    }
+
+    @Test
+    void answersQueries() throws IOException {
+        List<byte[]> savestates = savestates();
+        Level scratch = level();
+        List<Integer> onIce = new ArrayList<>();
+        for (int tick = 0; tick < savestates.size(); tick++) {
+            scratch.load(savestates.get(tick));
+            if (scratch.getLayerBG().get(scratch.getChip().getPosition()).isIce()) onIce.add(tick);
+        }
+        try (TickHistory history = TickHistory.replay(level(), solution, directory)) {
+            assertFalse(onIce.isEmpty());
+            assertEquals((int) onIce.get(0), history.first(tick -> tick.getTileUnderChip().isIce()));
+            assertEquals((int) onIce.get(onIce.size() - 1), history.last(tick -> tick.getTileUnderChip().isIce()));
+            int total = 0;
+            for (int[] range : history.ranges(tick -> tick.getTileUnderChip().isIce())) {
+                for (int tick = range[0]; tick <= range[1]; tick++) assertTrue(onIce.contains(tick));
+                total += range[1] - range[0] + 1;
+            }
+            assertEquals(history.count(tick -> tick.getTileUnderChip().isIce()), total);
+            assertEquals(-1, history.first(tick -> tick.getChipsLeft() < 0));
+            int middle = onIce.get(onIce.size() / 2);
+            assertEquals(middle, history.first(middle, Integer.MAX_VALUE, tick -> tick.getTileUnderChip().isIce()));
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package io;
+
+import game.Layer;
+import game.Level;
+import game.Step;
+import game.Tile;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeatureIndexTest {
+
+    private static final File CHIPS = new File("testData/sets/CHIPS.DAT");
+    private static final File CCLP1 = new File("testData/sets/CCLP1.dat");
+
+    private static int count(Level level, Tile tile) {
+        int count = 0;
+        Layer layerFG = level.getLayerFG(), layerBG = level.getLayerBG();
+        for (int i = 0; i < 32 * 32; i++) {
+            if (layerFG.get(i) == tile) count++;
+            if (layerBG.get(i) == tile) count++;
+        }
+        return count;
+    }
+
+    private static List<Integer> levelNumbers(List<FeatureIndex.Match> matches) {
+        List<Integer> levelNumbers = new ArrayList<>();
+        for (FeatureIndex.Match match : matches) levelNumbers.add(match.levelNumber);
+        return levelNumbers;
+    }
+
+    @Test
+    void countsTiles() throws IOException {
+        FeatureIndex index = new FeatureIndex();
+        index.update(Collections.singletonList(CHIPS));
+        DatParser dat = DatParser.read(CHIPS);
+        List<Integer> teleports = new ArrayList<>(), twoTeleports = new ArrayList<>();
+        for (int levelNumber = 1; levelNumber < dat.lastLevel(); levelNumber++) {
+            int count = count(dat.parseLevel(levelNumber, 0, Step.EVEN), Tile.TELEPORT);
+            if (count >= 1) teleports.add(levelNumber);
+            if (count >= 2) twoTeleports.add(levelNumber);
+        }
+        assertFalse(teleports.isEmpty());
+        assertEquals(teleports, levelNumbers(index.query("teleport")));
+        assertEquals(teleports, levelNumbers(index.query("tile:TELEPORT")));
+        assertEquals(twoTeleports, levelNumbers(index.query("teleport>=2")));
+        assertTrue(index.query("teleport>=5000").isEmpty());
+    }
+
+    @Test
+    void matchesAllFeatures() {
+        FeatureIndex index = new FeatureIndex();
+        index.update(Collections.singletonList(CHIPS));
+        List<Integer> both = levelNumbers(index.query("teleport blob"));
+        List<Integer> blobs = levelNumbers(index.query("creature:blob"));
+        List<Integer> teleports = levelNumbers(index.query("teleport"));
+        List<Integer> expected = new ArrayList<>(blobs);
+        expected.retainAll(teleports);
+        assertEquals(expected, both);
+        for (FeatureIndex.Match match : index.query("exit")) assertEquals(CHIPS.getAbsoluteFile(), match.levelset);
+        assertEquals("LESSON 1", index.query("exit").get(0).title);
+        assertThrows(IllegalArgumentException.class, () -> index.query("nonsense"));
+        assertThrows(IllegalArgumentException.class, () -> index.query("teleport>=many"));
+    }
+
+    @Test
+    void updatesOnlyChangedLevels() throws IOException {
+        File directory = Files.createTempDirectory("features").toFile();
+        File changed = new File(directory, "CHANGED.DAT");
+        File saved = new File(directory, "features.index");
+        try {
+            byte[] bytes = Files.readAllBytes(CHIPS.toPath());
+            String text = new String(bytes, StandardCharsets.ISO_8859_1);
+            bytes[text.indexOf("LESSON 1\0") + 7] = 'X';               // Only level 1 changes
+            Files.write(changed.toPath(), bytes);
+
+            FeatureIndex index = new FeatureIndex();
+            int levels = index.update(Collections.singletonList(CHIPS));
+            assertEquals(index.size(), levels);
+            assertEquals(0, index.update(Collections.singletonList(CHIPS)));
+            assertEquals(1, index.update(Arrays.asList(CHIPS, changed)));
+            assertEquals(levels + 1, index.size());
+            int cclp1 = new FeatureIndex().update(Collections.singletonList(CCLP1));
+            assertEquals(cclp1, index.update(Arrays.asList(CCLP1, CHIPS, changed)));
+
+            index.update(Collections.singletonList(changed));
+            assertEquals(levels, index.size(), "Levels only in dropped levelsets are dropped");
+            List<FeatureIndex.Match> exits = index.query("exit");
+            assertEquals("LESSON X", exits.get(0).title);
+            for (FeatureIndex.Match match : exits) assertEquals(changed.getAbsoluteFile(), match.levelset);
+
+            index.save(saved);
+            FeatureIndex loaded = FeatureIndex.load(saved);
+            assertEquals(index.size(), loaded.size());
+            assertEquals(0, loaded.update(Collections.singletonList(changed)));
+            assertEquals(levelNumbers(exits), levelNumbers(loaded.query("exit")));
+            assertTrue(changed.delete(), "The levelset should not be left open");
+        }
+        finally {
+            changed.delete();
+            saved.delete();
+            directory.delete();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package io;
+
+import emulator.Solution;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TWSReaderTest {
+
+    private static final File TWS = new File("testData/tws/public_CHIPS.dac.tws");
+    private static final File DAT = new File("testData/sets/CHIPS.DAT");
+
+    private static void assertSolutionEquals(Solution expected, Solution actual) {
+        assertEquals(expected.step, actual.step);
+        assertEquals(expected.rngSeed, actual.rngSeed);
+        assertArrayEquals(expected.halfMoves, actual.halfMoves);
+    }
+
+    @Test
+    void readsAll() throws IOException {
+        TWSReader reader = new TWSReader(TWS);
+        LevelsetIndex index = new DatParser(DAT).getIndex();
+        TWSReader.ReadResult result = reader.readAll();
+        assertTrue(result.failed.isEmpty(), result.toString());
+        assertEquals(index.size(), result.solutions.size());
+        for (Map.Entry<Integer, Solution> solution : result.solutions.entrySet()) {
+            int levelNumber = solution.getKey();
+            assertSolutionEquals(reader.readSolution(levelNumber, index.get(levelNumber).password), solution.getValue());
+        }
+    }
+
+    @Test
+    void reportsTruncatedRecord() throws IOException {
+        File truncated = File.createTempFile("truncated", ".tws");
+        try {
+            Files.copy(TWS.toPath(), truncated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            TWSReader.ReadResult all = new TWSReader(TWS).readAll();
+            int lastLevel = Collections.max(all.solutions.keySet());    // Records are in level order
+            try (RandomAccessFile file = new RandomAccessFile(truncated, "rw")) {
+                file.setLength(file.length() - 8);                  // Cut into the last level's moves
+            }
+
+            TWSReader reader = new TWSReader(truncated);
+            TWSReader.ReadResult result = reader.readAll();
+            assertEquals(1, result.failed.size(), result.toString());
+            assertTrue(result.failed.containsKey(lastLevel));
+            assertEquals(all.solutions.size() - 1, result.solutions.size());
+            for (Map.Entry<Integer, Solution> solution : result.solutions.entrySet()) {
+                assertSolutionEquals(all.solutions.get(solution.getKey()), solution.getValue());
+            }
+            LevelsetIndex index = new DatParser(DAT).getIndex();
+            assertThrows(IOException.class, () -> reader.readSolution(lastLevel, index.get(lastLevel).password));
+        }
+        finally {
+            truncated.delete();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MoveLogTest {
+    @Test
+    void addAndGet() {
+        MoveLog log = MoveLog.EMPTY;
+        byte[] expected = new byte[40000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i * 31);
+            log = log.add(expected[i]);
+        }
+
+        assertEquals(expected.length, log.size());
+        assertArrayEquals(expected, log.toArray());
+        for (int i = 0; i < expected.length; i += 997) assertEquals(expected[i], log.get(i));
+    }
+
+    @Test
+    void snapshotsAreUnchanged() {
+        MoveLog log = MoveLog.of("udlr".getBytes());
+        MoveLog snapshot = log;
+        log = log.add((byte) '-').truncate(2).add((byte) 'R');
+
+        assertEquals("udlr", snapshot.toString());
+        assertEquals("udR", log.toString());
+    }
+
+    @Test
+    void truncateAcrossLevels() {
+        Random random = new Random(0);
+        byte[] moves = new byte[5000];
+        random.nextBytes(moves);
+        MoveLog log = MoveLog.of(moves);
+
+        for (int size : new int[] {4999, 1056, 1024, 1023, 33, 32, 31, 1, 0}) {
+            MoveLog truncated = log.truncate(size);
+            assertArrayEquals(Arrays.copyOf(moves, size), truncated.toArray());
+            MoveLog regrown = truncated;
+            for (int i = size; i < moves.length; i++) regrown = regrown.add(moves[i]);
+            assertArrayEquals(moves, regrown.toArray());
+        }
+    }
+
+    @Test
+    void branches() {
+        Random random = new Random(1);
+        byte[] reference = new byte[0];
+        MoveLog log = MoveLog.EMPTY;
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextInt(4) == 0 && reference.length > 0) {
+                int size = random.nextInt(reference.length);
+                reference = Arrays.copyOf(reference, size);
+                log = log.truncate(size);
+            }
+            else {
+                int n = random.nextInt(100);
+                for (int j = 0; j < n; j++) {
+                    byte b = (byte) random.nextInt();
+                    reference = Arrays.copyOf(reference, reference.length + 1);
+                    reference[reference.length - 1] = b;
+                    log = log.add(b);
+                }
+            }
+            assertEquals(reference.length, log.size());
+        }
+        assertArrayEquals(reference, log.toArray());
+    }
+
+    @Test
+    void sublist() {
+        MoveLog log = MoveLog.of("uuddlrlrba".getBytes());
+        MoveLog sublist = log.sublist(2, 8);
+
+        assertEquals("ddlrlr", sublist.toString());
+        assertEquals((byte) 'l', sublist.get(2));
+        assertEquals("ddlrlr-", sublist.add((byte) '-').toString());
+        assertEquals("ddl", sublist.truncate(3).toString());
+    }
+}